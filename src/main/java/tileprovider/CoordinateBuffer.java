@@ -0,0 +1,192 @@
+package tileprovider;
+
+import java.util.Arrays;
+
+/**
+ * Reusable buffer of pixel coordinates (x0, y0, x1, y1, ...) for one line string or ring.  Coordinates are transformed
+ * as they are added, simplified in place, and then emitted to a FeatureTileCanvas, so rasterizing a geometry creates
+ * no per-vertex objects.  One buffer is reused for every geometry of a tile.
+ *
+ * Simplification first drops vertices closer than the tolerance to the previously kept vertex (radial distance), then
+ * runs Douglas-Peucker over what remains, marking kept vertices in a reused array and compacting in place.  The
+ * simplification is unit agnostic (GeometryGeneralizer adds coordinates in degrees with addPixel).
+ */
+
+final class CoordinateBuffer {
+
+    private double[] mCoordinates = new double[256];
+    private boolean[] mKeep = new boolean[128];
+    private int[] mStack = new int[64];
+    private int mCount = 0;     //number of points
+
+    void clear() {
+        mCount = 0;
+    }
+
+    int size() {
+        return mCount;
+    }
+
+    double getX(int index) {
+        return mCoordinates[index * 2];
+    }
+
+    double getY(int index) {
+        return mCoordinates[index * 2 + 1];
+    }
+
+    /**
+     * Adds a coordinate, transformed to tile pixels
+     */
+    void add(TileTransform transform, double longitude, double latitude) {
+        addPixel(transform.x(longitude), transform.y(latitude));
+    }
+
+    /**
+     * Adds a coordinate already in tile pixels
+     */
+    void addPixel(double x, double y) {
+        if (mCount * 2 == mCoordinates.length) {
+            mCoordinates = Arrays.copyOf(mCoordinates, mCoordinates.length * 2);
+        }
+        mCoordinates[mCount * 2] = x;
+        mCoordinates[mCount * 2 + 1] = y;
+        mCount++;
+    }
+
+    /**
+     * Simplifies the coordinates in place, always keeping the first and last point
+     * @param tolerance - tolerance in pixels
+     */
+    void simplify(double tolerance) {
+        if (mCount <= 2 || tolerance <= 0) {
+            return;
+        }
+
+        double toleranceSquared = tolerance * tolerance;
+        simplifyRadialDistance(toleranceSquared);
+        if (mCount > 2) {
+            simplifyDouglasPeucker(toleranceSquared);
+        }
+    }
+
+    /**
+     * Emits the coordinates as an open path (moveTo, lineTo...)
+     */
+    void emitLine(FeatureTileCanvas canvas) {
+        if (mCount < 2) {
+            return;
+        }
+
+        canvas.moveTo(mCoordinates[0], mCoordinates[1]);
+        for (int i = 1; i < mCount; i++) {
+            canvas.lineTo(mCoordinates[i * 2], mCoordinates[i * 2 + 1]);
+        }
+    }
+
+    /**
+     * Emits the coordinates as a closed ring
+     */
+    void emitRing(FeatureTileCanvas canvas) {
+        if (mCount < 2) {
+            return;
+        }
+
+        emitLine(canvas);
+        canvas.closeRing();
+    }
+
+    private void simplifyRadialDistance(double toleranceSquared) {
+        double[] c = mCoordinates;
+        int last = mCount - 1;
+        int kept = 1;
+        double previousX = c[0];
+        double previousY = c[1];
+
+        for (int i = 1; i < last; i++) {
+            double dx = c[i * 2] - previousX;
+            double dy = c[i * 2 + 1] - previousY;
+            if (dx * dx + dy * dy > toleranceSquared) {
+                previousX = c[i * 2];
+                previousY = c[i * 2 + 1];
+                c[kept * 2] = previousX;
+                c[kept * 2 + 1] = previousY;
+                kept++;
+            }
+        }
+
+        c[kept * 2] = c[last * 2];
+        c[kept * 2 + 1] = c[last * 2 + 1];
+        mCount = kept + 1;
+    }
+
+    private void simplifyDouglasPeucker(double toleranceSquared) {
+        double[] c = mCoordinates;
+        int count = mCount;
+
+        if (mKeep.length < count) {
+            mKeep = new boolean[Math.max(count, mKeep.length * 2)];
+        }
+        boolean[] keep = mKeep;
+        Arrays.fill(keep, 0, count, false);
+        keep[0] = true;
+        keep[count - 1] = true;
+
+        //explicit stack of (first, last) ranges
+        int top = 0;
+        top = push(top, 0, count - 1);
+        while (top > 0) {
+            int last = mStack[--top];
+            int first = mStack[--top];
+
+            double ax = c[first * 2];
+            double ay = c[first * 2 + 1];
+            double dx = c[last * 2] - ax;
+            double dy = c[last * 2 + 1] - ay;
+            double lengthSquared = dx * dx + dy * dy;
+
+            double maxDistance = 0;
+            int index = -1;
+            for (int i = first + 1; i < last; i++) {
+                double px = c[i * 2] - ax;
+                double py = c[i * 2 + 1] - ay;
+                double distance;
+                if (lengthSquared == 0) {
+                    distance = px * px + py * py;
+                } else {
+                    double cross = px * dy - py * dx;
+                    distance = cross * cross / lengthSquared;
+                }
+                if (distance > maxDistance) {
+                    maxDistance = distance;
+                    index = i;
+                }
+            }
+
+            if (index != -1 && maxDistance > toleranceSquared) {
+                keep[index] = true;
+                top = push(top, first, index);
+                top = push(top, index, last);
+            }
+        }
+
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (keep[i]) {
+                c[kept * 2] = c[i * 2];
+                c[kept * 2 + 1] = c[i * 2 + 1];
+                kept++;
+            }
+        }
+        mCount = kept;
+    }
+
+    private int push(int top, int first, int last) {
+        if (top + 2 > mStack.length) {
+            mStack = Arrays.copyOf(mStack, mStack.length * 2);
+        }
+        mStack[top] = first;
+        mStack[top + 1] = last;
+        return top + 2;
+    }
+}
@@ -0,0 +1,247 @@
+package tileprovider;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory cache of decoded ancestor tiles used for overzoom.  When a layer is requested deeper than its stored
+ * zoom levels, every child tile is cut from the same ancestor tile -- one z10 tile serves 1,024 tiles at z15 -- so the
+ * ancestor is decoded once and kept here instead of being decoded again for every child.
+ *
+ * The cache is bounded by the number of raster bytes held and is split into lock-striped shards in least recently
+ * used order.  Cached images are shared between threads and must only be read (drawn from), never modified.
+ *
+ * This class uses a Singleton Model since all layers share the same memory budget.
+ */
+
+class DecodedTileCache {
+
+    /**
+     * Default budget for all shards together
+     */
+    private static final long DEFAULT_MAX_BYTES = 128L * 1024L * 1024L;
+
+    /**
+     * Number of shards (must be a power of two)
+     */
+    private static final int SHARD_COUNT = 16;
+
+    //Singleton
+    private static final DecodedTileCache instance = new DecodedTileCache(DEFAULT_MAX_BYTES);
+
+    /**
+     * Singleton accessor
+     * @return instance
+     */
+    static DecodedTileCache getInstance() {
+        return instance;
+    }
+
+    private final Shard[] mShards;
+
+    //Statistics
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+
+    /**
+     * Constructor
+     * @param maxBytes - total number of raster bytes the cache may hold
+     */
+    DecodedTileCache(long maxBytes) {
+        mShards = new Shard[SHARD_COUNT];
+        long shardBytes = Math.max(1L, maxBytes / SHARD_COUNT);
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            mShards[i] = new Shard(shardBytes);
+        }
+    }
+
+    /**
+     * Looks up a decoded tile
+     * @return cached image (read only) or null if not cached
+     */
+    BufferedImage get(String layerName, int x, int y, int z) {
+        Key key = new Key(layerName, x, y, z);
+        BufferedImage image = shardFor(key).get(key);
+        if (image != null) {
+            mHits.incrementAndGet();
+        } else {
+            mMisses.incrementAndGet();
+        }
+
+        return image;
+    }
+
+    /**
+     * Adds a decoded tile
+     * @param image - decoded tile (not copied; must not be modified afterwards)
+     */
+    void put(String layerName, int x, int y, int z, BufferedImage image) {
+        if (image == null) {
+            return;
+        }
+
+        Key key = new Key(layerName, x, y, z);
+        shardFor(key).put(key, image);
+    }
+
+    /**
+     * Removes every cached tile of the given layer
+     * @param layerName - registered layer name
+     */
+    void invalidateLayer(String layerName) {
+        for (Shard shard : mShards) {
+            shard.invalidateLayer(layerName);
+        }
+    }
+
+    /**
+     * Removes every cached tile
+     */
+    void invalidateAll() {
+        for (Shard shard : mShards) {
+            shard.clear();
+        }
+    }
+
+    long getHits() {
+        return mHits.get();
+    }
+
+    long getMisses() {
+        return mMisses.get();
+    }
+
+    long getEvictions() {
+        return mEvictions.get();
+    }
+
+    /**
+     * @return raster bytes currently held
+     */
+    long getBytes() {
+        long bytes = 0;
+        for (Shard shard : mShards) {
+            synchronized (shard) {
+                bytes += shard.mBytes;
+            }
+        }
+
+        return bytes;
+    }
+
+    private Shard shardFor(Key key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return mShards[h & (SHARD_COUNT - 1)];
+    }
+
+    /**
+     * @return approximate memory held by the image's raster
+     */
+    private static long weightOf(BufferedImage image) {
+        DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+        return (long) dataBuffer.getSize() * dataBuffer.getNumBanks() * (DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / 8);
+    }
+
+    /**
+     * One lock stripe of the cache.  Entries are held in access order so the eldest entry is the eviction victim.
+     */
+    private class Shard {
+        private final long mMaxBytes;
+        private final LinkedHashMap<Key, BufferedImage> mEntries = new LinkedHashMap<>(64, 0.75f, true);
+        private long mBytes = 0;
+
+        Shard(long maxBytes) {
+            mMaxBytes = maxBytes;
+        }
+
+        synchronized BufferedImage get(Key key) {
+            return mEntries.get(key);
+        }
+
+        synchronized void put(Key key, BufferedImage image) {
+            long size = weightOf(image);
+            if (size > mMaxBytes) {
+                return;
+            }
+
+            BufferedImage previous = mEntries.remove(key);
+            if (previous != null) {
+                mBytes -= weightOf(previous);
+            }
+
+            Iterator<Map.Entry<Key, BufferedImage>> iterator = mEntries.entrySet().iterator();
+            while (mBytes + size > mMaxBytes && iterator.hasNext()) {
+                Map.Entry<Key, BufferedImage> victim = iterator.next();
+                iterator.remove();
+                mBytes -= weightOf(victim.getValue());
+                mEvictions.incrementAndGet();
+            }
+
+            mEntries.put(key, image);
+            mBytes += size;
+        }
+
+        synchronized void invalidateLayer(String layerName) {
+            Iterator<Map.Entry<Key, BufferedImage>> iterator = mEntries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Key, BufferedImage> entry = iterator.next();
+                if (entry.getKey().mLayerName.equals(layerName)) {
+                    iterator.remove();
+                    mBytes -= weightOf(entry.getValue());
+                }
+            }
+        }
+
+        synchronized void clear() {
+            mEntries.clear();
+            mBytes = 0;
+        }
+    }
+
+    /**
+     * Tile address within a layer
+     */
+    private static final class Key {
+        private final String mLayerName;
+        private final int mX;
+        private final int mY;
+        private final int mZ;
+        private final int mHash;
+
+        Key(String layerName, int x, int y, int z) {
+            mLayerName = layerName;
+            mX = x;
+            mY = y;
+            mZ = z;
+            mHash = Objects.hash(layerName, x, y, z);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mHash == other.mHash &&
+                    mX == other.mX &&
+                    mY == other.mY &&
+                    mZ == other.mZ &&
+                    mLayerName.equals(other.mLayerName);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+    }
+}
@@ -1,16 +1,13 @@
 package tileprovider;
 
-import android.graphics.Bitmap;
 import com.j256.ormlite.dao.CloseableIterator;
 import mil.nga.geopackage.BoundingBox;
 import mil.nga.geopackage.GeoPackageException;
 import mil.nga.geopackage.extension.index.GeometryIndex;
-import mil.nga.geopackage.features.user.FeatureCursor;
 import mil.nga.geopackage.features.user.FeatureDao;
 import mil.nga.geopackage.features.user.FeatureResultSet;
 import mil.nga.geopackage.features.user.FeatureRow;
 import mil.nga.geopackage.geom.GeoPackageGeometryData;
-import mil.nga.geopackage.tiles.TileBoundingBoxUtils;
 import mil.nga.geopackage.tiles.features.DefaultFeatureTiles;
 import mil.nga.geopackage.tiles.features.FeatureTiles;
 import mil.nga.sf.Point;
@@ -18,16 +15,17 @@ import mil.nga.sf.Polygon;
 import mil.nga.sf.*;
 import org.geotools.util.logging.Logging;
 
-import java.awt.*;
-import java.awt.geom.Path2D;
 import java.awt.image.BufferedImage;
+import java.util.Arrays;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Created by joshua.johnson on 3/18/2019.
- * implementation using Android Graphics to draw tiles from Well Known Binary Geometries
+ * implementation using Java 2D (one batched FeatureTileCanvas per tile) to draw tiles from Well Known Binary Geometries
  * based largely upon DefaultFeatureTiles, but with geometry corrections for EPSG 4326 projections
  * <p>
  * Note that FeatureData is not yet fully supported
@@ -39,6 +37,26 @@ class Epsg4326FeatureTiles extends FeatureTiles {
 
     static final Logger LOGGER = Logging.getLogger(Epsg4326FeatureTiles.class);
 
+    /**
+     * Supplies the in-memory spatial index used when the table has no GeoPackage index (may be null)
+     */
+    private volatile Supplier<FeatureSpatialIndex> mSpatialIndexSupplier = null;
+
+    /**
+     * Supplies the generalized geometries read at low zoom levels instead of the source table (may be null)
+     */
+    private volatile Supplier<GeneralizedGeometries> mGeneralizedGeometriesSupplier = null;
+
+    /**
+     * Style the tiles are drawn with
+     */
+    private volatile FeatureStyle mFeatureStyle = new FeatureStyle();
+
+    /**
+     * Vertices closer than this (in pixels) are dropped when geometries are simplified
+     */
+    private static final double SIMPLIFY_TOLERANCE_PIXELS = 0.5;
+
     //Constructor
     Epsg4326FeatureTiles(FeatureDao featureDao) {
         super(featureDao);
@@ -50,6 +68,31 @@ class Epsg4326FeatureTiles extends FeatureTiles {
         }
     }
 
+    /**
+     * Sets the style the tiles are drawn with (colors, stroke widths, point radius and icon)
+     */
+    void setFeatureStyle(FeatureStyle featureStyle) {
+        mFeatureStyle = featureStyle;
+    }
+
+    /**
+     * Sets the source of the in-memory spatial index used instead of a full table scan when the table has no
+     * GeoPackage index.  The supplier is only called when an unindexed tile is drawn.
+     * @param spatialIndexSupplier - supplier of the index (returning null falls back to the table scan)
+     */
+    void setSpatialIndexSupplier(Supplier<FeatureSpatialIndex> spatialIndexSupplier) {
+        mSpatialIndexSupplier = spatialIndexSupplier;
+    }
+
+    /**
+     * Sets the source of the generalized geometries drawn (for zoom levels with a generalized band) in place of the
+     * full resolution geometries.  The supplier is called for each tile drawn from an index.
+     * @param generalizedGeometriesSupplier - supplier of the generalized geometries (returning null reads the table)
+     */
+    void setGeneralizedGeometriesSupplier(Supplier<GeneralizedGeometries> generalizedGeometriesSupplier) {
+        mGeneralizedGeometriesSupplier = generalizedGeometriesSupplier;
+    }
+
     /**
      * Draws tile based on index state
      *
@@ -79,6 +122,13 @@ class Epsg4326FeatureTiles extends FeatureTiles {
     @Override
     public BufferedImage drawTileQueryAll(int x, int y, int zoom) {
 
+        //candidates from the in-memory spatial index rather than every row of the table
+        Supplier<FeatureSpatialIndex> spatialIndexSupplier = mSpatialIndexSupplier;
+        FeatureSpatialIndex spatialIndex = spatialIndexSupplier != null ? spatialIndexSupplier.get() : null;
+        if (spatialIndex != null) {
+            return drawTileQuerySpatialIndex(x, y, zoom, spatialIndex);
+        }
+
         BufferedImage bufferedImage = null;
 
         // Query for all features
@@ -99,18 +149,20 @@ class Epsg4326FeatureTiles extends FeatureTiles {
                 } else {
                     //TODO: Based on the logic above, I don't think this code can ever run  (Remove??)
                     BoundingBox expandedBoundingBox = expandBoundingBox(bbox);
-                    bufferedImage = new BufferedImage(x, y, zoom);
+                    FeatureTileCanvas canvas = createCanvas(bbox);
+                    GeometryBlobRenderer renderer = createRenderer(canvas, expandedBoundingBox);
+                    int geometryColumn = featureDao.getTable().getGeometryColumnIndex();
 
                     int count = 0;
                     while (resultSet.moveToNext()) {
-                        FeatureRow row = resultSet.getRow();
-                        if (drawFeature(zoom, bbox, expandedBoundingBox, bufferedImage, row)) {
+                        if (drawGeometry(renderer, resultSet.getBlob(geometryColumn))) {
                             count++;
                         }
                         if (count >= maxFeaturesPerTile) {
                             break;
                         }
                     }
+                    bufferedImage = canvas.finish();
                 }
             }
         } finally {
@@ -120,6 +172,36 @@ class Epsg4326FeatureTiles extends FeatureTiles {
         return bufferedImage;
     }
 
+    /**
+     * Draws the features whose envelopes intersect the tile, as found in the in-memory spatial index
+     *
+     * @param x    - column
+     * @param y    - row
+     * @param zoom - zoom level
+     * @return Representative image with feature data, the max features placeholder if more than maxFeaturesPerTile
+     * features intersect the tile, or null if no feature was drawn
+     */
+    private BufferedImage drawTileQuerySpatialIndex(int x, int y, int zoom, FeatureSpatialIndex spatialIndex) {
+        BoundingBox bbox = LayerUtility.XyzToBbox(x, y, zoom);
+        BoundingBox expandedBoundingBox = expandBoundingBox(bbox);
+
+        long[] ids = spatialIndex.queryIds(expandedBoundingBox);
+        if (ids.length == 0) {
+            return null;
+        }
+        if (maxFeaturesPerTile != null && ids.length > maxFeaturesPerTile) {
+            //like the GeoPackage index path: the max features placeholder (which only needs the count), else nothing
+            return maxFeaturesTileDraw != null ?
+                    maxFeaturesTileDraw.drawTile(tileWidth, tileHeight, ids.length, null) : null;
+        }
+
+        FeatureTileCanvas canvas = createCanvas(bbox);
+        GeometryBlobRenderer renderer = createRenderer(canvas, expandedBoundingBox);
+        queryGeometries(zoom, ids, geometry -> drawGeometry(renderer, geometry));
+
+        return canvas.finish();
+    }
+
     /**
      * Query for feature results in the x, y, and zoom level by querying features in the tile location
      *
@@ -138,40 +220,125 @@ class Epsg4326FeatureTiles extends FeatureTiles {
         return results;
     }
 
-    /*
-     * METHODS NOT IMPLEMENTED
-     */
     @Override
     public BufferedImage drawTile(int zoom, BoundingBox boundingBox, FeatureResultSet resultSet) {
+        FeatureTileCanvas canvas = createCanvas(boundingBox);
+        GeometryBlobRenderer renderer = createRenderer(canvas, expandBoundingBox(boundingBox));
+        int geometryColumn = featureDao.getTable().getGeometryColumnIndex();
+
+        while (resultSet.moveToNext()) {
+            drawGeometry(renderer, resultSet.getBlob(geometryColumn));
+        }
+
+        return canvas.finish();
+    }
+
+    @Override
+    public BufferedImage drawTile(int zoom, BoundingBox boundingBox, CloseableIterator<GeometryIndex> results) {
+        //collect the ids and read only the geometry blobs of those rows
+        long[] ids = collectIds(results);
 
+        FeatureTileCanvas canvas = createCanvas(boundingBox);
+        GeometryBlobRenderer renderer = createRenderer(canvas, expandBoundingBox(boundingBox));
+        queryGeometries(zoom, ids, geometry -> drawGeometry(renderer, geometry));
+
+        return canvas.finish();
+    }
+
+    @Override
+    public BufferedImage drawTile(int zoom, BoundingBox boundingBox, List<FeatureRow> featureRows) {
+        FeatureTileCanvas canvas = createCanvas(boundingBox);
         BoundingBox expandedBoundingBox = expandBoundingBox(boundingBox);
-        LayerUtility.XYZ xyz = LayerUtility.bboxToXyz(boundingBox);
 
-        // Create bitmap and canvas
-        BufferedImage bufferedImage = new BufferedImage((int) xyz.x, (int) xyz.y, (int) xyz.z);
-        Graphics2D graphics2D = (Graphics2D) bufferedImage.getGraphics();
+        for (FeatureRow row : featureRows) {
+            drawFeature(zoom, boundingBox, expandedBoundingBox, canvas, row);
+        }
 
-        boolean drawn = false;
-        for (FeatureRow featureRow : resultSet.getRow()) {
-            if (drawFeature(zoom, boundingBox, expandedBoundingBox, bufferedImage, featureRow)) {
-                drawn = true;
+        return canvas.finish();
+    }
+
+    /**
+     * @return a canvas for one tile, drawing with the current feature style
+     */
+    private FeatureTileCanvas createCanvas(BoundingBox boundingBox) {
+        return new FeatureTileCanvas(boundingBox, tileWidth, tileHeight, mFeatureStyle);
+    }
+
+    /**
+     * Finds the features whose envelope intersects the bounding box, through the GeoPackage index or the in-memory
+     * spatial index
+     * @param boundingBox - extent to search
+     * @return sorted feature ids, or null if the table has neither index
+     */
+    long[] queryFeatureIds(BoundingBox boundingBox) {
+        if (isIndexQuery()) {
+            CloseableIterator<GeometryIndex> results = featureIndex.query(boundingBox, WGS_84_PROJECTION);
+            try {
+                return collectIds(results);
+            } finally {
+                results.closeQuietly();
             }
         }
 
-        graphics2D.dispose();
+        Supplier<FeatureSpatialIndex> spatialIndexSupplier = mSpatialIndexSupplier;
+        FeatureSpatialIndex spatialIndex = spatialIndexSupplier != null ? spatialIndexSupplier.get() : null;
+        return spatialIndex != null ? spatialIndex.queryIds(boundingBox) : null;
+    }
 
-        return bufferedImage;
+    /**
+     * @return the sorted feature ids of the index results
+     */
+    private static long[] collectIds(CloseableIterator<GeometryIndex> results) {
+        long[] ids = new long[64];
+        int count = 0;
+        while (results.hasNext()) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+            }
+            ids[count++] = results.next().getGeomId();
+        }
+        ids = Arrays.copyOf(ids, count);
+        Arrays.sort(ids);   //rowid order reads the table sequentially
+        return ids;
+    }
 
+    /**
+     * Reads the geometry blobs of the given features, generalized for the zoom level when available
+     */
+    private void queryGeometries(int zoom, long[] ids, Consumer<byte[]> geometryConsumer) {
+        Supplier<GeneralizedGeometries> generalizedGeometriesSupplier = mGeneralizedGeometriesSupplier;
+        GeneralizedGeometries generalizedGeometries = generalizedGeometriesSupplier != null ?
+                generalizedGeometriesSupplier.get() : null;
+        if (generalizedGeometries == null || !generalizedGeometries.queryGeometries(zoom, ids, geometryConsumer)) {
+            FeatureSpatialIndex.queryGeometries(featureDao, ids, geometryConsumer);
+        }
     }
 
-    @Override
-    public BufferedImage drawTile(int zoom, BoundingBox boundingBox, CloseableIterator<GeometryIndex> closeableIterator) {
-        //When this object is indexed, use the more efficient index drawing method
-        LayerUtility.XYZ xyz = LayerUtility.bboxToXyz(boundingBox);
-        if (isIndexQuery()) {
-            return drawTileQueryIndex((int) xyz.x, (int) xyz.y, (int) xyz.z);
-        } else {
-            return drawTileQueryAll((int) xyz.x, (int) xyz.y, (int) xyz.z);
+    /**
+     * @return a renderer streaming geometry blobs onto the canvas
+     */
+    private GeometryBlobRenderer createRenderer(FeatureTileCanvas canvas, BoundingBox expandedBoundingBox) {
+        return new GeometryBlobRenderer(canvas, expandedBoundingBox, simplifyGeometries ? SIMPLIFY_TOLERANCE_PIXELS : 0);
+    }
+
+    /**
+     * Draw a GeoPackage geometry blob on the canvas, without decoding it to a Geometry
+     *
+     * @param renderer renderer of the tile
+     * @param geometry geometry blob (may be null)
+     * @return true if the feature was drawn
+     */
+    private boolean drawGeometry(GeometryBlobRenderer renderer, byte[] geometry) {
+        if (geometry == null) {
+            return false;
+        }
+
+        try {
+            return renderer.draw(geometry);
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, DefaultFeatureTiles.class.getSimpleName() + ": Failed to draw feature in tile. Table: "
+                    + featureDao.getTableName(), e);
+            return false;
         }
     }
 
@@ -181,11 +348,11 @@ class Epsg4326FeatureTiles extends FeatureTiles {
      * @param zoom                zoom level
      * @param boundingBox         bounding box
      * @param expandedBoundingBox expanded bounding box
-     * @param bufferedImage       image to draw on
+     * @param canvas              tile canvas to draw on
      * @param row                 feature row
      * @return true if at least one feature was drawn
      */
-    private boolean drawFeature(int zoom, BoundingBox boundingBox, BoundingBox expandedBoundingBox, BufferedImage bufferedImage, FeatureRow row) {
+    private boolean drawFeature(int zoom, BoundingBox boundingBox, BoundingBox expandedBoundingBox, FeatureTileCanvas canvas, FeatureRow row) {
 
         boolean drawn = false;
 
@@ -197,12 +364,11 @@ class Epsg4326FeatureTiles extends FeatureTiles {
 
                     GeometryEnvelope envelope = geomData.getOrBuildEnvelope();
                     BoundingBox geometryBoundingBox = new BoundingBox(envelope);
-//                    BoundingBox transformedBoundingBox = geometryBoundingBox.transform(transform);
 
                     if (expandedBoundingBox.intersects(geometryBoundingBox, true)) {
 
-                        double simplifyTolerance = TileBoundingBoxUtils.toleranceDistance(zoom, tileWidth, tileHeight);
-                        drawShape(simplifyTolerance, boundingBox, bufferedImage, geometry);
+                        double simplifyTolerance = simplifyGeometries ? SIMPLIFY_TOLERANCE_PIXELS : 0;
+                        drawShape(simplifyTolerance, boundingBox, canvas, geometry);
 
                         drawn = true;
                     }
@@ -217,79 +383,76 @@ class Epsg4326FeatureTiles extends FeatureTiles {
     }
 
     /**
-     * Draw the geometry on the canvas
+     * Add the geometry to the canvas
      *
-     * @param simplifyTolerance simplify tolerance in meters
+     * @param simplifyTolerance simplify tolerance in pixels
      * @param boundingBox
-     * @param bufferedImage
+     * @param canvas
      * @param geometry
      */
-    private void drawShape(double simplifyTolerance, BoundingBox boundingBox, BufferedImage bufferedImage, Geometry geometry) {
+    private void drawShape(double simplifyTolerance, BoundingBox boundingBox, FeatureTileCanvas canvas, Geometry geometry) {
 
         switch (geometry.getGeometryType()) {
 
             case POINT:
-                Point point = (Point) geometry;
-                drawPoint(boundingBox, bufferedImage, pointPaint.getColor(), point);
+                drawPoint(boundingBox, canvas, (Point) geometry);
                 break;
             case LINESTRING:
             case CIRCULARSTRING:
-                LineString lineString = (LineString) geometry;
-                Path2D linePath = new Path2D.Float();
-                addLineString(simplifyTolerance, boundingBox, linePath, lineString);
-                drawLinePath(bufferedImage, linePath);
+                canvas.beginLine();
+                addLineString(simplifyTolerance, boundingBox, canvas, (LineString) geometry);
+                canvas.endLine();
                 break;
             case POLYGON:
             case TRIANGLE:
-                Polygon polygon = (Polygon) geometry;
-                Path2D polygonPath = new Path2D.Float();
-                addPolygon(simplifyTolerance, boundingBox, polygonPath, polygon);
-                drawPolygonPath(bufferedImage, polygonPath);
+                canvas.beginPolygon();
+                addPolygon(simplifyTolerance, boundingBox, canvas, (Polygon) geometry);
+                canvas.endPolygon();
                 break;
             case MULTIPOINT:
                 MultiPoint multiPoint = (MultiPoint) geometry;
                 for (Point pointFromMulti : multiPoint.getPoints()) {
-                    drawPoint(boundingBox, bufferedImage, pointPaint.getColor(), pointFromMulti);
+                    drawPoint(boundingBox, canvas, pointFromMulti);
                 }
                 break;
             case MULTILINESTRING:
                 MultiLineString multiLineString = (MultiLineString) geometry;
-                Path2D multiLinePath = new Path2D.Float();
+                canvas.beginLine();
                 for (LineString lineStringFromMulti : multiLineString.getLineStrings()) {
-                    addLineString(simplifyTolerance, boundingBox, multiLinePath, lineStringFromMulti);
+                    addLineString(simplifyTolerance, boundingBox, canvas, lineStringFromMulti);
                 }
-                drawLinePath(bufferedImage, multiLinePath);
+                canvas.endLine();
                 break;
             case MULTIPOLYGON:
                 MultiPolygon multiPolygon = (MultiPolygon) geometry;
-                Path2D multiPolygonPath = new Path2D.Float();
                 for (Polygon polygonFromMulti : multiPolygon.getPolygons()) {
-                    addPolygon(simplifyTolerance, boundingBox, multiPolygonPath, polygonFromMulti);
+                    canvas.beginPolygon();
+                    addPolygon(simplifyTolerance, boundingBox, canvas, polygonFromMulti);
+                    canvas.endPolygon();
                 }
-                drawPolygonPath(bufferedImage, multiPolygonPath);
                 break;
             case COMPOUNDCURVE:
                 CompoundCurve compoundCurve = (CompoundCurve) geometry;
-                Path2D compoundCurvePath = new Path2D.Float();
+                canvas.beginLine();
                 for (LineString lineStringFromCompoundCurve : compoundCurve.getLineStrings()) {
-                    addLineString(simplifyTolerance, boundingBox, compoundCurvePath, lineStringFromCompoundCurve);
+                    addLineString(simplifyTolerance, boundingBox, canvas, lineStringFromCompoundCurve);
                 }
-                drawLinePath(bufferedImage, compoundCurvePath);
+                canvas.endLine();
                 break;
             case POLYHEDRALSURFACE:
             case TIN:
                 PolyhedralSurface polyhedralSurface = (PolyhedralSurface) geometry;
-                Path2D polyhedralSurfacePath = new Path2D.Float();
                 for (Polygon polygonFromPolyhedralSurface : polyhedralSurface.getPolygons()) {
-                    addPolygon(simplifyTolerance, boundingBox, polyhedralSurfacePath, polygonFromPolyhedralSurface);
+                    canvas.beginPolygon();
+                    addPolygon(simplifyTolerance, boundingBox, canvas, polygonFromPolyhedralSurface);
+                    canvas.endPolygon();
                 }
-                drawPolygonPath(bufferedImage, polyhedralSurfacePath);
                 break;
             case GEOMETRYCOLLECTION:
                 GeometryCollection<Geometry> geometryCollection = (GeometryCollection) geometry;
                 List<Geometry> geometries = geometryCollection.getGeometries();
                 for (Geometry geometryFromCollection : geometries) {
-                    drawShape(simplifyTolerance, boundingBox, bufferedImage, geometryFromCollection);
+                    drawShape(simplifyTolerance, boundingBox, canvas, geometryFromCollection);
                 }
                 break;
             default:
@@ -300,79 +463,28 @@ class Epsg4326FeatureTiles extends FeatureTiles {
     }
 
     /**
-     * Draw the line path on the canvas
-     *
-     * @param bufferedImage
-     * @param path
-     */
-    private void drawLinePath(BufferedImage bufferedImage, Path2D path) {
-        Graphics2D graphics2D = (Graphics2D) bufferedImage.getGraphics();
-        graphics2D.draw(path);
-        graphics2D.dispose();
-    }
-
-    /**
-     * Draw the path on the canvas
-     *
-     * @param bufferedImage
-     * @param path
-     */
-    private void drawPolygonPath(BufferedImage bufferedImage, Path2D path) {
-        Graphics2D graphics2D = (Graphics2D) bufferedImage.getGraphics();
-        path.closePath();
-        java.awt.Polygon polygon = (java.awt.Polygon) path.createTransformedShape(null);
-        graphics2D.drawPolygon(polygon);
-        if (fillPolygon) {
-            java.awt.Paint paint = graphics2D.getPaint();
-            Color color = polygonFillPaint.getColor();
-            graphics2D.setPaint(color);
-            graphics2D.fillPolygon(polygon);
-            graphics2D.setPaint(paint);
-        }
-        graphics2D.dispose();
-    }
-
-    /**
-     * Add the linestring to the path
+     * Add the linestring to the canvas
      *
-     * @param simplifyTolerance simplify tolerance in meters
+     * @param simplifyTolerance simplify tolerance in pixels
      * @param boundingBox
-     * @param path
+     * @param canvas
      * @param lineString
      */
-    private void addLineString(double simplifyTolerance, BoundingBox boundingBox, Path2D path, LineString lineString) {
-
-        List<Point> points = lineString.getPoints();
-
-        if (points.size() >= 2) {
-
-            // Try to simplify the number of points in the LineString
-            points = simplifyPoints(simplifyTolerance, points);
-
-            for (int i = 0; i < points.size(); i++) {
-                Point point = points.get(i);
-                float x = TileBoundingBoxUtils.getXPixel(tileWidth, boundingBox,
-                        point.getX());
-                float y = TileBoundingBoxUtils.getYPixel(tileHeight, boundingBox,
-                        point.getY());
-                if (i == 0) {
-                    path.moveTo(x, y);
-                } else {
-                    path.lineTo(x, y);
-                }
-            }
+    private void addLineString(double simplifyTolerance, BoundingBox boundingBox, FeatureTileCanvas canvas, LineString lineString) {
+        if (fillCoordinateBuffer(simplifyTolerance, canvas, lineString.getPoints())) {
+            canvas.getCoordinateBuffer().emitLine(canvas);
         }
     }
 
     /**
-     * Add the polygon on the canvas
+     * Add the polygon to the canvas
      *
-     * @param simplifyTolerance simplify tolerance in meters
+     * @param simplifyTolerance simplify tolerance in pixels
      * @param boundingBox
-     * @param path
+     * @param canvas
      * @param polygon
      */
-    private void addPolygon(double simplifyTolerance, BoundingBox boundingBox, Path2D path, Polygon polygon) {
+    private void addPolygon(double simplifyTolerance, BoundingBox boundingBox, FeatureTileCanvas canvas, Polygon polygon) {
         List<LineString> rings = polygon.getRings();
 
         if (!rings.isEmpty()) {
@@ -381,14 +493,14 @@ class Epsg4326FeatureTiles extends FeatureTiles {
             LineString polygonLineString = rings.get(0);
             List<Point> polygonPoints = polygonLineString.getPoints();
             if (polygonPoints.size() >= 2) {
-                addRing(simplifyTolerance, boundingBox, path, polygonPoints);
+                addRing(simplifyTolerance, boundingBox, canvas, polygonPoints);
 
                 // Add the holes
                 for (int i = 1; i < rings.size(); i++) {
                     LineString holeLineString = rings.get(i);
                     List<Point> holePoints = holeLineString.getPoints();
                     if (holePoints.size() >= 2) {
-                        addRing(simplifyTolerance, boundingBox, path, holePoints);
+                        addRing(simplifyTolerance, boundingBox, canvas, holePoints);
                     }
                 }
             }
@@ -398,103 +510,48 @@ class Epsg4326FeatureTiles extends FeatureTiles {
     /**
      * Add a ring
      *
-     * @param simplifyTolerance simplify tolerance in meters
+     * @param simplifyTolerance simplify tolerance in pixels
      * @param boundingBox
-     * @param path
+     * @param canvas
      * @param points
      */
-    private void addRing(double simplifyTolerance, BoundingBox boundingBox, Path2D path, List<Point> points) {
-
-        // Try to simplify the number of points in the LineString
-        points = simplifyPoints(simplifyTolerance, points);
-
-        for (int i = 0; i < points.size(); i++) {
-            Point point = points.get(i);
-            float x = TileBoundingBoxUtils.getXPixel(tileWidth, boundingBox,
-                    point.getX());
-            float y = TileBoundingBoxUtils.getYPixel(tileHeight, boundingBox,
-                    point.getY());
-            if (i == 0) {
-                path.moveTo(x, y);
-            } else {
-                path.lineTo(x, y);
-            }
+    private void addRing(double simplifyTolerance, BoundingBox boundingBox, FeatureTileCanvas canvas, List<Point> points) {
+        if (fillCoordinateBuffer(simplifyTolerance, canvas, points)) {
+            canvas.getCoordinateBuffer().emitRing(canvas);
         }
-        path.closePath();
     }
 
     /**
-     * Draw the point on the canvas
+     * Transforms the points into the canvas' reusable coordinate buffer and simplifies them in place
      *
-     * @param boundingBox
-     * @param bufferedImage
-     * @param color
-     * @param point
+     * @return true if at least two points remain
      */
-    private void drawPoint(BoundingBox boundingBox, BufferedImage bufferedImage, Color color, Point point) {
-
-        float x = TileBoundingBoxUtils.getXPixel(tileWidth, boundingBox,
-                point.getX());
-        float y = TileBoundingBoxUtils.getYPixel(tileHeight, boundingBox,
-                point.getY());
-        Graphics2D graphics2D = (Graphics2D) bufferedImage.getGraphics();
-
-        if (pointIcon != null) {
-            if (x >= 0 - pointIcon.getWidth() && x <= tileWidth + pointIcon.getWidth() && y >= 0 - pointIcon.getHeight() && y <= tileHeight + pointIcon.getHeight()) {
-                graphics2D.drawImage(pointIcon.getIcon(), Math.round(x - pointIcon.getXOffset()), Math.round(y - pointIcon.getYOffset()), color, null);
-            }
-        } else {
-            if (x >= 0 - pointRadius && x <= tileWidth + pointRadius && y >= 0 - pointRadius && y <= tileHeight + pointRadius) {
-                graphics2D.drawOval(Math.round(x), Math.round(y), Math.round(pointRadius), Math.round(pointRadius));
-            }
-        }
-        graphics2D.dispose();
-    }
-
-    @Override
-    public Bitmap drawTile(int zoom, BoundingBox boundingBox, FeatureCursor cursor) {
-        Bitmap bitmap = createNewBitmap();
-        Canvas canvas = new Canvas(bitmap);
-
-        BoundingBox expandedBoundingBox = expandBoundingBox(boundingBox);
-
-        boolean drawn = false;
-        while (cursor.moveToNext()) {
-            FeatureRow row = cursor.getRow();
-            if (drawFeature(zoom, boundingBox, expandedBoundingBox, canvas, row)) {
-                drawn = true;
-            }
+    private static boolean fillCoordinateBuffer(double simplifyTolerance, FeatureTileCanvas canvas, List<Point> points) {
+        if (points.size() < 2) {
+            return false;
         }
 
-        cursor.close();
-        if (!drawn) {
-            bitmap.recycle();
-            bitmap = null;
+        TileTransform transform = canvas.getTransform();
+        CoordinateBuffer buffer = canvas.getCoordinateBuffer();
+        buffer.clear();
+        for (int i = 0; i < points.size(); i++) {
+            Point point = points.get(i);
+            buffer.add(transform, point.getX(), point.getY());
         }
+        buffer.simplify(simplifyTolerance);
 
-        return bitmap;
+        return buffer.size() >= 2;
     }
 
-    @Override
-    public Bitmap drawTile(int zoom, BoundingBox boundingBox, List<FeatureRow> featureRow) {
-
-        Bitmap bitmap = createNewBitmap();
-        Canvas canvas = new Canvas(bitmap);
-
-        BoundingBox expandedBoundingBox = expandBoundingBox(boundingBox);
-
-        boolean drawn = false;
-        for (FeatureRow row : featureRow) {
-            if (drawFeature(zoom, boundingBox, expandedBoundingBox, canvas, row)) {
-                drawn = true;
-            }
-        }
-
-        if (!drawn) {
-            bitmap.recycle();
-            bitmap = null;
-        }
-
-        return bitmap;
+    /**
+     * Add the point to the canvas
+     *
+     * @param boundingBox
+     * @param canvas
+     * @param point
+     */
+    private void drawPoint(BoundingBox boundingBox, FeatureTileCanvas canvas, Point point) {
+        TileTransform transform = canvas.getTransform();
+        canvas.point(transform.x(point.getX()), transform.y(point.getY()));
     }
 }
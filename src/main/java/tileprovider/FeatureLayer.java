@@ -1,11 +1,10 @@
 package tileprovider;
 
 import android.graphics.Bitmap;
-import android.graphics.Color;
-import android.graphics.Paint;
 import android.util.Log;
 import mil.nga.geopackage.BoundingBox;
 import mil.nga.geopackage.GeoPackage;
+import mil.nga.geopackage.GeoPackageException;
 import mil.nga.geopackage.features.index.FeatureIndexManager;
 import mil.nga.geopackage.features.index.FeatureIndexResults;
 import mil.nga.geopackage.features.index.FeatureIndexType;
@@ -17,14 +16,20 @@ import mil.nga.geopackage.tiles.features.DefaultFeatureTiles;
 import mil.nga.geopackage.tiles.features.FeatureTiles;
 import mil.nga.geopackage.user.ColumnValue;
 import mil.nga.sf.GeometryEnvelope;
+import mil.nga.sf.GeometryType;
 import mil.nga.sf.geojson.Feature;
 import mil.nga.sf.geojson.FeatureConverter;
 import org.geotools.util.logging.Logging;
 import org.springframework.lang.Nullable;
 
 import javax.validation.constraints.NotNull;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -38,8 +43,38 @@ import java.util.logging.Logger;
 class FeatureLayer extends Layer {
 
     static final Logger LOGGER = Logging.getLogger(FeatureLayer.class);
+
+    /**
+     * Deepest zoom level used when mosaicking feature tiles for extents which aren't a single tile
+     */
+    private static final int MAX_MOSAIC_ZOOM = 22;
+
+    /**
+     * Interval between looks for the generalized geometries while they are being built
+     */
+    private static final long GENERALIZED_CHECK_INTERVAL_MS = 10000;
+
+    /**
+     * Features encoded into one vector tile when the layer sets no max features
+     */
+    private static final int MAX_VECTOR_TILE_FEATURES = 50000;
     private FeatureTilesHolder featureTilesHolder;      //Instance of the drawing tool for this layer
-    private GeoPackageProgressImpl mGeoPackageProgress = null;  //instance of progress for Geopackage (for indexing)
+    private volatile GeoPackageProgressImpl mGeoPackageProgress = null;  //instance of progress for Geopackage (for indexing)
+    private volatile FeatureSpatialIndex mSpatialIndex = null;  //in-memory index for unindexed tables (built lazily)
+    private volatile GeneralizedGeometries mGeneralizedGeometries = null;  //simplified geometries per zoom band
+    private volatile long mGeneralizedGeometriesChecked = 0;    //last time the generalized geometries were looked for
+    private volatile PointRenderMode mPointRenderMode = PointRenderMode.FEATURES;
+    private volatile int mPointAggregationMaxZoom = 0;
+    private volatile PointDensityGrid mPointDensityGrid = null;  //aggregated point counts (built lazily)
+
+    /**
+     * How the features of the layer are drawn at zoom levels where points are aggregated
+     */
+    public enum PointRenderMode {
+        FEATURES,   //every feature is drawn
+        CLUSTERS,   //one circle per grid cell, sized by the number of points in it
+        HEATMAP     //grid cells colored by point density
+    }
 
     //Constructor
     FeatureLayer(LayerInfo layerInfo) {
@@ -48,10 +83,7 @@ class FeatureLayer extends Layer {
         FeatureStyle featureStyle = new FeatureStyle();
 
         featureTilesHolder = new FeatureTilesHolder(featureStyle);
-        FeatureTiles featureTiles = featureTilesHolder.getFeatureTiles();
-
-        //PNG supports transparency for overlaying points on a map
-        featureTiles.setCompressFormat(Bitmap.CompressFormat.PNG);
+        featureTilesHolder.getFeatureTiles();   //connect now rather than on the first draw
 
     }
 
@@ -63,19 +95,119 @@ class FeatureLayer extends Layer {
      * @param height - height of tile
      * @return a drawn bitmap representing the requested data
      */
-    public Bitmap draw(BoundingBox bbox, int width, int height) {
+    public BufferedImage draw(BoundingBox bbox, int width, int height) {
+        //reads through the shared connection, which the pool must not close meanwhile
+        try (GeoPackagePool.SharedUse sharedUse = GeoPackageProvider.getInstance().useShared(getDatabaseName())) {
+            if (!LayerUtility.isTileAligned(bbox)) {
+                return drawMosaic(bbox, width, height);
+            }
 
-        LayerUtility.XYZ xyz = LayerUtility.bboxToXyz(bbox);
+            LayerUtility.XYZ xyz = LayerUtility.bboxToXyz(bbox);
+            return drawTile((int) xyz.x, (int) xyz.y, (int) xyz.z);
+        }
+    }
 
-        FeatureTiles featureTiles = getFeatureTiles();
+    /**
+     * Draws an arbitrary extent from the feature tiles covering it (at the zoom level best matching the requested
+     * resolution), so that cached tiles are reused for extents which don't line up with the tile grid
+     */
+    private BufferedImage drawMosaic(BoundingBox bbox, int width, int height) {
+        TileMosaic mosaic = TileMosaic.create(bbox, width, height, getFeatureTiles().getTileWidth(), MAX_MOSAIC_ZOOM);
+        if (mosaic == null) {
+            return null;
+        }
 
-        //TODO: This paint color and style should be configurable
-        Paint paint = featureTiles.getPointPaint();
-        paint.setColor(Color.argb(255,200,255,200));
+        BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = bufferedImage.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+
+        boolean drawn = false;
+        int z = mosaic.getZoom();
+        for (long row = mosaic.getMinRow(); row <= mosaic.getMaxRow(); row++) {
+            for (long column = mosaic.getMinColumn(); column <= mosaic.getMaxColumn(); column++) {
+                BufferedImage tile = drawTile((int) column, (int) row, z);
+                if (tile != null) {
+                    mosaic.drawTile(graphics, tile, column, row, z);
+                    drawn = true;
+                }
+            }
+        }
+        graphics.dispose();
+
+        return drawn ? bufferedImage : null;
+    }
+
+    /**
+     * Draws one tile of the EPSG:4326 tile grid
+     * @return tile image or null if nothing was drawn
+     */
+    private BufferedImage drawTile(int x, int y, int z) {
+        //dense point layers are drawn from the precomputed grid at low zoom levels
+        //one snapshot, so the tile is drawn and cached with the same style
+        StyledFeatureTiles styledFeatureTiles = featureTilesHolder.getStyledFeatureTiles();
+        FeatureTiles featureTiles = styledFeatureTiles.getFeatureTiles();
+
+        PointRenderMode pointRenderMode = mPointRenderMode;
+        if (pointRenderMode != PointRenderMode.FEATURES && z <= mPointAggregationMaxZoom) {
+            PointDensityGrid grid = getPointDensityGrid();
+            if (grid != null && z <= grid.getMaxZoom()) {
+                return grid.drawTile(x, y, z, featureTiles.getTileWidth(), featureTiles.getTileHeight(),
+                        pointRenderMode == PointRenderMode.HEATMAP, styledFeatureTiles.getFeatureStyle());
+            }
+        }
+
+        //Previously rendered tiles are served from the persistent cache
+        FeatureTileCache tileCache = FeatureTileCache.getInstance();
+        String styleHash = styledFeatureTiles.getCacheKey();
+        long generation = tileCache.getGeneration(getDatabaseName());   //before reading any data
+        FeatureTileCache.CachedTile cachedTile = tileCache.get(getDatabaseName(), getTableName(), styleHash, x, y, z);
+        if (cachedTile != null) {
+            return cachedTile.getImage();
+        }
+
+        //colors and strokes come from the layer's FeatureStyle
+        BufferedImage bufferedImage = featureTiles.drawTile(x, y, z);
 
-        featureTiles.setPointPaint(paint);
+        //populate the cache off the request thread
+        tileCache.putAsync(getDatabaseName(), getTableName(), styleHash, generation, x, y, z, bufferedImage);
+
+        return bufferedImage;
+    }
+
+    /**
+     * Encodes the features of a tile as a Mapbox Vector Tile.  Features are found through the GeoPackage index or the
+     * in-memory spatial index; their geometries are clipped and quantized to the tile and their columns become
+     * attributes.
+     * @return encoded vector tile or null if no feature intersects the tile
+     * @throws TooManyFeaturesException if more features than the layer's max features (or MAX_VECTOR_TILE_FEATURES)
+     * intersect the tile -- nothing is read then
+     */
+    @Override
+    public byte[] getVectorTile(int x, int y, int z) {
+        try (GeoPackagePool.SharedUse sharedUse = GeoPackageProvider.getInstance().useShared(getDatabaseName())) {
+            FeatureTiles featureTiles = getFeatureTiles();
+            if (!(featureTiles instanceof Epsg4326FeatureTiles)) {
+                return null;
+            }
+
+            BoundingBox bbox = LayerUtility.XyzToBbox(x, y, z);
+            long[] ids = ((Epsg4326FeatureTiles) featureTiles).queryFeatureIds(MvtEncoder.expandBoundingBox(bbox));
+            if (ids == null || ids.length == 0) {
+                return null;
+            }
+
+            //raster tiles over the limit are drawn as a placeholder; a vector tile is refused rather than cut at the
+            //limit, which would silently (and, through the rendered tile cache, lastingly) drop features
+            Integer maxFeatures = featureTiles.getMaxFeaturesPerTile();
+            int limit = maxFeatures != null ? maxFeatures : MAX_VECTOR_TILE_FEATURES;
+            if (ids.length > limit) {
+                throw new TooManyFeaturesException(getLayerName(), ids.length, limit);
+            }
 
-        return featureTiles.drawTile((int)xyz.x, (int)xyz.y, (int)xyz.z);
+            MvtEncoder encoder = new MvtEncoder(getLayerName(), bbox);
+            encoder.addFeatures(featureTiles.getFeatureDao(), ids);
+            return encoder.encode();
+        }
     }
 
     /**
@@ -89,45 +221,57 @@ class FeatureLayer extends Layer {
      * @return
      */
     public Collection<Feature> getGeoJsonFeatures(BoundingBox bbox, int width, int height, int i, int j, float pixelRadius) {
-        Collection<Feature> features = new LinkedList<>();
-
-        //generate the search extent based on selected position and search radius
-        BoundingBox selectionBox = LayerUtility.selectionArea(bbox, width, height, i, j, pixelRadius);
-
-        //get our DAO
-        FeatureTiles featureTiles = getFeatureTiles();
-        FeatureDao dao = featureTiles.getFeatureDao();
+        try (GeoPackagePool.SharedUse sharedUse = GeoPackageProvider.getInstance().useShared(getDatabaseName())) {
+            Collection<Feature> features = new LinkedList<>();
+
+            //generate the search extent based on selected position and search radius
+            BoundingBox selectionBox = LayerUtility.selectionArea(bbox, width, height, i, j, pixelRadius);
+
+            //get our DAO
+            FeatureTiles featureTiles = getFeatureTiles();
+            FeatureDao dao = featureTiles.getFeatureDao();
+
+            //Do either an indexed search if available or a full search if not
+            if (featureTiles.isIndexQuery()) {
+                //indexed
+                FeatureIndexResults results = featureTiles.queryIndexedFeatures(selectionBox);
+                if (results.count() > 0) {
+                    for (FeatureRow row : results) {
+                        Feature feature = rowToFeature(row, selectionBox);
+
+                        if (feature != null) {
+                            features.add(feature);
+                        }
+                    }
+                }
+                results.close();
 
-        //Do either an indexed search if available or a full search if not
-        if (featureTiles.isIndexQuery()) {
-            //indexed
-            FeatureIndexResults results = featureTiles.queryIndexedFeatures(selectionBox);
-            if (results.count() > 0) {
-                for (FeatureRow row : results) {
+            } else if (getSpatialIndex() != null) {
+                //not indexed -- candidates from the in-memory spatial index
+                long[] ids = getSpatialIndex().queryIds(selectionBox);
+                FeatureSpatialIndex.queryRows(dao, ids, row -> {
                     Feature feature = rowToFeature(row, selectionBox);
+                    if (feature != null) {
+                        features.add(feature);
+                    }
+                });
 
+            } else {
+                //not indexed
+                FeatureCursor cursor = dao.queryForAll();
+                while (cursor.moveToNext()) {
+                    Feature feature = rowToFeature(cursor.getRow(), selectionBox);
                     if (feature != null) {
                         features.add(feature);
                     }
                 }
-            }
-            results.close();
-
-        } else {
-            //not indexed
-            FeatureCursor cursor = dao.queryForAll();
-            while (cursor.moveToNext()) {
-                Feature feature = rowToFeature(cursor.getRow(), selectionBox);
-                if (feature != null) {
-                    features.add(feature);
-                }
-            }
 
 
-            cursor.close();
-        }
+                cursor.close();
+            }
 
-        return features;
+            return features;
+        }
     }
 
     /**
@@ -167,29 +311,75 @@ class FeatureLayer extends Layer {
     //SETTER
     public void setFeatureStyle(FeatureStyle featureStyle) {
         featureTilesHolder.setStyle(featureStyle);
+        RenderedTileCache.getInstance().invalidateLayer(getLayerName());
     }
 
     /**
-     * Limits the number of features drawn to a tile
+     * Aggregates the layer's points into clusters or a heatmap at low zoom levels, where drawing every point is both
+     * slow and unreadable.  The aggregation is precomputed per zoom level on first use.
+     * @param pointRenderMode - how aggregated zoom levels are drawn (FEATURES turns aggregation off)
+     * @param maxZoom - deepest zoom level drawn aggregated (may be lowered to bound the grid's memory)
+     */
+    public void setPointRenderMode(PointRenderMode pointRenderMode, int maxZoom) {
+        synchronized (this) {
+            if (maxZoom > mPointAggregationMaxZoom) {
+                mPointDensityGrid = null;   //rebuilt with the deeper levels
+            }
+            mPointAggregationMaxZoom = maxZoom;
+            mPointRenderMode = pointRenderMode;
+        }
+        RenderedTileCache.getInstance().invalidateLayer(getLayerName());
+    }
+
+    /**
+     * Limits the number of features drawn to a raster tile (placeholder drawn above it) or encoded into a vector tile
+     * (refused above it)
      * @param maxFeatures - No max features implemented when set to null
      */
     public void setMaxFeatures(@Nullable Integer maxFeatures) {
-        getFeatureTiles().setMaxFeaturesPerTile(maxFeatures);
+        featureTilesHolder.setMaxFeaturesPerTile(maxFeatures);
+        RenderedTileCache.getInstance().invalidateLayer(getLayerName());
     }
 
 
     /**
-     * Indexes the feature data for this layer
+     * Indexes the feature data for this layer, opening a writable connection for the duration
      * @param overwrite - Overwrites any previous index if true
      * @param progressListener - A listener for reporting index progress
      */
-    public void index(boolean overwrite, LayerIndexProgressListener progressListener, String dbName) {
+    @Override
+    public void index(boolean overwrite, LayerIndexProgressListener progressListener) {
         //Open a new writable geopackage for indexing
-    //            GeoPackage geoPackage = mGeoPackageManager.open(layer.getDatabaseName(), true);
-        GeoPackage geoPackage = GeoPackageProvider.getInstance().getGeoPackage(dbName);
+        GeoPackage geoPackage = null;
+        try {
+            geoPackage = GeoPackageProvider.getInstance().getGeoPackageManager().open(getDatabaseName(), true);
+        } catch (GeoPackageException ex) {
+            ex.printStackTrace();
+        }
 
-        if (geoPackage != null) {
+        if (geoPackage == null) {
+            progressListener.onTaskComplete(false);
+            return;
+        }
 
+        try {
+            index(geoPackage, overwrite, progressListener);
+        } finally {
+            geoPackage.close();
+        }
+    }
+
+    /**
+     * Indexes the feature data for this layer through the given writable connection.  Callers indexing several
+     * layers of the same database should share one connection (SQLite allows a single writer per file).
+     * @param geoPackage - open, writable GeoPackage holding this layer
+     * @param overwrite - Overwrites any previous index if true
+     * @param progressListener - A listener for reporting index progress; onTaskComplete is always called
+     */
+    void index(GeoPackage geoPackage, boolean overwrite, LayerIndexProgressListener progressListener) {
+        boolean isSuccessful = false;
+
+        try {
             //cancel any currently running indexing tasks
             cancelIndex();
 
@@ -197,13 +387,20 @@ class FeatureLayer extends Layer {
             manager.setIndexLocation(FeatureIndexType.GEOPACKAGE);
 
             //Set a progress callback using Geopackage progress interface.  Set global so that cancel can be called.
-            mGeoPackageProgress = new GeoPackageProgressImpl(progressListener, featureTilesHolder.getFeatureTiles().getFeatureDao().count());
-            manager.setProgress(mGeoPackageProgress);
+            GeoPackageProgressImpl geoPackageProgress = new GeoPackageProgressImpl(progressListener, featureTilesHolder.getFeatureTiles().getFeatureDao().count());
+            mGeoPackageProgress = geoPackageProgress;
+            manager.setProgress(geoPackageProgress);
 
             manager.index(overwrite);
-
-            featureTilesHolder.getFeatureTiles().setFeatureIndex(manager.getFeatureTableIndex());
-
+            manager.close();
+
+            isSuccessful = geoPackageProgress.isActive();
+        } catch (GeoPackageException ex) {
+            LOGGER.log(Level.WARNING, getClass().getSimpleName() + ": Failed to index " + getLayerName(), ex);
+        } finally {
+            //the writable connection is closed by the caller -- reattach the index through the shared read connection
+            featureTilesHolder.reload();
+            progressListener.onTaskComplete(isSuccessful);
         }
 
     }
@@ -224,6 +421,113 @@ class FeatureLayer extends Layer {
         }
     }
 
+    /**
+     * Returns the in-memory spatial index of the feature table, loading it from its sidecar file or building it on
+     * first use
+     * @return the index or null if it could not be built
+     */
+    private FeatureSpatialIndex getSpatialIndex() {
+        FeatureSpatialIndex spatialIndex = mSpatialIndex;
+        if (spatialIndex == null) {
+            synchronized (this) {
+                spatialIndex = mSpatialIndex;
+                if (spatialIndex == null) {
+                    File geoPackageFile = null;
+                    try {
+                        geoPackageFile = GeoPackageProvider.getInstance().getGeoPackageManager().getFile(getDatabaseName());
+                    } catch (GeoPackageException ex) {
+                        LOGGER.log(Level.INFO, getClass().getSimpleName() + ": No file for " + getDatabaseName() +
+                                ", spatial index kept in memory only", ex);
+                    }
+
+                    spatialIndex = FeatureSpatialIndex.load(getFeatureTiles().getFeatureDao(), geoPackageFile);
+                    mSpatialIndex = spatialIndex;
+                }
+            }
+        }
+
+        return spatialIndex;
+    }
+
+    /**
+     * Returns the point counts aggregated per zoom level, building them from the spatial index on first use
+     * @return the grid or null if the spatial index could not be built
+     */
+    private PointDensityGrid getPointDensityGrid() {
+        PointDensityGrid grid = mPointDensityGrid;
+        if (grid == null) {
+            synchronized (this) {
+                grid = mPointDensityGrid;
+                if (grid == null) {
+                    FeatureSpatialIndex spatialIndex = getSpatialIndex();
+                    if (spatialIndex != null) {
+                        grid = PointDensityGrid.build(spatialIndex, mPointAggregationMaxZoom);
+                        mPointDensityGrid = grid;
+                    }
+                }
+            }
+        }
+
+        return grid;
+    }
+
+    @Override
+    public void close() {
+        GeneralizedGeometries generalizedGeometries;
+        synchronized (this) {
+            generalizedGeometries = mGeneralizedGeometries;
+            mGeneralizedGeometries = null;
+            if (mGeneralizedGeometriesChecked != Long.MAX_VALUE) {
+                mGeneralizedGeometriesChecked = System.currentTimeMillis();   //no reopening by requests still in flight
+            }
+        }
+        if (generalizedGeometries != null) {
+            generalizedGeometries.close();
+        }
+    }
+
+    /**
+     * Returns the generalized geometries of the feature table, scheduling their background build if they don't exist.
+     * Point layers have nothing to generalize.
+     * @return the generalized geometries or null if not (yet) available
+     */
+    private GeneralizedGeometries getGeneralizedGeometries() {
+        GeneralizedGeometries generalizedGeometries = mGeneralizedGeometries;
+        if (generalizedGeometries != null) {
+            return generalizedGeometries;
+        }
+
+        //look again (e.g. for a completed build) at most every GENERALIZED_CHECK_INTERVAL_MS
+        long now = System.currentTimeMillis();
+        if (now - mGeneralizedGeometriesChecked < GENERALIZED_CHECK_INTERVAL_MS) {
+            return null;
+        }
+
+        synchronized (this) {
+            if (mGeneralizedGeometries == null && now - mGeneralizedGeometriesChecked >= GENERALIZED_CHECK_INTERVAL_MS) {
+                mGeneralizedGeometriesChecked = now;
+
+                FeatureDao featureDao = getFeatureTiles().getFeatureDao();
+                GeometryType geometryType = featureDao.getGeometryType();
+                if (geometryType == GeometryType.POINT || geometryType == GeometryType.MULTIPOINT) {
+                    mGeneralizedGeometriesChecked = Long.MAX_VALUE;
+                    return null;
+                }
+
+                try {
+                    File geoPackageFile = GeoPackageProvider.getInstance().getGeoPackageManager().getFile(getDatabaseName());
+                    mGeneralizedGeometries = GeneralizedGeometries.open(featureDao, geoPackageFile);
+                } catch (GeoPackageException ex) {
+                    LOGGER.log(Level.INFO, getClass().getSimpleName() + ": No file for " + getDatabaseName() +
+                            ", geometries are not generalized", ex);
+                    mGeneralizedGeometriesChecked = Long.MAX_VALUE;
+                }
+            }
+
+            return mGeneralizedGeometries;
+        }
+    }
+
     /**
      * @return the feature drawing tool object
      */
@@ -234,70 +538,91 @@ class FeatureLayer extends Layer {
 
     /**
      * This class holds an instance of FeatureTiles. If the underlying geopackage is closed or FeatureTiles
-     * no longer works, then a new connection is established
+     * no longer works, then a new connection is established.
+     *
+     * Drawing happens on many threads at once, so the FeatureTiles is never changed once in use: each (re)connect,
+     * style change or feature limit builds and configures a new one, which is then published together with its style
+     * through a volatile field.
      */
     private class FeatureTilesHolder {
-        private FeatureTiles featureTiles = null;
+        private volatile StyledFeatureTiles styledFeatureTiles = null;
         private GeoPackageProvider geoPackageProvider;
-        private FeatureStyle featureStyle;
+        private FeatureStyle featureStyle;              //guarded by this
+        private Integer maxFeaturesPerTile = null;      //guarded by this
 
         //Constructor
         public FeatureTilesHolder(FeatureStyle featureStyle) {
             geoPackageProvider = GeoPackageProvider.getInstance();
-            _init();
-            setStyle(featureStyle);
+            this.featureStyle = featureStyle;
         }
 
         //GETTER -- If the connection is closed, then reopen it.
-        public FeatureTiles getFeatureTiles() {
-
-            //Create a new featureTiles if the geopackage connection is closed
-            try {
-                if (featureTiles == null ||
-                        featureTiles.getFeatureDao().getConnection().isClosed())
-                {
-                    _init();
+        public StyledFeatureTiles getStyledFeatureTiles() {
+            StyledFeatureTiles current = styledFeatureTiles;
+            if (current == null || isClosed(current.getFeatureTiles())) {
+                synchronized (this) {
+                    //another thread may have reconnected meanwhile
+                    current = styledFeatureTiles;
+                    if (current == null || isClosed(current.getFeatureTiles())) {
+                        current = create();
+                        styledFeatureTiles = current;
+                    }
                 }
-            } catch (SQLException e) {
-                e.printStackTrace();
             }
 
-            return featureTiles;
+            return current;
+        }
+
+        public FeatureTiles getFeatureTiles() {
+            return getStyledFeatureTiles().getFeatureTiles();
         }
 
-        //GETTER/SETTER
         public FeatureStyle getStyle() {
-            return featureStyle;
+            return getStyledFeatureTiles().getFeatureStyle();
         }
 
-        public void setStyle() {
-            setStyle(featureStyle);
+        /**
+         * Recreates the drawing tool, e.g. to pick up an index created through another connection
+         */
+        public synchronized void reload() {
+            styledFeatureTiles = create();
         }
 
-        public void setStyle(FeatureStyle featureStyle) {
+        public synchronized void setStyle(FeatureStyle featureStyle) {
             this.featureStyle = featureStyle;
+            styledFeatureTiles = create();
+        }
 
-            featureTiles.setPointRadius(featureStyle.getPointRadius());
-            featureTiles.setPointColor(featureStyle.getPointColor());
-            featureTiles.setPointIcon(featureStyle.getPointIcon());
-            featureTiles.setLineColor(featureStyle.getLineColor());
-            featureTiles.setLineStrokeWidth(featureStyle.getLineStrokeWidth());
-            featureTiles.setPolygonColor(featureStyle.getPolygonColor());
-            featureTiles.setPolygonFillColor(featureStyle.getPolygonFillColor());
-            featureTiles.setPolygonStrokeWidth(featureStyle.getPolygonFillStrokeWidth());
-            featureTiles.setFillPolygon(featureStyle.isFillPolygon());
+        public synchronized void setMaxFeaturesPerTile(Integer maxFeaturesPerTile) {
+            this.maxFeaturesPerTile = maxFeaturesPerTile;
+            styledFeatureTiles = create();
+        }
 
-            featureTiles.calculateDrawOverlap();
+        private boolean isClosed(FeatureTiles featureTiles) {
+            try {
+                return featureTiles.getFeatureDao().getConnection().isClosed();
+            } catch (SQLException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+
+        /**
+         * Builds a fully configured drawing tool (called with the lock held, published by the caller)
+         */
+        private StyledFeatureTiles create() {
+            try (GeoPackagePool.SharedUse sharedUse = geoPackageProvider.useShared(getDatabaseName())) {
+                return create(geoPackageProvider.getGeoPackage(getDatabaseName()));
+            }
         }
 
-        //Initializer
-        private void _init() {
+        private StyledFeatureTiles create(GeoPackage geoPackage) {
 
             //Set up DAO
-            GeoPackage geoPackage = geoPackageProvider.getGeoPackage(getDatabaseName());
             FeatureDao featureDao = geoPackage.getFeatureDao(getTableName());
 
             //Establish which FeatureTile implementation to use (Factory)
+            FeatureTiles featureTiles;
             switch (featureDao.getProjection().getCode()) {
                 case "4326":
                     featureTiles = new Epsg4326FeatureTiles(getContext(), featureDao);
@@ -310,12 +635,74 @@ class FeatureLayer extends Layer {
             //Look for an index to attach (if one exists)
             FeatureIndexManager featureIndexManager = new FeatureIndexManager(geoPackage, getTableName());
             featureTiles.setFeatureIndex(featureIndexManager.getFeatureTableIndex());
+
+            //Without one, draw from the in-memory spatial index instead of scanning the table
+            if (featureTiles instanceof Epsg4326FeatureTiles) {
+                ((Epsg4326FeatureTiles) featureTiles).setSpatialIndexSupplier(FeatureLayer.this::getSpatialIndex);
+
+                //Low zoom levels read the generalized geometries of their zoom band
+                ((Epsg4326FeatureTiles) featureTiles).setGeneralizedGeometriesSupplier(FeatureLayer.this::getGeneralizedGeometries);
+            }
+
+            //PNG supports transparency for overlaying points on a map
+            featureTiles.setCompressFormat(Bitmap.CompressFormat.PNG);
+            featureTiles.setMaxFeaturesPerTile(maxFeaturesPerTile);
+
+            featureTiles.setPointRadius(featureStyle.getPointRadius());
+            featureTiles.setPointColor(featureStyle.getPointColor());
+            featureTiles.setPointIcon(featureStyle.getPointIcon());
+            featureTiles.setLineColor(featureStyle.getLineColor());
+            featureTiles.setLineStrokeWidth(featureStyle.getLineStrokeWidth());
+            featureTiles.setPolygonColor(featureStyle.getPolygonColor());
+            featureTiles.setPolygonFillColor(featureStyle.getPolygonFillColor());
+            featureTiles.setPolygonStrokeWidth(featureStyle.getPolygonFillStrokeWidth());
+            featureTiles.setFillPolygon(featureStyle.isFillPolygon());
+
+            featureTiles.calculateDrawOverlap();
+            if (featureTiles instanceof Epsg4326FeatureTiles) {
+                ((Epsg4326FeatureTiles) featureTiles).setFeatureStyle(featureStyle);
+            }
+
+            //make tiles persisted for this style and limit (in a previous run) available
+            String cacheKey = featureStyle.getStyleHash() +
+                    (maxFeaturesPerTile != null ? "-max" + maxFeaturesPerTile : "");
+            FeatureTileCache.getInstance().open(getDatabaseName(), getTableName(), cacheKey);
+
+            return new StyledFeatureTiles(featureTiles, featureStyle, cacheKey);
+        }
+    }
+
+    /**
+     * A configured drawing tool along with the style it draws with, so tiles are cached under the style (and feature
+     * limit) they were actually drawn with
+     */
+    private static final class StyledFeatureTiles {
+        private final FeatureTiles mFeatureTiles;
+        private final FeatureStyle mFeatureStyle;
+        private final String mCacheKey;    //style hash and feature limit, keys the persisted tiles
+
+        StyledFeatureTiles(FeatureTiles featureTiles, FeatureStyle featureStyle, String cacheKey) {
+            mFeatureTiles = featureTiles;
+            mFeatureStyle = featureStyle;
+            mCacheKey = cacheKey;
+        }
+
+        FeatureTiles getFeatureTiles() {
+            return mFeatureTiles;
+        }
+
+        FeatureStyle getFeatureStyle() {
+            return mFeatureStyle;
+        }
+
+        String getCacheKey() {
+            return mCacheKey;
         }
     }
 
     private class GeoPackageProgressImpl implements GeoPackageProgress {
         private int mMax;
-        private boolean mActive;
+        private volatile boolean mActive;
         private LayerIndexProgressListener mProgressListener;
 
         private GeoPackageProgressImpl(@NotNull LayerIndexProgressListener progressListener) {
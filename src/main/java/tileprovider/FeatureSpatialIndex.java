@@ -0,0 +1,266 @@
+package tileprovider;
+
+import mil.nga.geopackage.BoundingBox;
+import mil.nga.geopackage.GeoPackageException;
+import mil.nga.geopackage.features.user.FeatureDao;
+import mil.nga.geopackage.features.user.FeatureResultSet;
+import mil.nga.geopackage.features.user.FeatureRow;
+import mil.nga.geopackage.geom.GeoPackageGeometryData;
+import mil.nga.sf.GeometryEnvelope;
+import org.geotools.util.logging.Logging;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-memory spatial index of a feature table, for layers without a GeoPackage index extension.  Candidate features
+ * of a tile or a feature info request are found in the PackedRTree and only those rows are read, instead of reading
+ * and decoding every geometry of the table.
+ *
+ * The tree is built from the geometry envelopes on first use and persisted to a sidecar file next to the GeoPackage
+ * ("&lt;file&gt;.&lt;table&gt;.rtree"), tagged with the GeoPackage's FileSignature so a modified GeoPackage is
+ * re-indexed (see FileSignature.matches()).  The tree holds no connection, so it outlives reopened DAOs.
+ */
+
+class FeatureSpatialIndex {
+
+    static final Logger LOGGER = Logging.getLogger(FeatureSpatialIndex.class);
+
+    private static final String FILE_EXTENSION = ".rtree";
+
+    /**
+     * Leads the sidecar file (files of older layouts are rebuilt)
+     */
+    private static final long FILE_MAGIC = 0x5254524545000002L;
+
+    /**
+     * Maximum ids per IN (...) query (below SQLite's default host parameter limit)
+     */
+    private static final int QUERY_CHUNK_SIZE = 500;
+
+    private final PackedRTree mTree;
+
+    private FeatureSpatialIndex(PackedRTree tree) {
+        mTree = tree;
+    }
+
+    /**
+     * Loads the persisted index of a feature table, or builds (and persists) it if missing or stale
+     * @param featureDao - feature table to index
+     * @param geoPackageFile - file of the GeoPackage holding the table, or null to keep the index in memory only
+     * @return the index or null if the table could not be read
+     */
+    static FeatureSpatialIndex load(FeatureDao featureDao, File geoPackageFile) {
+        File indexFile = geoPackageFile != null ?
+                new File(geoPackageFile.getPath() + "." + featureDao.getTableName() + FILE_EXTENSION) : null;
+
+        if (indexFile != null && indexFile.isFile()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+                if (in.readLong() == FILE_MAGIC) {
+                    FileSignature signature = new FileSignature(in.readLong(), in.readLong(), in.readLong());
+                    if (signature.matches(geoPackageFile)) {
+                        return new FeatureSpatialIndex(PackedRTree.read(in));
+                    }
+                }
+            } catch (IOException ex) {
+                LOGGER.log(Level.INFO, "FeatureSpatialIndex: Rebuilding unreadable index " + indexFile, ex);
+            }
+        }
+
+        //taken before reading the table, so changes made while building make the index stale
+        FileSignature signature = null;
+        if (indexFile != null) {
+            try {
+                signature = FileSignature.of(geoPackageFile);
+            } catch (IOException ex) {
+                LOGGER.log(Level.INFO, "FeatureSpatialIndex: Could not read " + geoPackageFile +
+                        ", index kept in memory only", ex);
+            }
+        }
+
+        PackedRTree tree = build(featureDao);
+        if (tree == null) {
+            return null;
+        }
+
+        if (signature != null) {
+            File tempFile = new File(indexFile.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                out.writeLong(FILE_MAGIC);
+                out.writeLong(signature.getSize());
+                out.writeLong(signature.getLastModified());
+                out.writeLong(signature.getContentHash());
+                tree.write(out);
+            } catch (IOException ex) {
+                LOGGER.log(Level.INFO, "FeatureSpatialIndex: Could not persist index " + indexFile, ex);
+            }
+
+            if (tempFile.isFile() && !tempFile.renameTo(indexFile)) {
+                indexFile.delete();
+                if (!tempFile.renameTo(indexFile)) {
+                    tempFile.delete();
+                }
+            }
+        }
+
+        return new FeatureSpatialIndex(tree);
+    }
+
+    /**
+     * Reads the envelope of every geometry and bulk loads the tree
+     */
+    private static PackedRTree build(FeatureDao featureDao) {
+        String sql = "SELECT \"" + featureDao.getTable().getPkColumn().getName() + "\", \"" +
+                featureDao.getGeometryColumnName() + "\" FROM \"" + featureDao.getTableName() + "\"";
+
+        double[] envelopes = new double[1024 * 4];
+        long[] ids = new long[1024];
+        int count = 0;
+
+        try (PreparedStatement statement = featureDao.getConnection().prepareStatement(sql);
+             ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                byte[] geometryBytes = resultSet.getBytes(2);
+                if (geometryBytes == null) {
+                    continue;
+                }
+
+                GeometryEnvelope envelope = new GeoPackageGeometryData(geometryBytes).getOrBuildEnvelope();
+                if (envelope == null) {
+                    continue;
+                }
+
+                if (count == ids.length) {
+                    ids = Arrays.copyOf(ids, count * 2);
+                    envelopes = Arrays.copyOf(envelopes, count * 8);
+                }
+                ids[count] = resultSet.getLong(1);
+                envelopes[count * 4] = envelope.getMinX();
+                envelopes[count * 4 + 1] = envelope.getMinY();
+                envelopes[count * 4 + 2] = envelope.getMaxX();
+                envelopes[count * 4 + 3] = envelope.getMaxY();
+                count++;
+            }
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "FeatureSpatialIndex: Failed to index " + featureDao.getTableName(), ex);
+            return null;
+        }
+
+        return PackedRTree.build(envelopes, ids, count);
+    }
+
+    /**
+     * @return number of indexed features
+     */
+    int size() {
+        return mTree.size();
+    }
+
+    /**
+     * Reports the envelope of every indexed feature
+     */
+    void forEachEnvelope(PackedRTree.ItemVisitor visitor) {
+        mTree.forEachItem(visitor);
+    }
+
+    /**
+     * @return ids of the features whose envelope intersects the bounding box
+     */
+    long[] queryIds(BoundingBox boundingBox) {
+        long[][] ids = {new long[64]};
+        int[] count = {0};
+        mTree.search(boundingBox.getMinLongitude(), boundingBox.getMinLatitude(),
+                boundingBox.getMaxLongitude(), boundingBox.getMaxLatitude(), id -> {
+                    if (count[0] == ids[0].length) {
+                        ids[0] = Arrays.copyOf(ids[0], count[0] * 2);
+                    }
+                    ids[0][count[0]++] = id;
+                });
+
+        long[] result = Arrays.copyOf(ids[0], count[0]);
+        Arrays.sort(result);    //rowid order reads the table sequentially
+        return result;
+    }
+
+    /**
+     * Reads the rows of the given features with chunked IN (...) queries
+     * @param featureDao - the indexed feature table (on any open connection)
+     * @param ids - feature ids (e.g. from queryIds())
+     * @param rowConsumer - receives each row
+     */
+    static void queryRows(FeatureDao featureDao, long[] ids, Consumer<FeatureRow> rowConsumer) {
+        String pkColumn = featureDao.getTable().getPkColumn().getName();
+
+        for (int start = 0; start < ids.length; start += QUERY_CHUNK_SIZE) {
+            int end = Math.min(start + QUERY_CHUNK_SIZE, ids.length);
+
+            StringBuilder where = new StringBuilder("\"").append(pkColumn).append("\" IN (");
+            String[] whereArgs = new String[end - start];
+            for (int i = start; i < end; i++) {
+                where.append(i == start ? "?" : ",?");
+                whereArgs[i - start] = Long.toString(ids[i]);
+            }
+            where.append(')');
+
+            FeatureResultSet resultSet = featureDao.query(where.toString(), whereArgs);
+            try {
+                while (resultSet.moveToNext()) {
+                    rowConsumer.accept(resultSet.getRow());
+                }
+            } finally {
+                resultSet.close();
+            }
+        }
+    }
+
+    /**
+     * Reads the geometry blobs of the given features with chunked IN (...) queries, without decoding them
+     * @param featureDao - the feature table (on any open connection)
+     * @param ids - feature ids (e.g. from queryIds())
+     * @param geometryConsumer - receives each non-null GeoPackage geometry blob
+     */
+    static void queryGeometries(FeatureDao featureDao, long[] ids, Consumer<byte[]> geometryConsumer) {
+        String select = "SELECT \"" + featureDao.getGeometryColumnName() + "\" FROM \"" + featureDao.getTableName() +
+                "\" WHERE \"" + featureDao.getTable().getPkColumn().getName() + "\" IN (";
+
+        for (int start = 0; start < ids.length; start += QUERY_CHUNK_SIZE) {
+            int end = Math.min(start + QUERY_CHUNK_SIZE, ids.length);
+
+            StringBuilder sql = new StringBuilder(select);
+            for (int i = start; i < end; i++) {
+                sql.append(i == start ? "?" : ",?");
+            }
+            sql.append(')');
+
+            try (PreparedStatement statement = featureDao.getConnection().prepareStatement(sql.toString())) {
+                for (int i = start; i < end; i++) {
+                    statement.setLong(i - start + 1, ids[i]);
+                }
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        byte[] geometryBytes = resultSet.getBytes(1);
+                        if (geometryBytes != null) {
+                            geometryConsumer.accept(geometryBytes);
+                        }
+                    }
+                }
+            } catch (SQLException ex) {
+                throw new GeoPackageException("Failed to query geometries of " + featureDao.getTableName(), ex);
+            }
+        }
+    }
+}
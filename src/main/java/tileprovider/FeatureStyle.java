@@ -3,6 +3,7 @@ package tileprovider;
 import mil.nga.geopackage.tiles.features.FeatureTilePointIcon;
 
 import java.awt.*;
+import java.awt.image.BufferedImage;
 
 /**
  * Created by joshua.johnson on 4/16/2019.
@@ -13,7 +14,7 @@ public class FeatureStyle {
 
 
     protected float pointRadius;
-    protected Color pointColor = Color.BLACK;
+    protected Color pointColor = new Color(200, 255, 200);
     protected FeatureTilePointIcon pointIcon = null;
     protected Color lineColor = Color.BLACK;
     protected float lineStrokeWidth;
@@ -99,4 +100,52 @@ public class FeatureStyle {
     public void setPolygonFillStrokeWidth(float polygonStrokeWidth) {
         this.polygonStrokeWidth = polygonStrokeWidth;
     }
+
+    /**
+     * Hash of every property affecting how a tile is drawn.  Stable across restarts, so it can be used to key
+     * persisted tiles (a changed style renders into a different cache table).
+     * @return hex string hash of this style
+     */
+    public String getStyleHash() {
+        long hash = 17;
+        hash = 31 * hash + Float.floatToIntBits(pointRadius);
+        hash = 31 * hash + colorHash(pointColor);
+        if (pointIcon != null) {
+            hash = 31 * hash + pointIcon.getWidth();
+            hash = 31 * hash + pointIcon.getHeight();
+            hash = 31 * hash + Float.floatToIntBits(pointIcon.getXOffset());
+            hash = 31 * hash + Float.floatToIntBits(pointIcon.getYOffset());
+            hash = 31 * hash + iconHash(pointIcon.getIcon());
+        }
+        hash = 31 * hash + colorHash(lineColor);
+        hash = 31 * hash + Float.floatToIntBits(lineStrokeWidth);
+        hash = 31 * hash + colorHash(polygonColor);
+        hash = 31 * hash + (fillPolygon ? 1 : 0);
+        hash = 31 * hash + colorHash(polygonFillColor);
+        hash = 31 * hash + Float.floatToIntBits(polygonStrokeWidth);
+
+        return Long.toHexString(hash);
+    }
+
+    /**
+     * @return hash of the icon's pixels, so another icon of the same size renders into a different cache table
+     */
+    private static long iconHash(BufferedImage icon) {
+        if (icon == null) {
+            return 0;
+        }
+
+        int width = icon.getWidth();
+        int height = icon.getHeight();
+        int[] pixels = icon.getRGB(0, 0, width, height, null, 0, width);
+        long hash = 17;
+        for (int pixel : pixels) {
+            hash = 31 * hash + pixel;
+        }
+        return hash;
+    }
+
+    private static int colorHash(Color color) {
+        return color == null ? 0 : color.getRGB();
+    }
 }
@@ -0,0 +1,369 @@
+package tileprovider;
+
+import org.geotools.util.logging.Logging;
+import org.sqlite.SQLiteConfig;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persistent cache of rasterized feature tiles.  Each feature layer/style pair gets its own tile table (MBTiles-like
+ * layout keyed by zoom, column and row) inside a single SQLite database, so rendered tiles survive restarts.
+ *
+ * Lookups happen on the request thread, through a small pool of read-only connections (the database is in WAL mode,
+ * so readers neither block each other nor the writer).  Newly rendered tiles are encoded and written on a background
+ * writer so that a cache miss never waits on disk; the writer and invalidation share the one writable connection.
+ * Tiles which contained no features are stored as empty blobs, so empty areas are not rendered again either.
+ *
+ * Each database has a generation, advanced when its tiles are invalidated.  Tiles are written only if they were
+ * rendered in the current generation, so a tile rendered from a previous version of the GeoPackage (and still queued
+ * for writing) can't re-create the dropped tile table.
+ *
+ * This class uses a Singleton Model since there is only one cache database to maintain a connection to.
+ */
+
+class FeatureTileCache {
+
+    static final Logger LOGGER = Logging.getLogger(FeatureTileCache.class);
+
+    private static final String DATABASE_NAME = "FeatureTileCache.db";
+    private static final String TABLE_LAYERS = "cache_layers";
+    private static final String TILE_TABLE_PREFIX = "tiles_";
+    private static final String IMAGE_FORMAT = "png";
+
+    /**
+     * Maximum number of tiles waiting to be written.  Further tiles are dropped (they will simply be rendered again).
+     */
+    private static final int MAX_PENDING_WRITES = 1024;
+
+    /**
+     * Read-only connections serving lookups
+     */
+    private static final int READ_CONNECTIONS = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+    //Singleton
+    private static volatile FeatureTileCache _instance = null;
+
+    static FeatureTileCache getInstance() {
+        if (_instance == null) {
+            synchronized (FeatureTileCache.class) {
+                if (_instance == null) {
+                    _instance = new FeatureTileCache(DATABASE_NAME);
+                }
+            }
+        }
+
+        return _instance;
+    }
+
+    private Connection mConnection;     //writes and invalidation
+    private final BlockingQueue<Connection> mReadConnections = new ArrayBlockingQueue<>(READ_CONNECTIONS);
+    private final ExecutorService mWriter;
+
+    /**
+     * Generation per database name, advanced by invalidateDatabase()
+     */
+    private final Map<String, AtomicLong> mGenerations = new ConcurrentHashMap<>();
+
+    /**
+     * Tile tables known to exist (layer/style key to table name)
+     */
+    private final Map<String, String> mTables = new ConcurrentHashMap<>();
+
+    //Prevent Instantiation
+    private FeatureTileCache(String databasePath) {
+        try {
+            mConnection = DriverManager.getConnection("jdbc:sqlite:" + databasePath);
+            try (Statement statement = mConnection.createStatement()) {
+                statement.execute("PRAGMA journal_mode=WAL");
+                statement.execute("CREATE TABLE IF NOT EXISTS " + TABLE_LAYERS + " (" +
+                        "table_name TEXT PRIMARY KEY," +
+                        "database_name TEXT NOT NULL," +
+                        "layer_table TEXT NOT NULL," +
+                        "style_hash TEXT NOT NULL)");
+                statement.execute("CREATE INDEX IF NOT EXISTS " + TABLE_LAYERS + "_database ON " +
+                        TABLE_LAYERS + " (database_name)");
+            }
+
+            SQLiteConfig readConfig = new SQLiteConfig();
+            readConfig.setReadOnly(true);
+            for (int i = 0; i < READ_CONNECTIONS; i++) {
+                mReadConnections.add(readConfig.createConnection("jdbc:sqlite:" + databasePath));
+            }
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, getClass().getSimpleName() + ": Feature tile cache unavailable", ex);
+            mConnection = null;
+        }
+
+        mWriter = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(MAX_PENDING_WRITES),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "FeatureTileCache-writer");
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    /**
+     * Result of a cache lookup
+     */
+    static final class CachedTile {
+        private final BufferedImage mImage;
+
+        private CachedTile(BufferedImage image) {
+            mImage = image;
+        }
+
+        /**
+         * @return the cached tile or null if the tile was cached as empty
+         */
+        BufferedImage getImage() {
+            return mImage;
+        }
+    }
+
+    /**
+     * Retrieves a previously rendered tile
+     * @param databaseName - database holding the feature table
+     * @param tableName - feature table
+     * @param styleHash - hash of the style the tile was rendered with
+     * @return the cached tile, or null on a cache miss
+     */
+    CachedTile get(String databaseName, String tableName, String styleHash, int x, int y, int z) {
+        String tileTable = mTables.get(layerKey(databaseName, tableName, styleHash));
+        if (tileTable == null || mConnection == null) {
+            return null;
+        }
+
+        Connection connection;
+        try {
+            connection = mReadConnections.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        byte[] data = null;
+        boolean found = false;
+        try (PreparedStatement statement = connection.prepareStatement("SELECT tile_data FROM " + tileTable +
+                " WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?")) {
+            statement.setInt(1, z);
+            statement.setInt(2, x);
+            statement.setInt(3, y);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    found = true;
+                    data = resultSet.getBytes(1);
+                }
+            }
+        } catch (SQLException ex) {
+            //the table may just have been dropped by an invalidation
+            LOGGER.log(Level.FINE, getClass().getSimpleName() + ": Could not read cached tile", ex);
+        } finally {
+            mReadConnections.add(connection);
+        }
+
+        if (!found) {
+            return null;
+        }
+
+        BufferedImage image = null;
+        if (data != null && data.length > 0) {
+            try {
+                image = ImageIO.read(new ByteArrayInputStream(data));
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, getClass().getSimpleName() + ": Could not decode cached tile", ex);
+                return null;
+            }
+        }
+
+        return new CachedTile(image);
+    }
+
+    /**
+     * @param databaseName - database name as registered to GeoPackageManager
+     * @return the database's current generation, to be captured before rendering a tile and passed to putAsync()
+     */
+    long getGeneration(String databaseName) {
+        AtomicLong generation = mGenerations.get(databaseName);
+        return generation != null ? generation.get() : 0L;
+    }
+
+    /**
+     * Queues a rendered tile to be written to the cache
+     * @param generation - generation of the database when the tile's rendering started (see getGeneration())
+     * @param image - rendered tile or null if the tile contained no features.  Must not be modified afterwards.
+     */
+    void putAsync(String databaseName, String tableName, String styleHash, long generation, int x, int y, int z,
+                  BufferedImage image) {
+        if (mConnection == null || generation != getGeneration(databaseName)) {
+            return;
+        }
+
+        mWriter.execute(() -> {
+            try {
+                byte[] data = new byte[0];
+                if (image != null) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    ImageIO.write(image, IMAGE_FORMAT, out);
+                    data = out.toByteArray();
+                }
+
+                put(databaseName, tableName, styleHash, generation, x, y, z, data);
+            } catch (IOException | SQLException ex) {
+                LOGGER.log(Level.WARNING, getClass().getSimpleName() + ": Could not cache tile", ex);
+            }
+        });
+    }
+
+    /**
+     * Removes every cached tile rendered from the given database (e.g. after the source GeoPackage changed).  Tiles
+     * rendered before this call, even if still queued, are no longer written.
+     * @param databaseName - database name as registered to GeoPackageManager
+     */
+    synchronized void invalidateDatabase(String databaseName) {
+        mGenerations.computeIfAbsent(databaseName, name -> new AtomicLong()).incrementAndGet();
+        if (mConnection == null) {
+            return;
+        }
+
+        try {
+            List<String> tileTables = new ArrayList<>();
+            try (PreparedStatement statement = mConnection.prepareStatement("SELECT table_name FROM " + TABLE_LAYERS +
+                    " WHERE database_name = ?")) {
+                statement.setString(1, databaseName);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        tileTables.add(resultSet.getString(1));
+                    }
+                }
+            }
+
+            try (Statement statement = mConnection.createStatement()) {
+                for (String tileTable : tileTables) {
+                    statement.execute("DROP TABLE IF EXISTS " + tileTable);
+                }
+            }
+
+            try (PreparedStatement statement = mConnection.prepareStatement("DELETE FROM " + TABLE_LAYERS +
+                    " WHERE database_name = ?")) {
+                statement.setString(1, databaseName);
+                statement.executeUpdate();
+            }
+
+            mTables.values().removeAll(tileTables);
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, getClass().getSimpleName() + ": Could not invalidate cache for " + databaseName, ex);
+        }
+    }
+
+    /**
+     * Makes a previously created tile table for the layer/style pair visible to lookups (called once per layer)
+     */
+    synchronized void open(String databaseName, String tableName, String styleHash) {
+        if (mConnection == null) {
+            return;
+        }
+
+        String tileTable = tileTableName(databaseName, tableName, styleHash);
+        try (PreparedStatement statement = mConnection.prepareStatement("SELECT 1 FROM " + TABLE_LAYERS +
+                " WHERE table_name = ?")) {
+            statement.setString(1, tileTable);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    mTables.put(layerKey(databaseName, tableName, styleHash), tileTable);
+                }
+            }
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, getClass().getSimpleName() + ": Could not open cache for " + tableName, ex);
+        }
+    }
+
+    private synchronized void put(String databaseName, String tableName, String styleHash, long generation,
+                                  int x, int y, int z, byte[] data) throws SQLException {
+        //rendered from a version of the database that has been invalidated since
+        if (generation != getGeneration(databaseName)) {
+            return;
+        }
+
+        String tileTable = createTileTable(databaseName, tableName, styleHash);
+
+        try (PreparedStatement statement = mConnection.prepareStatement("INSERT OR REPLACE INTO " + tileTable +
+                " (zoom_level, tile_column, tile_row, tile_data) VALUES (?, ?, ?, ?)")) {
+            statement.setInt(1, z);
+            statement.setInt(2, x);
+            statement.setInt(3, y);
+            statement.setBytes(4, data);
+            statement.executeUpdate();
+        }
+    }
+
+    private String createTileTable(String databaseName, String tableName, String styleHash) throws SQLException {
+        String key = layerKey(databaseName, tableName, styleHash);
+        String tileTable = mTables.get(key);
+
+        if (tileTable == null) {
+            tileTable = tileTableName(databaseName, tableName, styleHash);
+            try (Statement statement = mConnection.createStatement()) {
+                statement.execute("CREATE TABLE IF NOT EXISTS " + tileTable + " (" +
+                        "zoom_level INTEGER NOT NULL," +
+                        "tile_column INTEGER NOT NULL," +
+                        "tile_row INTEGER NOT NULL," +
+                        "tile_data BLOB," +
+                        "PRIMARY KEY (zoom_level, tile_column, tile_row))");
+            }
+
+            try (PreparedStatement statement = mConnection.prepareStatement("INSERT OR REPLACE INTO " + TABLE_LAYERS +
+                    " (table_name, database_name, layer_table, style_hash) VALUES (?, ?, ?, ?)")) {
+                statement.setString(1, tileTable);
+                statement.setString(2, databaseName);
+                statement.setString(3, tableName);
+                statement.setString(4, styleHash);
+                statement.executeUpdate();
+            }
+
+            mTables.put(key, tileTable);
+        }
+
+        return tileTable;
+    }
+
+    private static String layerKey(String databaseName, String tableName, String styleHash) {
+        return databaseName + '\u0000' + tableName + '\u0000' + styleHash;
+    }
+
+    /**
+     * Table names must be valid SQL identifiers, so the layer/style key is hashed rather than embedded
+     */
+    private static String tileTableName(String databaseName, String tableName, String styleHash) {
+        String key = layerKey(databaseName, tableName, styleHash);
+        long hash = 1125899906842597L;
+        for (int i = 0; i < key.length(); i++) {
+            hash = 31 * hash + key.charAt(i);
+        }
+        return TILE_TABLE_PREFIX + Long.toHexString(hash);
+    }
+}
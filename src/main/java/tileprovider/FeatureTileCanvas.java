@@ -0,0 +1,324 @@
+package tileprovider;
+
+import mil.nga.geopackage.BoundingBox;
+import mil.nga.geopackage.tiles.features.FeatureTilePointIcon;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Drawing surface for one feature tile.  A single Graphics2D is created per tile and configured once from the
+ * FeatureStyle.  Features are collected into batched paths -- all line strings in one path, all polygon outlines in
+ * one path, all points in one path -- which are drawn with one call each when the batch is flushed.
+ *
+ * Polygon interiors are filled per polygon (from a reused path) because independent polygons merged into one path
+ * would cancel out where they overlap.
+ *
+ * Whatever the batch boundaries, the tile is stacked in a fixed order: polygon fills, polygon outlines, lines, then
+ * points (or point icons).  Fills go straight to the tile; a stroke or point batch flushed before finish() goes to an
+ * overlay of its kind (created only for such large tiles), and the overlays are drawn over the fills at the end.
+ *
+ * Coordinates are in tile pixels.  Not thread-safe: one canvas per tile being drawn.
+ */
+
+class FeatureTileCanvas {
+
+    /**
+     * Path segments collected before a batch is drawn, bounding the memory held by large tiles
+     */
+    private static final int MAX_BATCH_SEGMENTS = 8192;
+
+    //overlays, bottom to top
+    private static final int OUTLINES = 0;
+    private static final int LINES = 1;
+    private static final int POINTS = 2;
+    private static final int OVERLAYS = 3;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final TileTransform mTransform;
+    private final FeatureStyle mStyle;
+    private final BasicStroke mLineStroke;
+    private final BasicStroke mPolygonStroke;
+
+    private BufferedImage mImage = null;
+    private Graphics2D mGraphics = null;
+    private final BufferedImage[] mOverlays = new BufferedImage[OVERLAYS];
+    private final Graphics2D[] mOverlayGraphics = new Graphics2D[OVERLAYS];
+
+    private final Path2D.Float mLines = new Path2D.Float(Path2D.WIND_NON_ZERO, 1024);
+    private final Path2D.Float mOutlines = new Path2D.Float(Path2D.WIND_NON_ZERO, 1024);
+    private final Path2D.Float mPolygon = new Path2D.Float(Path2D.WIND_EVEN_ODD, 256);
+    private final Path2D.Float mPoints = new Path2D.Float(Path2D.WIND_NON_ZERO, 1024);
+    private final Ellipse2D.Float mPointShape = new Ellipse2D.Float();
+    private int mLineSegments = 0;
+    private int mOutlineSegments = 0;
+    private int mPointCount = 0;
+    private float[] mIconPositions = new float[0];   //x, y of each point icon, drawn by finish()
+    private int mIconCount = 0;
+
+    private final CoordinateBuffer mCoordinateBuffer = new CoordinateBuffer();
+
+    private Path2D.Float mCurrentPath = null;   //path receiving moveTo/lineTo
+    private boolean mDrawn = false;
+
+    /**
+     * Constructor
+     * @param boundingBox - extent of the tile (EPSG:4326)
+     * @param width - tile width (pixels)
+     * @param height - tile height (pixels)
+     * @param style - style to draw with
+     */
+    FeatureTileCanvas(BoundingBox boundingBox, int width, int height, FeatureStyle style) {
+        mWidth = width;
+        mHeight = height;
+        mTransform = new TileTransform(boundingBox, width, height);
+        mStyle = style;
+        mLineStroke = new BasicStroke(style.getLineStrokeWidth(), BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+        mPolygonStroke = new BasicStroke(style.getPolygonFillStrokeWidth(), BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return transform from EPSG:4326 coordinates to this tile's pixels
+     */
+    TileTransform getTransform() {
+        return mTransform;
+    }
+
+    /**
+     * @return coordinate buffer reused for every line string and ring drawn on this tile
+     */
+    CoordinateBuffer getCoordinateBuffer() {
+        return mCoordinateBuffer;
+    }
+
+    /**
+     * Starts a line string (subsequent moveTo/lineTo calls build it)
+     */
+    void beginLine() {
+        mCurrentPath = mLines;
+    }
+
+    /**
+     * Starts a polygon (its rings are built with moveTo/lineTo/closeRing and drawn by endPolygon)
+     */
+    void beginPolygon() {
+        mPolygon.reset();
+        mCurrentPath = mPolygon;
+    }
+
+    void moveTo(double x, double y) {
+        mCurrentPath.moveTo(x, y);
+        countSegment();
+    }
+
+    void lineTo(double x, double y) {
+        mCurrentPath.lineTo(x, y);
+        countSegment();
+    }
+
+    void closeRing() {
+        mCurrentPath.closePath();
+    }
+
+    /**
+     * Ends a line string
+     */
+    void endLine() {
+        mCurrentPath = null;
+        mDrawn = true;
+        if (mLineSegments >= MAX_BATCH_SEGMENTS) {
+            flushLines(overlayGraphics(LINES));
+        }
+    }
+
+    /**
+     * Ends a polygon: fills it (if the style fills polygons) and adds its outline to the outline batch
+     */
+    void endPolygon() {
+        mCurrentPath = null;
+        mDrawn = true;
+
+        if (mStyle.isFillPolygon()) {
+            Graphics2D graphics = graphics();
+            graphics.setColor(mStyle.getPolygonFillColor());
+            graphics.fill(mPolygon);
+        }
+
+        mOutlines.append(mPolygon, false);
+        if (mOutlineSegments >= MAX_BATCH_SEGMENTS) {
+            flushOutlines(overlayGraphics(OUTLINES));
+        }
+    }
+
+    /**
+     * Adds a point (drawn with the style's icon, or as a filled circle of the point radius)
+     */
+    void point(double x, double y) {
+        FeatureTilePointIcon icon = mStyle.getPointIcon();
+        if (icon != null) {
+            if (x >= -icon.getWidth() && x <= mWidth + icon.getWidth() && y >= -icon.getHeight() && y <= mHeight + icon.getHeight()) {
+                if (mIconCount * 2 == mIconPositions.length) {
+                    mIconPositions = Arrays.copyOf(mIconPositions, Math.max(64, mIconCount * 4));
+                }
+                mIconPositions[mIconCount * 2] = (float) x;
+                mIconPositions[mIconCount * 2 + 1] = (float) y;
+                mIconCount++;
+                mDrawn = true;
+            }
+            return;
+        }
+
+        float radius = mStyle.getPointRadius();
+        if (x >= -radius && x <= mWidth + radius && y >= -radius && y <= mHeight + radius) {
+            mPointShape.setFrame(x - radius, y - radius, radius * 2, radius * 2);
+            mPoints.append(mPointShape, false);
+            mDrawn = true;
+            if (++mPointCount >= MAX_BATCH_SEGMENTS) {
+                flushPoints(overlayGraphics(POINTS));
+            }
+        }
+    }
+
+    /**
+     * Draws all batched features and releases the graphics
+     * @return the tile image or null if nothing was drawn
+     */
+    BufferedImage finish() {
+        //the remaining batches go onto their overlay if one was started, else straight over the fills
+        if (mOutlineSegments > 0) {
+            flushOutlines(finalGraphics(OUTLINES));
+        }
+        drawOverlay(OUTLINES);
+        if (mLineSegments > 0) {
+            flushLines(finalGraphics(LINES));
+        }
+        drawOverlay(LINES);
+        if (mPointCount > 0) {
+            flushPoints(finalGraphics(POINTS));
+        }
+        if (mIconCount > 0) {
+            drawIcons(finalGraphics(POINTS));
+        }
+        drawOverlay(POINTS);
+
+        if (mGraphics != null) {
+            mGraphics.dispose();
+            mGraphics = null;
+        }
+
+        return mDrawn ? mImage : null;
+    }
+
+    private void countSegment() {
+        if (mCurrentPath == mLines) {
+            mLineSegments++;
+        } else {
+            mOutlineSegments++;
+        }
+    }
+
+    private void flushLines(Graphics2D graphics) {
+        if (mLineSegments > 0) {
+            graphics.setColor(mStyle.getLineColor());
+            graphics.setStroke(mLineStroke);
+            graphics.draw(mLines);
+            mLines.reset();
+            mLineSegments = 0;
+        }
+    }
+
+    private void flushOutlines(Graphics2D graphics) {
+        if (mOutlineSegments > 0) {
+            graphics.setColor(mStyle.getPolygonColor());
+            graphics.setStroke(mPolygonStroke);
+            graphics.draw(mOutlines);
+            mOutlines.reset();
+            mOutlineSegments = 0;
+        }
+    }
+
+    private void flushPoints(Graphics2D graphics) {
+        if (mPointCount > 0) {
+            Color color = mStyle.getPointColor();
+            graphics.setColor(color);
+            graphics.fill(mPoints);
+            mPoints.reset();
+            mPointCount = 0;
+        }
+    }
+
+    private void drawIcons(Graphics2D graphics) {
+        FeatureTilePointIcon icon = mStyle.getPointIcon();
+        for (int i = 0; i < mIconCount; i++) {
+            graphics.drawImage(icon.getIcon(), Math.round(mIconPositions[i * 2] - icon.getXOffset()),
+                    Math.round(mIconPositions[i * 2 + 1] - icon.getYOffset()), null);
+        }
+        mIconCount = 0;
+    }
+
+    /**
+     * @return the graphics receiving the last batch of a kind: its overlay if one was started, else the tile
+     */
+    private Graphics2D finalGraphics(int overlay) {
+        return mOverlayGraphics[overlay] != null ? mOverlayGraphics[overlay] : graphics();
+    }
+
+    /**
+     * Draws an overlay (if one was started) over the tile and releases it
+     */
+    private void drawOverlay(int overlay) {
+        if (mOverlayGraphics[overlay] != null) {
+            mOverlayGraphics[overlay].dispose();
+            mOverlayGraphics[overlay] = null;
+            graphics().drawImage(mOverlays[overlay], 0, 0, null);
+            mOverlays[overlay] = null;
+        }
+    }
+
+    /**
+     * @return the graphics of an overlay, created for a batch flushed before finish()
+     */
+    private Graphics2D overlayGraphics(int overlay) {
+        if (mOverlayGraphics[overlay] == null) {
+            graphics();     //the tile image exists whenever an overlay does
+            mOverlays[overlay] = new BufferedImage(mWidth, mHeight, BufferedImage.TYPE_INT_ARGB);
+            mOverlayGraphics[overlay] = createGraphics(mOverlays[overlay]);
+        }
+
+        return mOverlayGraphics[overlay];
+    }
+
+    /**
+     * @return the tile graphics, creating the image on first use so empty tiles allocate nothing
+     */
+    private Graphics2D graphics() {
+        if (mGraphics == null) {
+            mImage = new BufferedImage(mWidth, mHeight, BufferedImage.TYPE_INT_ARGB);
+            mGraphics = createGraphics(mImage);
+        }
+
+        return mGraphics;
+    }
+
+    private static Graphics2D createGraphics(BufferedImage image) {
+        Graphics2D graphics = image.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        graphics.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+        return graphics;
+    }
+}
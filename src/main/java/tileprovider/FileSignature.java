@@ -0,0 +1,163 @@
+package tileprovider;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Data holder identifying a version of a GeoPackage file: size, last modified time and a fast content hash.
+ *
+ * The content hash covers the SQLite header page (which holds the file change counter and schema cookie) plus a fixed
+ * number of pages sampled evenly across the file, read through memory-mapped buffers.  It is not a full checksum, but
+ * it tells a touched-but-unchanged file (copied, restored from backup) apart from an edited one without reading
+ * gigabytes of tiles.
+ */
+
+class FileSignature {
+
+    private static final int DEFAULT_PAGE_SIZE = 4096;
+    private static final int SAMPLED_PAGES = 64;
+
+    private final long mSize;
+    private final long mLastModified;
+    private final Long mContentHash;     //null when not computed
+
+    FileSignature(long size, long lastModified, Long contentHash) {
+        mSize = size;
+        mLastModified = lastModified;
+        mContentHash = contentHash;
+    }
+
+    /**
+     * @return signature holding the file's size and last modified time only (cheap)
+     */
+    static FileSignature ofMetadata(File file) {
+        return new FileSignature(file.length(), file.lastModified(), null);
+    }
+
+    /**
+     * @return signature holding the file's size, last modified time and content hash
+     * @throws IOException if the file could not be read
+     */
+    static FileSignature of(File file) throws IOException {
+        long lastModified = file.lastModified();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            return new FileSignature(size, lastModified, contentHash(channel, size));
+        }
+    }
+
+    long getSize() {
+        return mSize;
+    }
+
+    long getLastModified() {
+        return mLastModified;
+    }
+
+    Long getContentHash() {
+        return mContentHash;
+    }
+
+    boolean hasContentHash() {
+        return mContentHash != null;
+    }
+
+    /**
+     * @return true if size and last modified time match (the content is then assumed unchanged)
+     */
+    boolean metadataEquals(FileSignature other) {
+        return other != null && mSize == other.mSize && mLastModified == other.mLastModified;
+    }
+
+    /**
+     * @return true if both signatures carry a content hash, and size and hash match
+     */
+    boolean contentEquals(FileSignature other) {
+        return other != null && mContentHash != null && other.mContentHash != null &&
+                mSize == other.mSize && mContentHash.equals(other.mContentHash);
+    }
+
+    /**
+     * @return true if the file still holds the content this signature was taken of: size and last modified time
+     * match, or the file was touched but not changed (size and content hash match)
+     */
+    boolean matches(File file) {
+        if (file.length() != mSize) {
+            return false;
+        }
+        if (file.lastModified() == mLastModified) {
+            return true;
+        }
+        if (mContentHash == null) {
+            return false;
+        }
+
+        try {
+            return contentEquals(of(file));
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    private static long contentHash(FileChannel channel, long size) throws IOException {
+        long hash = XxHash64.hash(longBuffer(size), 0L);
+        if (size == 0) {
+            return hash;
+        }
+
+        int pageSize = pageSize(channel, size);
+        long pageCount = (size + pageSize - 1) / pageSize;
+
+        //header page, then pages spread evenly over the rest of the file (the last page included)
+        long samples = Math.min(pageCount, SAMPLED_PAGES + 1L);
+        long previousPage = -1;
+        for (long i = 0; i < samples; i++) {
+            long page = samples == 1 ? 0 : (i * (pageCount - 1)) / (samples - 1);
+            if (page == previousPage) {
+                continue;
+            }
+            previousPage = page;
+
+            long position = page * pageSize;
+            long length = Math.min(pageSize, size - position);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            hash = XxHash64.hash(buffer, hash);
+        }
+
+        return hash;
+    }
+
+    /**
+     * Reads the page size from the SQLite header (offset 16, big endian, 1 meaning 65536)
+     */
+    private static int pageSize(FileChannel channel, long size) throws IOException {
+        if (size < 100) {
+            return DEFAULT_PAGE_SIZE;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(2);
+        channel.read(header, 16);
+        header.flip();
+        int pageSize = header.getShort() & 0xFFFF;
+        if (pageSize == 1) {
+            pageSize = 65536;
+        }
+
+        //must be a power of two between 512 and 65536 -- otherwise this isn't a valid SQLite header
+        if (pageSize < 512 || Integer.bitCount(pageSize) != 1) {
+            pageSize = DEFAULT_PAGE_SIZE;
+        }
+
+        return pageSize;
+    }
+
+    private static ByteBuffer longBuffer(long value) {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putLong(0, value);
+        return buffer;
+    }
+}
@@ -0,0 +1,381 @@
+package tileprovider;
+
+import mil.nga.geopackage.features.user.FeatureDao;
+import org.geotools.util.logging.Logging;
+import org.sqlite.SQLiteConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Generalized (simplified) copies of the geometries of a feature table, one table per zoom band, so low zoom tiles
+ * read a few simplified vertices instead of the full resolution geometries.
+ *
+ * Band i holds the geometries simplified to half a pixel at zoom BAND_MAX_ZOOMS[i] and serves every zoom level above
+ * the previous band.  Zoom levels deeper than the last band read the source table.  Rows keep the feature id of the
+ * source table, so ids found in the feature or spatial index select the generalized rows directly.
+ *
+ * The tables live in a sidecar SQLite database next to the GeoPackage ("&lt;file&gt;.&lt;table&gt;.gen"), tagged
+ * with the GeoPackage's FileSignature (see FileSignature.matches()) -- writing into the GeoPackage itself would
+ * change the file and re-trigger its import (and its spatial index).  The sidecar is built by a background pass
+ * through its own connection and becomes available once complete.  Tiles read it through a small pool of read-only
+ * connections, so tiles of one layer don't wait on each other; close() releases them once the layer is dropped.
+ */
+
+final class GeneralizedGeometries {
+
+    static final Logger LOGGER = Logging.getLogger(GeneralizedGeometries.class);
+
+    /**
+     * Deepest zoom level served by each band
+     */
+    static final int[] BAND_MAX_ZOOMS = {2, 5, 8, 11};
+
+    private static final String FILE_EXTENSION = ".gen";
+    private static final String TABLE_INFO = "generalized_info";
+    private static final String BAND_TABLE_PREFIX = "band_";
+    private static final int TILE_SIZE = 256;
+
+    /**
+     * Maximum ids per IN (...) query (below SQLite's default host parameter limit)
+     */
+    private static final int QUERY_CHUNK_SIZE = 500;
+
+    /**
+     * Rows inserted per transaction while building
+     */
+    private static final int BUILD_BATCH_SIZE = 1000;
+
+    private static final ExecutorService BUILDER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "GeneralizedGeometries-builder");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    /**
+     * Sidecar files built (or being built) in this run, so each is attempted once
+     */
+    private static final Set<String> SCHEDULED = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Idle read connections kept per sidecar (more are opened under load and closed when returned)
+     */
+    private static final int MAX_IDLE_CONNECTIONS =
+            Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+
+    private final String mUrl;
+    private final SQLiteConfig mReadConfig;
+    private final BlockingQueue<Connection> mIdleConnections = new ArrayBlockingQueue<>(MAX_IDLE_CONNECTIONS);
+    private volatile boolean mClosed = false;
+
+    private GeneralizedGeometries(String url, SQLiteConfig readConfig, Connection connection) {
+        mUrl = url;
+        mReadConfig = readConfig;
+        mIdleConnections.add(connection);
+    }
+
+    /**
+     * Opens the generalized geometries of a feature table.  If they don't exist yet (or the GeoPackage changed), a
+     * background build is scheduled and null is returned until it completes.
+     * @param featureDao - feature table
+     * @param geoPackageFile - file of the GeoPackage holding the table
+     * @return the generalized geometries or null if not (yet) available
+     */
+    static GeneralizedGeometries open(FeatureDao featureDao, File geoPackageFile) {
+        File file = new File(geoPackageFile.getPath() + "." + featureDao.getTableName() + FILE_EXTENSION);
+
+        if (file.isFile()) {
+            String url = "jdbc:sqlite:" + file.getPath();
+            SQLiteConfig readConfig = new SQLiteConfig();
+            readConfig.setReadOnly(true);
+            Connection connection = null;
+            try {
+                connection = readConfig.createConnection(url);
+                try (Statement statement = connection.createStatement();
+                     ResultSet resultSet = statement.executeQuery(
+                             "SELECT source_size, source_modified, source_hash FROM " + TABLE_INFO)) {
+                    if (resultSet.next() && new FileSignature(resultSet.getLong(1), resultSet.getLong(2),
+                            resultSet.getLong(3)).matches(geoPackageFile)) {
+                        GeneralizedGeometries generalized = new GeneralizedGeometries(url, readConfig, connection);
+                        connection = null;
+                        return generalized;
+                    }
+                }
+            } catch (SQLException ex) {
+                LOGGER.log(Level.INFO, "GeneralizedGeometries: Rebuilding unreadable " + file, ex);
+            } finally {
+                close(connection);
+            }
+        }
+
+        scheduleBuild(featureDao, geoPackageFile, file);
+        return null;
+    }
+
+    /**
+     * @return the band serving a zoom level or -1 if the zoom level reads full resolution geometries
+     */
+    static int getBand(int zoom) {
+        for (int band = 0; band < BAND_MAX_ZOOMS.length; band++) {
+            if (zoom <= BAND_MAX_ZOOMS[band]) {
+                return band;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the generalized geometry blobs of the given features
+     * @param zoom - zoom level being drawn
+     * @param ids - feature ids
+     * @param geometryConsumer - receives each non-null geometry blob
+     * @return false if the zoom level has no band (nothing was read)
+     */
+    boolean queryGeometries(int zoom, long[] ids, Consumer<byte[]> geometryConsumer) {
+        int band = getBand(zoom);
+        if (band < 0) {
+            return false;
+        }
+
+        String select = "SELECT geom FROM " + BAND_TABLE_PREFIX + BAND_MAX_ZOOMS[band] + " WHERE id IN (";
+        for (int start = 0; start < ids.length; start += QUERY_CHUNK_SIZE) {
+            int end = Math.min(start + QUERY_CHUNK_SIZE, ids.length);
+
+            StringBuilder sql = new StringBuilder(select);
+            for (int i = start; i < end; i++) {
+                sql.append(i == start ? "?" : ",?");
+            }
+            sql.append(')');
+
+            //read the blobs through a leased connection, draw them after returning it
+            byte[][] geometries = new byte[end - start][];
+            int count = 0;
+            Connection connection = null;
+            try {
+                connection = leaseConnection();
+                if (connection == null) {
+                    return start > 0;   //closed: the layer is being dropped
+                }
+                try (PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+                    for (int i = start; i < end; i++) {
+                        statement.setLong(i - start + 1, ids[i]);
+                    }
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            byte[] geometry = resultSet.getBytes(1);
+                            if (geometry != null) {
+                                geometries[count++] = geometry;
+                            }
+                        }
+                    }
+                }
+            } catch (SQLException ex) {
+                LOGGER.log(Level.WARNING, getClass().getSimpleName() + ": Failed to read generalized geometries", ex);
+                return start > 0;   //fall back to the source table unless part of the tile was already drawn
+            } finally {
+                releaseConnection(connection);
+            }
+
+            for (int i = 0; i < count; i++) {
+                geometryConsumer.accept(geometries[i]);
+            }
+        }
+
+        return true;
+    }
+
+    private static void scheduleBuild(FeatureDao featureDao, File geoPackageFile, File file) {
+        if (!SCHEDULED.add(file.getPath() + ":" + geoPackageFile.length() + ":" + geoPackageFile.lastModified())) {
+            return;
+        }
+
+        //captured now: the build reads the GeoPackage through its own connection
+        String tableName = featureDao.getTableName();
+        String pkColumn = featureDao.getTable().getPkColumn().getName();
+        String geometryColumn = featureDao.getGeometryColumnName();
+
+        BUILDER.execute(() -> {
+            try {
+                build(geoPackageFile, tableName, pkColumn, geometryColumn, file);
+            } catch (SQLException ex) {
+                LOGGER.log(Level.WARNING, "GeneralizedGeometries: Failed to generalize " + tableName, ex);
+            }
+        });
+    }
+
+    /**
+     * Writes every band to a temporary database and moves it in place once complete
+     */
+    private static void build(File geoPackageFile, String tableName, String pkColumn, String geometryColumn, File file)
+            throws SQLException {
+        FileSignature signature;
+        try {
+            signature = FileSignature.of(geoPackageFile);
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "GeneralizedGeometries: Could not read " + geoPackageFile, ex);
+            return;
+        }
+
+        double[] tolerances = new double[BAND_MAX_ZOOMS.length];
+        for (int band = 0; band < BAND_MAX_ZOOMS.length; band++) {
+            //half a pixel at the band's deepest zoom level
+            tolerances[band] = 180.0 / (1 << BAND_MAX_ZOOMS[band]) / TILE_SIZE / 2;
+        }
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        tempFile.delete();
+
+        GeometryGeneralizer generalizer = new GeometryGeneralizer();
+        int count = 0;
+        try (Connection source = DriverManager.getConnection("jdbc:sqlite:" + geoPackageFile.getPath());
+             Connection target = DriverManager.getConnection("jdbc:sqlite:" + tempFile.getPath())) {
+
+            try (Statement statement = target.createStatement()) {
+                statement.execute("CREATE TABLE " + TABLE_INFO + " (source_size INTEGER NOT NULL, " +
+                        "source_modified INTEGER NOT NULL, source_hash INTEGER NOT NULL)");
+                for (int zoom : BAND_MAX_ZOOMS) {
+                    statement.execute("CREATE TABLE " + BAND_TABLE_PREFIX + zoom +
+                            " (id INTEGER PRIMARY KEY, geom BLOB)");
+                }
+            }
+
+            PreparedStatement[] inserts = new PreparedStatement[BAND_MAX_ZOOMS.length];
+            target.setAutoCommit(false);
+            try (PreparedStatement select = source.prepareStatement("SELECT \"" + pkColumn + "\", \"" +
+                    geometryColumn + "\" FROM \"" + tableName + "\"");
+                 ResultSet resultSet = select.executeQuery()) {
+
+                for (int band = 0; band < BAND_MAX_ZOOMS.length; band++) {
+                    inserts[band] = target.prepareStatement("INSERT INTO " + BAND_TABLE_PREFIX + BAND_MAX_ZOOMS[band] +
+                            " (id, geom) VALUES (?, ?)");
+                }
+
+                while (resultSet.next()) {
+                    byte[] geometry = resultSet.getBytes(2);
+                    if (geometry == null) {
+                        continue;
+                    }
+
+                    long id = resultSet.getLong(1);
+                    for (int band = 0; band < BAND_MAX_ZOOMS.length; band++) {
+                        byte[] generalized;
+                        try {
+                            generalized = generalizer.generalize(geometry, tolerances[band]);
+                        } catch (RuntimeException ex) {
+                            generalized = geometry;     //drawn (or rejected) like the source geometry
+                        }
+                        if (generalized == null) {
+                            continue;
+                        }
+
+                        inserts[band].setLong(1, id);
+                        inserts[band].setBytes(2, generalized);
+                        inserts[band].addBatch();
+                    }
+
+                    if (++count % BUILD_BATCH_SIZE == 0) {
+                        for (PreparedStatement insert : inserts) {
+                            insert.executeBatch();
+                        }
+                        target.commit();
+                    }
+                }
+
+                for (PreparedStatement insert : inserts) {
+                    insert.executeBatch();
+                }
+            } finally {
+                for (PreparedStatement insert : inserts) {
+                    if (insert != null) {
+                        insert.close();
+                    }
+                }
+            }
+
+            try (PreparedStatement info = target.prepareStatement("INSERT INTO " + TABLE_INFO +
+                    " (source_size, source_modified, source_hash) VALUES (?, ?, ?)")) {
+                info.setLong(1, signature.getSize());
+                info.setLong(2, signature.getLastModified());
+                info.setLong(3, signature.getContentHash());
+                info.executeUpdate();
+            }
+            target.commit();
+        } catch (SQLException ex) {
+            tempFile.delete();
+            throw ex;
+        }
+
+        file.delete();
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            LOGGER.log(Level.WARNING, "GeneralizedGeometries: Could not move " + tempFile + " to " + file);
+            return;
+        }
+
+        LOGGER.log(Level.INFO, "GeneralizedGeometries: Generalized " + count + " features of " + tableName);
+    }
+
+    /**
+     * Closes the read connections.  Reads in progress finish, later reads return false (source table).
+     */
+    void close() {
+        mClosed = true;
+        closeIdleConnections();
+    }
+
+    /**
+     * @return an idle or new read connection, or null once closed
+     */
+    private Connection leaseConnection() throws SQLException {
+        if (mClosed) {
+            return null;
+        }
+        Connection connection = mIdleConnections.poll();
+        return connection != null ? connection : mReadConfig.createConnection(mUrl);
+    }
+
+    private void releaseConnection(Connection connection) {
+        if (connection == null) {
+            return;
+        }
+        if (!mIdleConnections.offer(connection)) {
+            close(connection);
+        }
+        if (mClosed) {
+            closeIdleConnections();     //returned while (or after) close() drained the pool
+        }
+    }
+
+    private void closeIdleConnections() {
+        Connection connection;
+        while ((connection = mIdleConnections.poll()) != null) {
+            close(connection);
+        }
+    }
+
+    private static void close(Connection connection) {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException ex) {
+                LOGGER.log(Level.FINE, "GeneralizedGeometries: Failed to close connection", ex);
+            }
+        }
+    }
+}
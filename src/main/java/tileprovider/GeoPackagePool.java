@@ -0,0 +1,683 @@
+package tileprovider;
+
+import mil.nga.geopackage.GeoPackage;
+import mil.nga.geopackage.GeoPackageException;
+import mil.nga.geopackage.manager.GeoPackageManager;
+import mil.nga.geopackage.tiles.user.TileDao;
+import org.geotools.util.logging.Logging;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded pool of read-only GeoPackage connections.
+ *
+ * Each database has its own pool of connections, so concurrent readers of the same GeoPackage do not serialize on one
+ * SQLite connection.  A global limit caps the number of open connections (and therefore open files) across all
+ * databases; when it is reached the least recently used idle connection of any database is closed to make room.
+ * Connections which stay idle too long are closed in the background.
+ *
+ * A database's connections are only closed while none of them is leased and no reader uses the provider's shared
+ * connection to it (see useShared()): depending on the connection source, closing one connection to a database may
+ * close the others as well (see GeoPackageProvider), which would break in-flight reads.  Connections to close (idle
+ * timeout, eviction, broken or surplus connections, shutdown) are set aside until the last lease is returned or the
+ * last shared use ends, and shared uses starting meanwhile wait for a close in progress to finish.
+ *
+ * Databases in WAL mode allow readers alongside a writer, so they get the full per-database pool.  Databases in
+ * rollback-journal mode get a smaller pool, since every open reader holds a shared lock that keeps writers (e.g. the
+ * indexer) from committing.
+ */
+
+class GeoPackagePool {
+
+    static final Logger LOGGER = Logging.getLogger(GeoPackagePool.class);
+
+    private static final long IDLE_TIMEOUT_MILLIS = 60000L;
+    private static final long ACQUIRE_TIMEOUT_MILLIS = 10000L;
+    private static final int DEFAULT_MAX_OPEN = 256;
+
+    private final GeoPackageManager mGeoPackageManager;
+    private final int mMaxPerDatabase;
+    private final Semaphore mOpenPermits;
+    private final Map<String, DatabasePool> mPools = new ConcurrentHashMap<>();
+    private final Map<String, SharedState> mSharedStates = new ConcurrentHashMap<>();
+    private final Set<DatabasePool> mRetired = ConcurrentHashMap.newKeySet();    //shut down, closes still pending
+    private final ScheduledExecutorService mEvictor;
+
+    //Statistics
+    private final AtomicLong mAcquisitions = new AtomicLong();
+    private final AtomicLong mWaits = new AtomicLong();
+    private final AtomicLong mTimeouts = new AtomicLong();
+    private final AtomicLong mOpened = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+
+    GeoPackagePool(GeoPackageManager geoPackageManager) {
+        this(geoPackageManager, Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_OPEN);
+    }
+
+    /**
+     * Constructor
+     * @param geoPackageManager - manager used to open connections
+     * @param maxPerDatabase - maximum connections open to a single database
+     * @param maxOpen - maximum connections open across all databases
+     */
+    GeoPackagePool(GeoPackageManager geoPackageManager, int maxPerDatabase, int maxOpen) {
+        mGeoPackageManager = geoPackageManager;
+        mMaxPerDatabase = Math.max(1, maxPerDatabase);
+        mOpenPermits = new Semaphore(Math.max(1, maxOpen), true);
+
+        mEvictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "GeoPackagePool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        mEvictor.scheduleWithFixedDelay(this::evictIdle, IDLE_TIMEOUT_MILLIS, IDLE_TIMEOUT_MILLIS / 2, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Leases a read-only connection to the database.  The lease must be closed (try-with-resources) to return the
+     * connection to the pool.
+     * @param databaseName - database name as registered to GeoPackageManager
+     * @return an exclusive lease on an open connection
+     * @throws GeoPackageException if the database could not be opened or no connection became available in time
+     */
+    GeoPackageLease acquire(String databaseName) {
+        mAcquisitions.incrementAndGet();
+        DatabasePool pool = mPools.computeIfAbsent(databaseName, DatabasePool::new);
+        return new GeoPackageLease(pool, pool.take());
+    }
+
+    /**
+     * Marks the start of a read through the provider's shared connection to the database: until the returned use is
+     * closed, none of the database's pooled connections is closed.  Waits for a close in progress to finish, so the
+     * shared connection must be looked up (and reopened if closed) after this call.
+     * @param databaseName - database name as registered to GeoPackageManager
+     * @return the shared use, to be closed (try-with-resources) once the read is finished
+     */
+    SharedUse useShared(String databaseName) {
+        SharedState state = sharedState(databaseName);
+        state.begin();
+        return new SharedUse(state);
+    }
+
+    /**
+     * Closes all idle connections to the database and closes in-use connections as they are returned
+     */
+    void close(String databaseName) {
+        DatabasePool pool = mPools.remove(databaseName);
+        if (pool != null && pool.shutdown()) {
+            mRetired.add(pool);
+            pool.closePending();    //in case the last lease was returned in between
+        }
+    }
+
+    /**
+     * Closes every pooled connection
+     */
+    void closeAll() {
+        for (String databaseName : mPools.keySet()) {
+            close(databaseName);
+        }
+    }
+
+    /**
+     * @return a snapshot of the pool counters
+     */
+    Stats getStats() {
+        int open = 0;
+        int idle = 0;
+        int wal = 0;
+        for (DatabasePool pool : mPools.values()) {
+            synchronized (pool) {
+                open += pool.mOpen;
+                idle += pool.mIdle.size();
+                if (Boolean.TRUE.equals(pool.mWal)) {
+                    wal++;
+                }
+            }
+        }
+
+        return new Stats(mPools.size(), wal, open, idle, mAcquisitions.get(), mWaits.get(), mTimeouts.get(),
+                mOpened.get(), mEvictions.get());
+    }
+
+    /**
+     * Closes connections idle longer than the idle timeout
+     */
+    private void evictIdle() {
+        long cutoff = System.currentTimeMillis() - IDLE_TIMEOUT_MILLIS;
+        for (DatabasePool pool : mPools.values()) {
+            pool.evictIdleBefore(cutoff);
+        }
+    }
+
+    /**
+     * Closes the least recently used idle connection of any database to free an open-file permit
+     * @return true if a connection was closed
+     */
+    private boolean evictLeastRecentlyUsed() {
+        DatabasePool oldestPool = null;
+        long oldest = Long.MAX_VALUE;
+        for (DatabasePool pool : mPools.values()) {
+            long lastUsed = pool.oldestIdle();
+            if (lastUsed < oldest) {
+                oldest = lastUsed;
+                oldestPool = pool;
+            }
+        }
+
+        return oldestPool != null && oldestPool.evictOldest();
+    }
+
+    private SharedState sharedState(String databaseName) {
+        return mSharedStates.computeIfAbsent(databaseName, SharedState::new);
+    }
+
+    /**
+     * Closes the connections set aside while the shared connection of the database was in use
+     */
+    private void closePending(String databaseName) {
+        DatabasePool pool = mPools.get(databaseName);
+        if (pool != null) {
+            pool.closePending();
+        }
+        for (DatabasePool retired : mRetired) {
+            if (retired.mDatabaseName.equals(databaseName)) {
+                retired.closePending();
+            }
+        }
+    }
+
+    /**
+     * Readers of the provider's shared connection to a database and closes of its pooled connections in progress,
+     * which exclude each other (one per database, outliving pool shutdowns)
+     */
+    private final class SharedState {
+        private final String mDatabaseName;
+        private int mUses = 0;
+        private int mClosing = 0;
+
+        SharedState(String databaseName) {
+            mDatabaseName = databaseName;
+        }
+
+        synchronized void begin() {
+            boolean interrupted = false;
+            while (mClosing > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            mUses++;
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void end() {
+            boolean last;
+            synchronized (this) {
+                last = --mUses == 0;
+            }
+            if (last) {
+                closePending(mDatabaseName);
+            }
+        }
+
+        synchronized boolean isInUse() {
+            return mUses > 0;
+        }
+
+        /**
+         * @return true if no shared use is in progress, and none starts until endClose()
+         */
+        synchronized boolean tryBeginClose() {
+            if (mUses > 0) {
+                return false;
+            }
+            mClosing++;
+            return true;
+        }
+
+        synchronized void endClose() {
+            mClosing--;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Connection pool of a single database
+     */
+    private class DatabasePool {
+        private final String mDatabaseName;
+        private final SharedState mShared;
+        private final Deque<PooledGeoPackage> mIdle = new ArrayDeque<>();   //most recently used first
+        private final List<PooledGeoPackage> mPendingClose = new ArrayList<>();  //closed once nothing is leased
+        private int mOpen = 0;      //idle, leased and being opened (not pending close)
+        private int mMaxOpen = mMaxPerDatabase;
+        private Boolean mWal = null;     //unknown until first connection is opened
+        private boolean mShutdown = false;
+
+        DatabasePool(String databaseName) {
+            mDatabaseName = databaseName;
+            mShared = sharedState(databaseName);
+        }
+
+        PooledGeoPackage take() {
+            long deadline = System.currentTimeMillis() + ACQUIRE_TIMEOUT_MILLIS;
+            boolean waited = false;
+
+            while (true) {
+                synchronized (this) {
+                    if (mShutdown) {
+                        throw new GeoPackageException("GeoPackage pool closed: " + mDatabaseName);
+                    }
+
+                    PooledGeoPackage pooled = mIdle.pollFirst();
+                    if (pooled != null) {
+                        return pooled;
+                    }
+
+                    if (mOpen >= mMaxOpen) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            mTimeouts.incrementAndGet();
+                            throw new GeoPackageException("Timed out waiting for a connection to " + mDatabaseName);
+                        }
+                        if (!waited) {
+                            waited = true;
+                            mWaits.incrementAndGet();
+                        }
+                        try {
+                            wait(remaining);
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            throw new GeoPackageException("Interrupted waiting for a connection to " + mDatabaseName, ex);
+                        }
+                        continue;
+                    }
+
+                    //reserve a slot, the connection itself is opened outside the lock
+                    mOpen++;
+                }
+
+                try {
+                    return open(deadline);
+                } catch (RuntimeException ex) {
+                    List<PooledGeoPackage> closable;
+                    synchronized (this) {
+                        mOpen--;
+                        closable = takeClosable();
+                        notifyAll();
+                    }
+                    closeConnections(closable);
+                    throw ex;
+                }
+            }
+        }
+
+        private PooledGeoPackage open(long deadline) {
+            //respect the global open connection limit, closing idle connections of other databases if needed
+            while (!mOpenPermits.tryAcquire()) {
+                if (!evictLeastRecentlyUsed()) {
+                    try {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0 || !mOpenPermits.tryAcquire(remaining, TimeUnit.MILLISECONDS)) {
+                            mTimeouts.incrementAndGet();
+                            throw new GeoPackageException("Too many open GeoPackage connections");
+                        }
+                        break;
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new GeoPackageException("Interrupted waiting for a connection to " + mDatabaseName, ex);
+                    }
+                }
+            }
+
+            GeoPackage geoPackage;
+            try {
+                geoPackage = mGeoPackageManager.open(mDatabaseName, false);    //readonly
+                if (geoPackage == null) {
+                    throw new GeoPackageException("GeoPackage " + mDatabaseName + " returned null.");
+                }
+            } catch (RuntimeException ex) {
+                mOpenPermits.release();
+                throw ex;
+            }
+            mOpened.incrementAndGet();
+
+            synchronized (this) {
+                if (mWal == null) {
+                    mWal = isWal(geoPackage);
+                    if (!mWal) {
+                        mMaxOpen = Math.max(1, mMaxPerDatabase / 2);
+                    }
+                }
+            }
+
+            return new PooledGeoPackage(geoPackage);
+        }
+
+        void release(PooledGeoPackage pooled, boolean broken) {
+            List<PooledGeoPackage> closable;
+            synchronized (this) {
+                if (broken || mShutdown || mOpen > mMaxOpen) {
+                    mOpen--;
+                    mPendingClose.add(pooled);
+                } else {
+                    pooled.mLastUsed = System.currentTimeMillis();
+                    mIdle.addFirst(pooled);
+                }
+                closable = takeClosable();
+                notifyAll();
+            }
+
+            closeConnections(closable);
+        }
+
+        /**
+         * @return last use of the oldest idle connection, or Long.MAX_VALUE if there is none or connections of this
+         * database are leased (and idle ones can't be closed)
+         */
+        synchronized long oldestIdle() {
+            PooledGeoPackage pooled = mIdle.peekLast();
+            return pooled != null && !isLeased() && !mShared.isInUse() ? pooled.mLastUsed : Long.MAX_VALUE;
+        }
+
+        boolean evictOldest() {
+            PooledGeoPackage pooled;
+            synchronized (this) {
+                if (isLeased() || mIdle.isEmpty() || !mShared.tryBeginClose()) {
+                    return false;
+                }
+                pooled = mIdle.pollLast();
+                mOpen--;
+                notifyAll();
+            }
+
+            mEvictions.incrementAndGet();
+            try {
+                closeConnection(pooled);
+            } finally {
+                mShared.endClose();
+            }
+            return true;
+        }
+
+        void evictIdleBefore(long cutoff) {
+            while (oldestIdle() < cutoff && evictOldest()) {
+                //keep evicting
+            }
+        }
+
+        /**
+         * @return true if connections are still pending close (leased, or the shared connection is in use)
+         */
+        boolean shutdown() {
+            List<PooledGeoPackage> closable;
+            synchronized (this) {
+                mShutdown = true;
+                mPendingClose.addAll(mIdle);
+                mOpen -= mIdle.size();
+                mIdle.clear();
+                closable = takeClosable();
+                notifyAll();
+            }
+
+            closeConnections(closable);
+            synchronized (this) {
+                return !mPendingClose.isEmpty();
+            }
+        }
+
+        /**
+         * Closes the connections pending close, if nothing holds them back anymore
+         */
+        void closePending() {
+            List<PooledGeoPackage> closable;
+            synchronized (this) {
+                closable = takeClosable();
+            }
+            closeConnections(closable);
+            forgetIfRetired();
+        }
+
+        /**
+         * @return true if a connection of this database is leased (or being opened)
+         */
+        private boolean isLeased() {
+            return mOpen > mIdle.size();
+        }
+
+        /**
+         * @return the connections pending close if none is leased and the shared connection is not in use anymore
+         * (removed from the pending list; closeConnections() must follow)
+         */
+        private List<PooledGeoPackage> takeClosable() {
+            if (mPendingClose.isEmpty() || isLeased() || !mShared.tryBeginClose()) {
+                return Collections.emptyList();
+            }
+            List<PooledGeoPackage> closable = new ArrayList<>(mPendingClose);
+            mPendingClose.clear();
+            return closable;
+        }
+
+        private void closeConnections(List<PooledGeoPackage> pooledGeoPackages) {
+            if (pooledGeoPackages.isEmpty()) {
+                return;
+            }
+            try {
+                for (PooledGeoPackage pooled : pooledGeoPackages) {
+                    closeConnection(pooled);
+                }
+            } finally {
+                mShared.endClose();
+                forgetIfRetired();
+            }
+        }
+
+        /**
+         * Drops a shut down pool from the retired pools once nothing is pending close anymore
+         */
+        private void forgetIfRetired() {
+            synchronized (this) {
+                if (!mShutdown || !mPendingClose.isEmpty()) {
+                    return;
+                }
+            }
+            mRetired.remove(this);
+        }
+
+        private void closeConnection(PooledGeoPackage pooled) {
+            try {
+                pooled.mGeoPackage.close();
+            } catch (RuntimeException ex) {
+                LOGGER.log(Level.WARNING, getClass().getSimpleName() + ": Failed to close " + mDatabaseName, ex);
+            } finally {
+                mOpenPermits.release();
+            }
+        }
+    }
+
+    private static boolean isWal(GeoPackage geoPackage) {
+        try {
+            Object journalMode = geoPackage.getConnection().querySingleResult("PRAGMA journal_mode", null);
+            return journalMode != null && "wal".equalsIgnoreCase(journalMode.toString());
+        } catch (RuntimeException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Pooled connection along with DAOs created on it
+     */
+    private static class PooledGeoPackage {
+        private final GeoPackage mGeoPackage;
+        private final Map<String, TileDao> mTileDaos = new HashMap<>();
+        private volatile long mLastUsed = System.currentTimeMillis();
+
+        PooledGeoPackage(GeoPackage geoPackage) {
+            mGeoPackage = geoPackage;
+        }
+    }
+
+    /**
+     * A read through the provider's shared connection to a database.  Close to let the pool close connections of
+     * the database again.
+     */
+    static class SharedUse implements AutoCloseable {
+        private SharedState mState;
+
+        private SharedUse(SharedState state) {
+            mState = state;
+        }
+
+        @Override
+        public void close() {
+            if (mState != null) {
+                mState.end();
+                mState = null;
+            }
+        }
+    }
+
+    /**
+     * Exclusive use of a pooled connection.  Close to return the connection to the pool.
+     */
+    static class GeoPackageLease implements AutoCloseable {
+        private final DatabasePool mPool;
+        private PooledGeoPackage mPooled;
+        private boolean mBroken = false;
+
+        private GeoPackageLease(DatabasePool pool, PooledGeoPackage pooled) {
+            mPool = pool;
+            mPooled = pooled;
+        }
+
+        GeoPackage getGeoPackage() {
+            return pooled().mGeoPackage;
+        }
+
+        /**
+         * @return a tile DAO bound to this connection (created once per connection and table)
+         */
+        TileDao getTileDao(String tableName) {
+            PooledGeoPackage pooled = pooled();
+            TileDao tileDao = pooled.mTileDaos.get(tableName);
+            if (tileDao == null) {
+                tileDao = pooled.mGeoPackage.getTileDao(tableName);
+                pooled.mTileDaos.put(tableName, tileDao);
+            }
+            return tileDao;
+        }
+
+        /**
+         * Marks the connection as unusable; it is closed instead of returned to the pool
+         */
+        void invalidate() {
+            mBroken = true;
+        }
+
+        @Override
+        public void close() {
+            if (mPooled != null) {
+                mPool.release(mPooled, mBroken);
+                mPooled = null;
+            }
+        }
+
+        private PooledGeoPackage pooled() {
+            if (mPooled == null) {
+                throw new IllegalStateException("GeoPackage lease already closed");
+            }
+            return mPooled;
+        }
+    }
+
+    /**
+     * Snapshot of pool counters
+     */
+    static final class Stats {
+        private final int mDatabases;
+        private final int mWalDatabases;
+        private final int mOpenConnections;
+        private final int mIdleConnections;
+        private final long mAcquisitions;
+        private final long mWaits;
+        private final long mTimeouts;
+        private final long mOpened;
+        private final long mEvictions;
+
+        Stats(int databases, int walDatabases, int openConnections, int idleConnections, long acquisitions,
+              long waits, long timeouts, long opened, long evictions) {
+            mDatabases = databases;
+            mWalDatabases = walDatabases;
+            mOpenConnections = openConnections;
+            mIdleConnections = idleConnections;
+            mAcquisitions = acquisitions;
+            mWaits = waits;
+            mTimeouts = timeouts;
+            mOpened = opened;
+            mEvictions = evictions;
+        }
+
+        public int getDatabases() {
+            return mDatabases;
+        }
+
+        public int getWalDatabases() {
+            return mWalDatabases;
+        }
+
+        public int getOpenConnections() {
+            return mOpenConnections;
+        }
+
+        public int getIdleConnections() {
+            return mIdleConnections;
+        }
+
+        public long getAcquisitions() {
+            return mAcquisitions;
+        }
+
+        public long getWaits() {
+            return mWaits;
+        }
+
+        public long getTimeouts() {
+            return mTimeouts;
+        }
+
+        public long getOpened() {
+            return mOpened;
+        }
+
+        public long getEvictions() {
+            return mEvictions;
+        }
+
+        @Override
+        public String toString() {
+            return "databases=" + mDatabases + ", wal=" + mWalDatabases + ", open=" + mOpenConnections +
+                    ", idle=" + mIdleConnections + ", acquisitions=" + mAcquisitions + ", waits=" + mWaits +
+                    ", timeouts=" + mTimeouts + ", opened=" + mOpened + ", evictions=" + mEvictions;
+        }
+    }
+}
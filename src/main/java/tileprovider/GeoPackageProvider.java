@@ -20,12 +20,21 @@ import java.util.concurrent.ConcurrentHashMap;
  * but closing one connection closes the other connection as well.  This class serves to insure an open connection is available at all times.
  *
  * This class uses a Singleton Model since there is only one database to maintain connections to.
+ *
+ * Hot read paths (e.g. tile reads) should lease a connection with acquire() instead.  Leased connections come from a
+ * bounded pool of read-only connections per database, so concurrent readers do not share one SQLite connection.
+ * Because of the shared close described above, the pool only closes a database's connections (idle timeout,
+ * eviction, closeGeoPackage) once none of them is leased and no read through getGeoPackage() is in progress: readers
+ * of the GeoPackage returned by getGeoPackage() bracket their reads with useShared(), and look the GeoPackage up
+ * (reopening it if a pool close closed it) inside the bracket.
  */
 
 public class GeoPackageProvider {
 
-    //Singleton
-    private static GeoPackageProvider instance = null;
+    //Singleton -- initialized on first use by the class loader (thread safe)
+    private static class InstanceHolder {
+        private static final GeoPackageProvider instance = new GeoPackageProvider();
+    }
 
     public GeoPackageManager getGeoPackageManager() {
         return geoPackageManager;
@@ -36,11 +45,7 @@ public class GeoPackageProvider {
      * @return instance
      */
     public static GeoPackageProvider getInstance() {
-        if (instance == null) {
-            instance = new GeoPackageProvider();
-        }
-
-        return instance;
+        return InstanceHolder.instance;
     }
 
     /**
@@ -53,6 +58,11 @@ public class GeoPackageProvider {
      */
     private GeoPackageManager geoPackageManager = null;
 
+    /**
+     * Pool of read-only connections handed out through acquire()
+     */
+    private GeoPackagePool geoPackagePool;
+
     /**
      * Constructor - Private to prevent instantiation (Singleton Model).  Use static method getInstance() instead.
      */
@@ -61,6 +71,7 @@ public class GeoPackageProvider {
             geoPackageManager = new GeoPackageManager();
         }
         geoPackageMap = new ConcurrentHashMap<>();
+        geoPackagePool = new GeoPackagePool(geoPackageManager);
     }
 
     /**
@@ -70,16 +81,44 @@ public class GeoPackageProvider {
      * @return an open GeoPackage if found or Null if database is not registered to GeoPackageManager
      */
     public GeoPackage getGeoPackage(String databaseName) {
-        GeoPackage geoPackage = geoPackageMap.get(databaseName);
+        //compute() is atomic per key, so concurrent callers never open two GeoPackages for the same database
+        return geoPackageMap.compute(databaseName, (name, geoPackage) -> {
+            //If GeoPackage doesn't exist or is no longer open
+            if (geoPackage == null ||
+                    !geoPackage.getConnection().getConnectionSource().isOpen(name)) { //Nested methods never null
+                //Open new GeoPackage
+                geoPackage = openGeoPackage(name);
+            }
+            return geoPackage;
+        });
+    }
 
-        //If GeoPackage doesn't exist or is no longer open
-        if (geoPackage == null ||
-                !geoPackage.getConnection().getConnectionSource().isOpen(databaseName)) { //Nested methods never null
-            //Open new GeoPackage and register it
-            geoPackage = openGeoPackage(databaseName);
-        }
+    /**
+     * Leases a pooled read-only connection to the given database.  Close the lease (try-with-resources) as soon as
+     * the read is finished so the connection returns to the pool.
+     * @param databaseName - Database name as registered to GeoPackageManager
+     * @return an exclusive lease on an open connection
+     * @throws GeoPackageException if the database could not be opened or no connection became available in time
+     */
+    GeoPackagePool.GeoPackageLease acquire(String databaseName) {
+        return geoPackagePool.acquire(databaseName);
+    }
 
-        return geoPackage;
+    /**
+     * Marks a read through the GeoPackage returned by getGeoPackage(), which keeps the pool from closing connections to
+     * the database (and with them, possibly, this one) until the returned use is closed
+     * @param databaseName - Database name as registered to GeoPackageManager
+     * @return the shared use, to be closed (try-with-resources) once the read is finished
+     */
+    GeoPackagePool.SharedUse useShared(String databaseName) {
+        return geoPackagePool.useShared(databaseName);
+    }
+
+    /**
+     * @return connection pool counters
+     */
+    GeoPackagePool.Stats getPoolStats() {
+        return geoPackagePool.getStats();
     }
 
     /**
@@ -88,6 +127,7 @@ public class GeoPackageProvider {
      */
     public void closeAll() {
         closeGeoPackages(geoPackageMap.keySet());
+        geoPackagePool.closeAll();
     }
 
     public void closeGeoPackages(Collection<String> databaseNames) {
@@ -105,11 +145,11 @@ public class GeoPackageProvider {
      * @param databaseName
      */
     public void closeGeoPackage(String databaseName) {
-        GeoPackage geopackage = geoPackageMap.get(databaseName);
+        GeoPackage geopackage = geoPackageMap.remove(databaseName);
         if (geopackage != null) {
             geopackage.close();
-            geoPackageMap.remove(databaseName);
         }
+        geoPackagePool.close(databaseName);
     }
 
     /**
@@ -122,8 +162,6 @@ public class GeoPackageProvider {
         try {
             //attempt to open GeoPackage through GeoPackageManager
             geoPackage = geoPackageManager.open(databaseName, false);    //readonly
-            //register to this object's map
-            geoPackageMap.put(databaseName, geoPackage);
         } catch (GeoPackageException ex) {
             ex.printStackTrace();
         }
@@ -0,0 +1,308 @@
+package tileprovider;
+
+import mil.nga.geopackage.BoundingBox;
+import mil.nga.geopackage.GeoPackageException;
+
+/**
+ * Streams GeoPackage geometry blobs (GeoPackage header followed by Well Known Binary) straight onto a
+ * FeatureTileCanvas, without building a mil.nga.sf Geometry.
+ *
+ * The envelope stored in the GeoPackage header is checked first, so features outside the (expanded) tile are rejected
+ * before the WKB body is read.  Blobs without a header envelope are scanned once for their bounds.  Coordinates are
+ * read from the byte array into the canvas' CoordinateBuffer, simplified in place and emitted -- no objects are
+ * created per feature or per vertex.
+ *
+ * Supports the geometry types drawn by Epsg4326FeatureTiles.drawShape (ISO and EWKB Z/M flags, which are skipped).
+ * Not thread-safe: one renderer per tile being drawn.
+ */
+
+final class GeometryBlobRenderer {
+
+    private static final int WKB_POINT = 1;
+    private static final int WKB_LINESTRING = 2;
+    private static final int WKB_POLYGON = 3;
+    private static final int WKB_MULTIPOINT = 4;
+    private static final int WKB_MULTILINESTRING = 5;
+    private static final int WKB_MULTIPOLYGON = 6;
+    private static final int WKB_GEOMETRYCOLLECTION = 7;
+    private static final int WKB_CIRCULARSTRING = 8;
+    private static final int WKB_COMPOUNDCURVE = 9;
+    private static final int WKB_POLYHEDRALSURFACE = 15;
+    private static final int WKB_TIN = 16;
+    private static final int WKB_TRIANGLE = 17;
+
+    private static final int EWKB_Z = 0x80000000;
+    private static final int EWKB_M = 0x40000000;
+    private static final int EWKB_SRID = 0x20000000;
+
+    private final FeatureTileCanvas mCanvas;
+    private final double mSimplifyTolerance;
+    private final double mMinX;
+    private final double mMinY;
+    private final double mMaxX;
+    private final double mMaxY;
+
+    private byte[] mData;
+    private int mPosition;
+    private boolean mLittleEndian;
+
+    //bounds collected while scanning a blob without a header envelope
+    private boolean mScanning;
+    private double mScanMinX;
+    private double mScanMinY;
+    private double mScanMaxX;
+    private double mScanMaxY;
+
+    /**
+     * Constructor
+     * @param canvas - canvas to draw on
+     * @param expandedBoundingBox - features whose envelope does not intersect this box are not drawn
+     * @param simplifyTolerance - simplify tolerance in pixels (0 to not simplify)
+     */
+    GeometryBlobRenderer(FeatureTileCanvas canvas, BoundingBox expandedBoundingBox, double simplifyTolerance) {
+        mCanvas = canvas;
+        mSimplifyTolerance = simplifyTolerance;
+        mMinX = expandedBoundingBox.getMinLongitude();
+        mMinY = expandedBoundingBox.getMinLatitude();
+        mMaxX = expandedBoundingBox.getMaxLongitude();
+        mMaxY = expandedBoundingBox.getMaxLatitude();
+    }
+
+    /**
+     * Draws a geometry if its envelope intersects the expanded tile
+     * @param blob - GeoPackage geometry blob
+     * @return true if the geometry was drawn
+     * @throws GeoPackageException if the blob is malformed or holds an unsupported geometry type
+     */
+    boolean draw(byte[] blob) {
+        if (blob == null || blob.length < 8 || blob[0] != 'G' || blob[1] != 'P') {
+            throw new GeoPackageException("Not a GeoPackage geometry blob");
+        }
+
+        int flags = blob[3];
+        if ((flags & 0x20) != 0) {
+            throw new GeoPackageException("Unsupported extended GeoPackage geometry");
+        }
+        if ((flags & 0x10) != 0) {
+            return false;   //empty geometry
+        }
+
+        mData = blob;
+        mLittleEndian = (flags & 0x01) != 0;
+        mPosition = 8;  //magic, version, flags, srs_id
+
+        int envelopeIndicator = (flags >> 1) & 0x07;
+        int wkbStart;
+        switch (envelopeIndicator) {
+            case 0:
+                wkbStart = 8;
+                break;
+            case 1:
+                wkbStart = 8 + 4 * 8;
+                break;
+            case 2:
+            case 3:
+                wkbStart = 8 + 6 * 8;
+                break;
+            case 4:
+                wkbStart = 8 + 8 * 8;
+                break;
+            default:
+                throw new GeoPackageException("Invalid GeoPackage geometry envelope indicator: " + envelopeIndicator);
+        }
+
+        if (envelopeIndicator != 0) {
+            //header envelope: minX, maxX, minY, maxY
+            double minX = readDouble();
+            double maxX = readDouble();
+            double minY = readDouble();
+            double maxY = readDouble();
+            if (!intersects(minX, minY, maxX, maxY)) {
+                return false;
+            }
+        } else {
+            mScanning = true;
+            mScanMinX = Double.POSITIVE_INFINITY;
+            mScanMinY = Double.POSITIVE_INFINITY;
+            mScanMaxX = Double.NEGATIVE_INFINITY;
+            mScanMaxY = Double.NEGATIVE_INFINITY;
+            mPosition = wkbStart;
+            try {
+                readGeometry();
+            } finally {
+                mScanning = false;
+            }
+            if (!intersects(mScanMinX, mScanMinY, mScanMaxX, mScanMaxY)) {
+                return false;
+            }
+        }
+
+        mPosition = wkbStart;
+        readGeometry();
+        return true;
+    }
+
+    private boolean intersects(double minX, double minY, double maxX, double maxY) {
+        return minX <= mMaxX && maxX >= mMinX && minY <= mMaxY && maxY >= mMinY;
+    }
+
+    /**
+     * Reads one WKB geometry (byte order, type, body) at the current position, drawing it unless scanning
+     */
+    private void readGeometry() {
+        mLittleEndian = mData[mPosition++] == 1;
+        int type = readInt();
+
+        int dimensions = 2;
+        if ((type & EWKB_Z) != 0) {
+            dimensions++;
+        }
+        if ((type & EWKB_M) != 0) {
+            dimensions++;
+        }
+        if ((type & EWKB_SRID) != 0) {
+            mPosition += 4;
+        }
+        type &= 0x0FFFFFFF;
+
+        //ISO: 1000 + type for Z, 2000 for M, 3000 for ZM
+        switch (type / 1000) {
+            case 1:
+            case 2:
+                dimensions++;
+                break;
+            case 3:
+                dimensions += 2;
+                break;
+        }
+        int skip = (dimensions - 2) * 8;
+
+        switch (type % 1000) {
+            case WKB_POINT:
+                readPoint(skip);
+                break;
+            case WKB_LINESTRING:
+            case WKB_CIRCULARSTRING:
+                if (!mScanning) {
+                    mCanvas.beginLine();
+                }
+                readLineString(skip, false);
+                if (!mScanning) {
+                    mCanvas.endLine();
+                }
+                break;
+            case WKB_POLYGON:
+            case WKB_TRIANGLE:
+                if (!mScanning) {
+                    mCanvas.beginPolygon();
+                }
+                int rings = readInt();
+                for (int i = 0; i < rings; i++) {
+                    readLineString(skip, true);
+                }
+                if (!mScanning) {
+                    mCanvas.endPolygon();
+                }
+                break;
+            case WKB_MULTIPOINT:
+            case WKB_MULTILINESTRING:
+            case WKB_MULTIPOLYGON:
+            case WKB_GEOMETRYCOLLECTION:
+            case WKB_COMPOUNDCURVE:
+            case WKB_POLYHEDRALSURFACE:
+            case WKB_TIN:
+                int geometries = readInt();
+                for (int i = 0; i < geometries; i++) {
+                    readGeometry();
+                }
+                break;
+            default:
+                throw new GeoPackageException("Unsupported WKB Geometry Type: " + type);
+        }
+    }
+
+    private void readPoint(int skip) {
+        double x = readDouble();
+        double y = readDouble();
+        mPosition += skip;
+
+        if (Double.isNaN(x) || Double.isNaN(y)) {
+            return;     //empty point
+        }
+
+        if (mScanning) {
+            extendScan(x, y);
+        } else {
+            TileTransform transform = mCanvas.getTransform();
+            mCanvas.point(transform.x(x), transform.y(y));
+        }
+    }
+
+    /**
+     * Reads a point count and its points, emitting them as a line or a ring
+     */
+    private void readLineString(int skip, boolean ring) {
+        int count = readInt();
+
+        if (mScanning) {
+            for (int i = 0; i < count; i++) {
+                extendScan(readDouble(), readDouble());
+                mPosition += skip;
+            }
+            return;
+        }
+
+        TileTransform transform = mCanvas.getTransform();
+        CoordinateBuffer buffer = mCanvas.getCoordinateBuffer();
+        buffer.clear();
+        for (int i = 0; i < count; i++) {
+            double x = readDouble();
+            double y = readDouble();
+            mPosition += skip;
+            buffer.add(transform, x, y);
+        }
+
+        if (count >= 2) {
+            buffer.simplify(mSimplifyTolerance);
+            if (ring) {
+                buffer.emitRing(mCanvas);
+            } else {
+                buffer.emitLine(mCanvas);
+            }
+        }
+    }
+
+    private void extendScan(double x, double y) {
+        mScanMinX = Math.min(mScanMinX, x);
+        mScanMinY = Math.min(mScanMinY, y);
+        mScanMaxX = Math.max(mScanMaxX, x);
+        mScanMaxY = Math.max(mScanMaxY, y);
+    }
+
+    private int readInt() {
+        byte[] d = mData;
+        int p = mPosition;
+        mPosition += 4;
+        if (mLittleEndian) {
+            return (d[p] & 0xff) | (d[p + 1] & 0xff) << 8 | (d[p + 2] & 0xff) << 16 | (d[p + 3] & 0xff) << 24;
+        }
+        return (d[p] & 0xff) << 24 | (d[p + 1] & 0xff) << 16 | (d[p + 2] & 0xff) << 8 | (d[p + 3] & 0xff);
+    }
+
+    private double readDouble() {
+        byte[] d = mData;
+        int p = mPosition;
+        mPosition += 8;
+        long bits = 0;
+        if (mLittleEndian) {
+            for (int i = 7; i >= 0; i--) {
+                bits = bits << 8 | (d[p + i] & 0xff);
+            }
+        } else {
+            for (int i = 0; i < 8; i++) {
+                bits = bits << 8 | (d[p + i] & 0xff);
+            }
+        }
+        return Double.longBitsToDouble(bits);
+    }
+}
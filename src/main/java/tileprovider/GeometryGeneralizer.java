@@ -0,0 +1,290 @@
+package tileprovider;
+
+import mil.nga.geopackage.GeoPackageException;
+
+import java.util.Arrays;
+
+/**
+ * Writes simplified copies of GeoPackage geometry blobs, for the generalized geometry tables of a feature layer.
+ *
+ * The WKB is streamed: each line string and ring is read into a CoordinateBuffer, simplified in place with the given
+ * tolerance (in degrees) and written to the output.  Output blobs are 2D, little endian, and carry an XY envelope in
+ * their GeoPackage header so GeometryBlobRenderer can reject them without reading the body.  Circular strings are
+ * written as line strings (they are drawn as such).  Rings which would collapse keep their original points if they
+ * are the exterior ring and are dropped if they are holes.
+ *
+ * Not thread-safe: one generalizer per thread.
+ */
+
+final class GeometryGeneralizer {
+
+    private final CoordinateBuffer mBuffer = new CoordinateBuffer();
+
+    //input
+    private byte[] mData;
+    private int mPosition;
+    private boolean mLittleEndian;
+
+    //output
+    private byte[] mOutput = new byte[1024];
+    private int mOutputLength;
+    private double mMinX;
+    private double mMinY;
+    private double mMaxX;
+    private double mMaxY;
+
+    /**
+     * Simplifies a geometry
+     * @param blob - GeoPackage geometry blob
+     * @param tolerance - simplify tolerance in degrees
+     * @return the simplified GeoPackage geometry blob or null if the geometry is empty
+     * @throws GeoPackageException if the blob is malformed or holds an unsupported geometry type
+     */
+    byte[] generalize(byte[] blob, double tolerance) {
+        if (blob == null || blob.length < 8 || blob[0] != 'G' || blob[1] != 'P') {
+            throw new GeoPackageException("Not a GeoPackage geometry blob");
+        }
+
+        int flags = blob[3];
+        if ((flags & 0x20) != 0) {
+            throw new GeoPackageException("Unsupported extended GeoPackage geometry");
+        }
+        if ((flags & 0x10) != 0) {
+            return null;
+        }
+
+        int envelopeIndicator = (flags >> 1) & 0x07;
+        int[] envelopeLengths = {0, 4, 6, 6, 8};
+        if (envelopeIndicator >= envelopeLengths.length) {
+            throw new GeoPackageException("Invalid GeoPackage geometry envelope indicator: " + envelopeIndicator);
+        }
+
+        mData = blob;
+        mMinX = Double.POSITIVE_INFINITY;
+        mMinY = Double.POSITIVE_INFINITY;
+        mMaxX = Double.NEGATIVE_INFINITY;
+        mMaxY = Double.NEGATIVE_INFINITY;
+
+        //header: magic, version, flags (little endian, XY envelope), srs_id, envelope (written last)
+        mOutputLength = 0;
+        writeByte('G');
+        writeByte('P');
+        writeByte(0);
+        writeByte(0x03);
+        mLittleEndian = (flags & 0x01) != 0;
+        mPosition = 4;
+        writeInt(readInt());
+        mPosition = 8 + envelopeLengths[envelopeIndicator] * 8;
+        int envelopeStart = mOutputLength;
+        mOutputLength += 4 * 8;
+
+        generalizeGeometry(tolerance);
+
+        if (mMinX > mMaxX) {
+            return null;    //no coordinates
+        }
+
+        int end = mOutputLength;
+        mOutputLength = envelopeStart;
+        writeDouble(mMinX);
+        writeDouble(mMaxX);
+        writeDouble(mMinY);
+        writeDouble(mMaxY);
+
+        return Arrays.copyOf(mOutput, end);
+    }
+
+    private void generalizeGeometry(double tolerance) {
+        mLittleEndian = mData[mPosition++] == 1;
+        int type = readInt();
+
+        int dimensions = 2;
+        if ((type & 0x80000000) != 0) {
+            dimensions++;
+        }
+        if ((type & 0x40000000) != 0) {
+            dimensions++;
+        }
+        if ((type & 0x20000000) != 0) {
+            mPosition += 4;     //EWKB srid
+        }
+        type &= 0x0FFFFFFF;
+        switch (type / 1000) {
+            case 1:
+            case 2:
+                dimensions++;
+                break;
+            case 3:
+                dimensions += 2;
+                break;
+        }
+        int skip = (dimensions - 2) * 8;
+        type %= 1000;
+
+        switch (type) {
+            case 1: {   //point
+                double x = readDouble();
+                double y = readDouble();
+                mPosition += skip;
+                writeType(type);
+                writePoint(x, y);
+                break;
+            }
+            case 2:     //line string
+            case 8: {   //circular string
+                readPoints(skip);
+                mBuffer.simplify(tolerance);
+                writeType(2);
+                writePoints();
+                break;
+            }
+            case 3:     //polygon
+            case 17: {  //triangle
+                writeType(type);
+                int countPosition = mOutputLength;
+                writeInt(0);
+                int rings = readInt();
+                int written = 0;
+                for (int i = 0; i < rings; i++) {
+                    readPoints(skip);
+                    int count = mBuffer.size();
+                    if (count < 4) {
+                        continue;
+                    }
+                    double[] original = i == 0 ? copyPoints() : null;
+                    mBuffer.simplify(tolerance);
+                    if (mBuffer.size() < 4) {
+                        if (original == null) {
+                            continue;   //collapsed hole
+                        }
+                        mBuffer.clear();
+                        for (int j = 0; j < original.length; j += 2) {
+                            mBuffer.addPixel(original[j], original[j + 1]);
+                        }
+                    }
+                    writePoints();
+                    written++;
+                }
+                int end = mOutputLength;
+                mOutputLength = countPosition;
+                writeInt(written);
+                mOutputLength = end;
+                break;
+            }
+            case 4:     //multi point
+            case 5:     //multi line string
+            case 6:     //multi polygon
+            case 7:     //geometry collection
+            case 9:     //compound curve
+            case 15:    //polyhedral surface
+            case 16: {  //tin
+                writeType(type);
+                int geometries = readInt();
+                writeInt(geometries);
+                for (int i = 0; i < geometries; i++) {
+                    generalizeGeometry(tolerance);
+                }
+                break;
+            }
+            default:
+                throw new GeoPackageException("Unsupported WKB Geometry Type: " + type);
+        }
+    }
+
+    private void readPoints(int skip) {
+        int count = readInt();
+        mBuffer.clear();
+        for (int i = 0; i < count; i++) {
+            double x = readDouble();
+            double y = readDouble();
+            mPosition += skip;
+            mBuffer.addPixel(x, y);
+        }
+    }
+
+    private double[] copyPoints() {
+        double[] points = new double[mBuffer.size() * 2];
+        for (int i = 0; i < mBuffer.size(); i++) {
+            points[i * 2] = mBuffer.getX(i);
+            points[i * 2 + 1] = mBuffer.getY(i);
+        }
+        return points;
+    }
+
+    private void writeType(int type) {
+        writeByte(1);   //little endian
+        writeInt(type);
+    }
+
+    private void writePoints() {
+        int count = mBuffer.size();
+        writeInt(count);
+        for (int i = 0; i < count; i++) {
+            writePoint(mBuffer.getX(i), mBuffer.getY(i));
+        }
+    }
+
+    private void writePoint(double x, double y) {
+        writeDouble(x);
+        writeDouble(y);
+        if (!Double.isNaN(x) && !Double.isNaN(y)) {
+            mMinX = Math.min(mMinX, x);
+            mMinY = Math.min(mMinY, y);
+            mMaxX = Math.max(mMaxX, x);
+            mMaxY = Math.max(mMaxY, y);
+        }
+    }
+
+    private int readInt() {
+        byte[] d = mData;
+        int p = mPosition;
+        mPosition += 4;
+        if (mLittleEndian) {
+            return (d[p] & 0xff) | (d[p + 1] & 0xff) << 8 | (d[p + 2] & 0xff) << 16 | (d[p + 3] & 0xff) << 24;
+        }
+        return (d[p] & 0xff) << 24 | (d[p + 1] & 0xff) << 16 | (d[p + 2] & 0xff) << 8 | (d[p + 3] & 0xff);
+    }
+
+    private double readDouble() {
+        byte[] d = mData;
+        int p = mPosition;
+        mPosition += 8;
+        long bits = 0;
+        if (mLittleEndian) {
+            for (int i = 7; i >= 0; i--) {
+                bits = bits << 8 | (d[p + i] & 0xff);
+            }
+        } else {
+            for (int i = 0; i < 8; i++) {
+                bits = bits << 8 | (d[p + i] & 0xff);
+            }
+        }
+        return Double.longBitsToDouble(bits);
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (mOutputLength + bytes > mOutput.length) {
+            mOutput = Arrays.copyOf(mOutput, Math.max(mOutput.length * 2, mOutputLength + bytes));
+        }
+    }
+
+    private void writeByte(int value) {
+        ensureCapacity(1);
+        mOutput[mOutputLength++] = (byte) value;
+    }
+
+    private void writeInt(int value) {
+        ensureCapacity(4);
+        for (int i = 0; i < 4; i++) {
+            mOutput[mOutputLength++] = (byte) (value >>> (i * 8));
+        }
+    }
+
+    private void writeDouble(double value) {
+        long bits = Double.doubleToLongBits(value);
+        ensureCapacity(8);
+        for (int i = 0; i < 8; i++) {
+            mOutput[mOutputLength++] = (byte) (bits >>> (i * 8));
+        }
+    }
+}
@@ -10,6 +10,7 @@ import android.provider.BaseColumns;
 /**
  * Created by Joshua.Johnson on 9/28/2018.
  * This class maintains a database storing filenames and their last modified date
+ * (plus size and content hash, see FileSignature)
  */
 
 class ImportHistoryDb {
@@ -34,18 +35,28 @@ class ImportHistoryDb {
         static final String TABLE_NAME = "entry";
         static final String COLUMN_NAME_FILEPATH = "filePath";
         static final String COLUMN_NAME_LASTMODIFIED = "lastModified";
+        static final String COLUMN_NAME_SIZE = "size";
+        static final String COLUMN_NAME_CONTENTHASH = "contentHash";
     }
 
     private static final String SQL_CREATE_ENTRIES = "CREATE TABLE " + Entry.TABLE_NAME + " (" +
             Entry._ID + " INTEGER PRIMARY KEY," +
-            Entry.COLUMN_NAME_FILEPATH + " TEXT," +
-            Entry.COLUMN_NAME_LASTMODIFIED + " INTEGER)";
+            Entry.COLUMN_NAME_FILEPATH + " TEXT NOT NULL UNIQUE," +     //UNIQUE creates the lookup index
+            Entry.COLUMN_NAME_LASTMODIFIED + " INTEGER," +
+            Entry.COLUMN_NAME_SIZE + " INTEGER," +
+            Entry.COLUMN_NAME_CONTENTHASH + " INTEGER)";
+
+    private static final String SQL_SELECT_SIGNATURE = "SELECT " +
+            Entry.COLUMN_NAME_SIZE + ", " +
+            Entry.COLUMN_NAME_LASTMODIFIED + ", " +
+            Entry.COLUMN_NAME_CONTENTHASH +
+            " FROM " + Entry.TABLE_NAME + " WHERE " + Entry.COLUMN_NAME_FILEPATH + " = ?";
 
     private static final String SQL_DELETE_ENTRIES = "DROP TABLE IF EXISTS " + Entry.TABLE_NAME;
 
     private static class ImportHistoryDbHelper extends SQLiteOpenHelper {
         //if schema changes, version must be incremented
-        static final int DATABASE_VERSION = 2;
+        static final int DATABASE_VERSION = 3;
         static final String DATABASE_NAME = "ImportHistoryDb.db";
 
         ImportHistoryDbHelper(Context context) {
@@ -86,6 +97,46 @@ class ImportHistoryDb {
         return db.insert(Entry.TABLE_NAME, null, values);
     }
 
+    /**
+     * Inserts or replaces the signature of a file (one row per file)
+     * @param fileName
+     * @param signature
+     * @return row id
+     */
+    long upsert(String fileName, FileSignature signature) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        ContentValues values = new ContentValues();
+        values.put(Entry.COLUMN_NAME_FILEPATH, fileName);
+        values.put(Entry.COLUMN_NAME_LASTMODIFIED, signature.getLastModified());
+        values.put(Entry.COLUMN_NAME_SIZE, signature.getSize());
+        values.put(Entry.COLUMN_NAME_CONTENTHASH, signature.getContentHash());
+
+        return db.insertWithOnConflict(Entry.TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Find the stored signature of a file with a single indexed query
+     * @param fileName
+     * @return signature or null if the file has not been imported before
+     */
+    FileSignature getSignature(String fileName) {
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+
+        FileSignature result = null;
+        try (Cursor cursor = db.rawQuery(SQL_SELECT_SIGNATURE, new String[]{ fileName })) {
+            if (cursor.moveToFirst()) {
+                result = new FileSignature(
+                        cursor.isNull(0) ? -1L : cursor.getLong(0),
+                        cursor.getLong(1),
+                        cursor.isNull(2) ? null : cursor.getLong(2)
+                );
+            }
+        }
+
+        return result;
+    }
+
     /**
      * Updates data in database
      * @param fileName
@@ -29,6 +29,50 @@ public abstract class Layer {
      */
     public abstract BufferedImage draw(BoundingBox bbox, int width, int height);
 
+    /**
+     * Returns the stored, already encoded image for the bounding box if it can be served as is: the extent maps to
+     * exactly one stored tile of the requested pixel size and format, so no decoding, resampling or re-encoding is
+     * needed.  Layers should rule out a mismatching format before reading any tile data.
+     * @param bbox - Bounding box of the extent which to draw
+     * @param width - pixel width of the image
+     * @param height - pixel height of the image
+     * @param mimeType - requested output mime type
+     * @param layersBelow - true if other layers are drawn below this one (stored images with transparency don't do)
+     * @return encoded image bytes, or null if the layer has to be drawn instead
+     */
+    public byte[] getEncodedTile(BoundingBox bbox, int width, int height, String mimeType, boolean layersBelow) {
+        return null;
+    }
+
+    /**
+     * Encodes the features of a tile of the EPSG:4326 tile grid as a Mapbox Vector Tile, for clients which render
+     * the data themselves
+     * @param x - column
+     * @param y - row
+     * @param z - zoom level
+     * @return encoded vector tile (one layer named after this layer), or null if the layer has no features there or
+     * no vector representation
+     * @throws TooManyFeaturesException if the tile holds more features than the layer encodes into one tile
+     */
+    public byte[] getVectorTile(int x, int y, int z) {
+        return null;
+    }
+
+    /**
+     * Streams the stored tiles within a rectangle of the tile grid to a consumer, reading them with a single range
+     * query instead of one query per tile.  Intended for mosaic, prefetch and seeding workloads.
+     * @param zoom - zoom level
+     * @param minColumn - first column (inclusive)
+     * @param maxColumn - last column (inclusive)
+     * @param minRow - first row (inclusive)
+     * @param maxRow - last row (inclusive)
+     * @param tileConsumer - receives each stored tile, in no particular order
+     * @return number of tiles delivered (layers without stored tiles deliver none)
+     */
+    public int queryTiles(int zoom, long minColumn, long maxColumn, long minRow, long maxRow, TileConsumer tileConsumer) {
+        return 0;
+    }
+
     /**
      * Index given layer data
      * @param overwrite - overwrite previous index
@@ -47,7 +91,7 @@ public abstract class Layer {
     /**
      * @return Layer name from Layer Info data holder
      */
-    String getLayerName() {
+    public String getLayerName() {
         return layerInfo.getName();
     }
 
@@ -65,6 +109,13 @@ public abstract class Layer {
         return layerInfo.getDatabaseName();
     }
 
+    /**
+     * @return Render position from LayerInfo data holder (higher values are drawn on top)
+     */
+    public int getZIndex() {
+        return layerInfo.getZIndex();
+    }
+
     /**
      * @return The layer info data holder
      */
@@ -72,6 +123,13 @@ public abstract class Layer {
         return layerInfo;
     }
 
+    /**
+     * Releases what the layer holds open beyond the shared GeoPackage connections (e.g. sidecar databases).  Called
+     * when the layer is unregistered or replaced and by closeLayers(); a layer still in use reopens them on demand.
+     */
+    public void close() {
+    }
+
     /**
      * abstract method for retrieving feature data from specific pixel
      * used for featureInfo requests
@@ -85,6 +143,20 @@ public abstract class Layer {
      */
     public abstract Collection<Feature> getGeoJsonFeatures(BoundingBox bbox, int width, int height, int i, int j, float pixelRadius);
 
+    /**
+     * Receives tiles streamed by queryTiles()
+     */
+    public interface TileConsumer {
+        /**
+         * @param column - tile column
+         * @param row - tile row
+         * @param zoom - tile zoom level
+         * @param tileData - encoded tile (PNG, JPEG, ...)
+         * @return true to continue, false to stop the query
+         */
+        boolean accept(long column, long row, int zoom, byte[] tileData);
+    }
+
     /**
      * Interface for progress updates while indexing
      * TODO: This interface already exists outside this class.  Remove this nested listener?
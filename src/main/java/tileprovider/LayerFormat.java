@@ -2,9 +2,87 @@ package tileprovider;
 
 /**
  * Created by joshua.johnson on 3/18/2019.
- * Encode bitmap to one of these supported formats
+ * Encode bitmap to one of these supported formats (MVT: feature layers encoded as Mapbox Vector Tiles)
  */
 
 public enum LayerFormat {
-    PNG, PNG8, JPEG
+    PNG("image/png", false),
+    PNG8("image/png", false),
+    JPEG("image/jpeg", true),
+    MVT(MvtEncoder.MIME_TYPE, false);
+
+    private final String mimeType;
+    private final boolean opaque;
+
+    LayerFormat(String mimeType, boolean opaque) {
+        this.mimeType = mimeType;
+        this.opaque = opaque;
+    }
+
+    /**
+     * @return mime type of images encoded in this format
+     */
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * @return true if images in this format can't have transparent pixels
+     */
+    public boolean isOpaque() {
+        return opaque;
+    }
+
+    /**
+     * Resolves a requested output format (WMS FORMAT parameter).  "image/png8" and "image/png; mode=8bit" request
+     * palette PNG.
+     * @param format - mime type or short name (png, png8, jpeg)
+     * @return the format or null if not supported
+     */
+    public static LayerFormat fromMimeType(String format) {
+        if (format == null) {
+            return null;
+        }
+
+        String normalized = format.trim().toLowerCase().replace(" ", "");
+        switch (normalized) {
+            case "image/png":
+            case "png":
+                return PNG;
+            case "image/png8":
+            case "image/png;mode=8bit":
+            case "png8":
+                return PNG8;
+            case "image/jpeg":
+            case "image/jpg":
+            case "jpeg":
+            case "jpg":
+                return JPEG;
+            default:
+                return normalized.equals(MVT.mimeType) ? MVT : null;
+        }
+    }
+
+    /**
+     * Identifies the format of already encoded image data by its signature
+     * @param data - encoded image
+     * @return PNG or JPEG, or null if the format is not recognized
+     */
+    public static LayerFormat fromEncoded(byte[] data) {
+        if (data == null) {
+            return null;
+        }
+
+        if (data.length >= 8 &&
+                (data[0] & 0xFF) == 0x89 && data[1] == 'P' && data[2] == 'N' && data[3] == 'G' &&
+                data[4] == '\r' && data[5] == '\n' && (data[6] & 0xFF) == 0x1A && data[7] == '\n') {
+            return PNG;
+        }
+
+        if (data.length >= 3 && (data[0] & 0xFF) == 0xFF && (data[1] & 0xFF) == 0xD8 && (data[2] & 0xFF) == 0xFF) {
+            return JPEG;
+        }
+
+        return null;
+    }
 }
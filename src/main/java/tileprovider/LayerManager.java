@@ -16,11 +16,25 @@ import mil.nga.geopackage.factory.GeoPackageCoreImpl;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -45,9 +59,26 @@ class LayerManager implements TileProvider {
     private ImportHistoryDb mFileHistoryDb;
 
     /**
-     * Map of mLayerNames to Layers
+     * Change detection strategies for previously imported files
      */
-    private Map<String, Layer> mLayerMap;
+    public enum ChangeDetection {
+        /** Changed when the last modified time differs */
+        LAST_MODIFIED,
+        /** Changed when size or content hash differ; the hash is only computed when size or modified time differ */
+        CONTENT_HASH
+    }
+
+    private volatile ChangeDetection mChangeDetection = ChangeDetection.CONTENT_HASH;
+
+    /**
+     * Number of databases indexed concurrently by an IndexTask
+     */
+    private volatile int mIndexParallelism = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    /**
+     * Registry of mLayerNames to Layers (safe for concurrent readers)
+     */
+    private LayerRegistry mLayerRegistry;
 
     private Layer mDefaultLayer;
 
@@ -55,6 +86,16 @@ class LayerManager implements TileProvider {
     private static final String DEFAULT_DATABASE_NAME = "DefaultLayer";
     private static final String DEFAULT_LAYERNAME = "BlueMarbleA";
 
+    /**
+     * Number of GeoPackages opened and inspected concurrently by registerLayers()
+     */
+    private static final int REGISTER_PARALLELISM = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Number of layers collected before they are published to the registry
+     */
+    private static final int REGISTER_BATCH_SIZE = 256;
+
 
 
     /**
@@ -65,7 +106,7 @@ class LayerManager implements TileProvider {
         mGeoPackageManager = GeoPackageProvider.getInstance().getGeoPackageManager();
         mFileHistoryDb = ImportHistoryDb.getInstance(mContext);
 
-        mLayerMap = new HashMap<>();
+        mLayerRegistry = new LayerRegistry();
         try {
             InputStream defaultIn = mContext.getAssets().open(DEFAULT_ASSET_FILE_PATH);
             mGeoPackageManager.importGeoPackage(DEFAULT_DATABASE_NAME, defaultIn, true);
@@ -89,14 +130,20 @@ class LayerManager implements TileProvider {
 //        return registerLayers(geopackageDirOrFile, "");
 //    }
     public void unregisterAll() {
-        String[] layerNames = layerSet().toArray(new String[0]);
-        for (String layerName : layerNames) {
-            unregister(layerName);
+        for (Layer layer : mLayerRegistry.unregisterAll()) {
+            layer.close();
+            RenderedTileCache.getInstance().invalidateLayer(layer.getLayerName());
+            DecodedTileCache.getInstance().invalidateLayer(layer.getLayerName());
         }
     }
 
     public void unregister(String layerName) {
-        mLayerMap.remove(layerName);
+        Layer layer = mLayerRegistry.unregister(layerName);
+        if (layer != null) {
+            layer.close();
+        }
+        RenderedTileCache.getInstance().invalidateLayer(layerName);
+        DecodedTileCache.getInstance().invalidateLayer(layerName);
     }
 
 
@@ -107,78 +154,184 @@ class LayerManager implements TileProvider {
      * @return
      */
     public int registerLayers(File geopackageDirOrFile) {
-        //number of layers added
-        int count = 0;
+        return registerLayers(geopackageDirOrFile, null);
+    }
 
-        //Recursive search -- Case Directory
-        if (geopackageDirOrFile.isDirectory()) {
-            File[] files = geopackageDirOrFile.listFiles();
-            if (files != null) {
-                for (File file : geopackageDirOrFile.listFiles()) {
-                    count += registerLayers(file);
+    /**
+     * Recursively searches directory/sub-directories for all geopackage files and registers their layers.
+     * GeoPackages are imported, opened and inspected concurrently; their layers are published to the registry in
+     * batches.
+     * @param geopackageDirOrFile - geopackage file or directory of GeoPackages
+     * @param registerProgressListener - Optional callback to report progress (called from worker threads)
+     * @return number of layers registered
+     */
+    public int registerLayers(File geopackageDirOrFile, RegisterProgressListener registerProgressListener) {
+        //discover the GeoPackages which are not registered yet
+        List<File> files = new ArrayList<>();
+        for (File file : findGeoPackages(geopackageDirOrFile)) {
+            if (!mLayerRegistry.containsDatabase(file.getAbsolutePath())) {
+                files.add(file);
+            }
+        }
+
+        if (files.isEmpty()) {
+            return 0;
+        }
+
+        List<Callable<Integer>> tasks = new ArrayList<>(files.size());
+        LayerBatch batch = new LayerBatch(files.size(), registerProgressListener);
+        for (File file : files) {
+            tasks.add(() -> {
+                String databaseName = file.getAbsolutePath();
+                List<Layer> layers = Collections.emptyList();
+                try {
+                    importIfChanged(file, databaseName);
+                    layers = createLayersFromGeoPackage(databaseName);
+                } finally {
+                    batch.add(databaseName, layers);
+                }
+                return layers.size();
+            });
+        }
+
+        int count = 0;
+        ForkJoinPool pool = new ForkJoinPool(REGISTER_PARALLELISM);
+        try {
+            for (Future<Integer> result : pool.invokeAll(tasks)) {
+                try {
+                    count += result.get();
+                } catch (ExecutionException ex) {
+                    LOGGER.log(Level.WARNING, getClass().getSimpleName() + ": Failed to register GeoPackage", ex.getCause());
                 }
-            } else {
-                Log.e(getClass().getSimpleName(), "Files not found: " + geopackageDirOrFile.getAbsolutePath() );
             }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+            batch.flush();
+        }
 
-            //Recursive search -- Case .gpkg named file
-        } else if (geopackageDirOrFile.getName().toLowerCase().endsWith(".gpkg")) {
-            //.gpkg File
-            String databaseName = geopackageDirOrFile.getAbsolutePath();
-
-            //check to see if database has already been loaded
-            if (!databaseNamesSet().contains(databaseName)) {
-
-                //If new or changed file (since last import) -- use lastModified metadata for signature
-                //TODO: Use HASH
-                if (mFileHistoryDb.getLastModified(geopackageDirOrFile.getAbsolutePath()) == null || mFileHistoryDb.getLastModified(geopackageDirOrFile.getAbsolutePath()) != geopackageDirOrFile.lastModified()) {
-
-
-                    //New or Modified File -- so import first
-                    //REMOVED -- This code imported code as Internal
-//                try (InputStream in = new FileInputStream(geopackageDirOrFile)) {
-//
-//
-//                    //Import geopackage with override option -- we base override decision with if statement above (if new/modified file)
-//                    mGeoPackageManager.importGeoPackage(databaseName, in, true);
-//                    mFileHistoryDb.insert(geopackageDirOrFile.getAbsolutePath(), geopackageDirOrFile.lastModified());
-//                } catch (IOException | GeoPackageException ex) {
-//                    ex.printStackTrace();
-//                }
-                    //Import code as external (mOverwrite enabled)
-                    try {
-                        mGeoPackageManager.importGeoPackageAsExternalLink(geopackageDirOrFile, databaseName, true);
-                        mFileHistoryDb.insert(geopackageDirOrFile.getAbsolutePath(), geopackageDirOrFile.lastModified());
-                    } catch (GeoPackageException ex) {
-                        ex.printStackTrace();
+        return count;
+    }
+
+    /**
+     * Walks the file tree collecting every .gpkg file
+     * @param geopackageDirOrFile - geopackage file or directory of GeoPackages
+     * @return GeoPackage files found
+     */
+    private List<File> findGeoPackages(File geopackageDirOrFile) {
+        List<File> files = new ArrayList<>();
+
+        try {
+            Files.walkFileTree(geopackageDirOrFile.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && file.getFileName().toString().toLowerCase().endsWith(".gpkg")) {
+                        files.add(file.toFile());
                     }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                    LOGGER.log(Level.WARNING, getClass().getSimpleName() + ": Files not found: " + file);
+                    return FileVisitResult.CONTINUE;
                 }
+            });
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, getClass().getSimpleName() + ": Files not found: " + geopackageDirOrFile.getAbsolutePath(), ex);
+        }
 
-                //register the layers contained within the geopackage
-                count = registerLayersFromGeoPackage(databaseName);
+        return files;
+    }
 
+    /**
+     * Imports the GeoPackage into the GeoPackageManager if it is new or changed since the last import
+     * @param geopackageFile - .gpkg File
+     * @param databaseName - database name to import as
+     */
+    private void importIfChanged(File geopackageFile, String databaseName) {
+        String filePath = geopackageFile.getAbsolutePath();
+
+        //hashing reads the file, so do it before taking the import lock
+        FileSignature previous = mFileHistoryDb.getSignature(filePath);
+        FileSignature current = FileSignature.ofMetadata(geopackageFile);
+        boolean changed;
+        if (previous == null) {
+            changed = true;
+        } else if (mChangeDetection == ChangeDetection.LAST_MODIFIED || previous.metadataEquals(current)) {
+            changed = previous.getLastModified() != current.getLastModified();
+        } else {
+            //metadata differs: compare content hashes (see FileSignature)
+            current = signatureWithHash(geopackageFile, current);
+            changed = !current.contentEquals(previous);
+            if (!changed) {
+                //same content: remember the new modified time so the file isn't hashed again next time
+                mFileHistoryDb.upsert(filePath, current);
             }
         }
 
-        return count;
+        if (!changed) {
+            return;
+        }
+
+        if (mChangeDetection == ChangeDetection.CONTENT_HASH && !current.hasContentHash()) {
+            current = signatureWithHash(geopackageFile, current);
+        }
+
+        //GeoPackageManager metadata and the import history are shared -- import one file at a time
+        synchronized (mGeoPackageManager) {
+            //New or Modified File -- so import first
+            //Import code as external (mOverwrite enabled)
+            try {
+                mGeoPackageManager.importGeoPackageAsExternalLink(geopackageFile, databaseName, true);
+                mFileHistoryDb.upsert(filePath, current);
+            } catch (GeoPackageException ex) {
+                ex.printStackTrace();
+            }
+
+            //Tiles rendered from a previous version of this file are stale -- invalidated once the import is done,
+            //so tiles rendered during the import are dropped too
+            FeatureTileCache.getInstance().invalidateDatabase(databaseName);
+        }
     }
 
+    /**
+     * @return the signature including a content hash, or the given signature if the file could not be read
+     */
+    private FileSignature signatureWithHash(File file, FileSignature fallback) {
+        try {
+            return FileSignature.of(file);
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, getClass().getSimpleName() + ": Could not hash " + file.getAbsolutePath(), ex);
+            return fallback;
+        }
+    }
 
     /**
-     * Loops through GeoPackage associated to databaseName in GeoPackageManager and registers a new
+     * How registerLayers() decides that a previously imported GeoPackage changed
+     * @param changeDetection - LAST_MODIFIED (cheap, re-imports touched files) or CONTENT_HASH (default)
+     */
+    public void setChangeDetection(ChangeDetection changeDetection) {
+        mChangeDetection = changeDetection;
+    }
+
+
+    /**
+     * Loops through GeoPackage associated to databaseName in GeoPackageManager and creates a new
      * layer for each feature or tile table within that GeoPackage
      * @param databaseName - Associated database name to GeoPackage as registered in GeoPackageManager
-     * @return number of layers created
+     * @return layers created (not yet registered)
      */
-    private int registerLayersFromGeoPackage(String databaseName) {
-        int count = 0;
+    private List<Layer> createLayersFromGeoPackage(String databaseName) {
+        List<Layer> layers = new ArrayList<>();
 
         GetLayersProvider getLayersProvider = GetLayersProvider.getInstance(mContext);
 
 
         //open geopackage to read contents
         try (GeoPackage geoPackage = mGeoPackageManager.open(databaseName, false)) {
-                  //do not close this geopackage.  Open geopackage stored in mLayerMap until needed
+                  //do not close this geopackage.  Open geopackage stored in mLayerRegistry until needed
 
             if (geoPackage != null) {
                 //Assign a layer for each Feature Table
@@ -186,9 +339,7 @@ class LayerManager implements TileProvider {
                     try {
                         LayerInfo info = LayerInfo.create(getLayersProvider, databaseName, tableName, LayerInfo.LayerType.FEATURE);
 
-                        Layer layer = new FeatureLayer(mContext, info);
-                        mLayerMap.put(info.getName(), layer);
-                        count++;
+                        layers.add(new FeatureLayer(mContext, info));
                     } catch (IllegalArgumentException ex) {
                         ex.printStackTrace();
                     }
@@ -200,9 +351,7 @@ class LayerManager implements TileProvider {
 
                         LayerInfo info = LayerInfo.create(getLayersProvider, databaseName, tableName, LayerInfo.LayerType.TILE);
 
-                        Layer layer = new TileLayer(mContext, info);
-                        mLayerMap.put(info.getName(), layer);
-                        count++;
+                        layers.add(new TileLayer(mContext, info));
                     } catch (IllegalArgumentException ex) {
                         ex.printStackTrace();
                     }
@@ -216,18 +365,74 @@ class LayerManager implements TileProvider {
             ex.printStackTrace();
         }
 
-        return count;
+        return layers;
+    }
+
+    /**
+     * Publishes all layers to the registry as a single change
+     */
+    private void registerAll(List<Layer> layers) {
+        for (Layer replaced : mLayerRegistry.registerAll(layers)) {
+            replaced.close();
+        }
+        for (Layer layer : layers) {
+            RenderedTileCache.getInstance().invalidateLayer(layer.getLayerName());
+            DecodedTileCache.getInstance().invalidateLayer(layer.getLayerName());
+        }
+    }
+
+    /**
+     * Collects layers created by registration workers and publishes them to the registry in batches, so that
+     * registry snapshots are rebuilt once per batch instead of once per GeoPackage.
+     */
+    private class LayerBatch {
+        private final int mFilesOutOf;
+        private final RegisterProgressListener mRegisterProgressListener;
+        private final List<Layer> mPending = new ArrayList<>();
+        private int mFilesCompleted = 0;
+
+        LayerBatch(int filesOutOf, RegisterProgressListener registerProgressListener) {
+            mFilesOutOf = filesOutOf;
+            mRegisterProgressListener = registerProgressListener;
+        }
+
+        void add(String databaseName, List<Layer> layers) {
+            int filesCompleted;
+            synchronized (this) {
+                mPending.addAll(layers);
+                filesCompleted = ++mFilesCompleted;
+                if (mPending.size() >= REGISTER_BATCH_SIZE) {
+                    flush();
+                }
+            }
+
+            if (mRegisterProgressListener != null) {
+                mRegisterProgressListener.onProgressUpdate(databaseName, filesCompleted, mFilesOutOf);
+            }
+        }
+
+        synchronized void flush() {
+            if (!mPending.isEmpty()) {
+                registerAll(new ArrayList<>(mPending));
+                mPending.clear();
+            }
+        }
     }
 
 
     /**
      * A Runnable that wraps indexing tasks for separate-threaded functionality.
+     *
+     * Layers are grouped by database.  Databases are indexed concurrently on a work-stealing pool, while the layers of
+     * a single database are indexed one after another through one writable connection (SQLite allows a single writer
+     * per file).
      */
     class IndexLayersTask implements Runnable, IndexTask {
 
         private boolean mOverwrite;
         private Set<String> mLayerNames;
         private IndexProgressListener mIndexProgressListener;
+        private int mParallelism;
 
         private AtomicBoolean mStopTask;
         private volatile Status mStatus;
@@ -235,9 +440,8 @@ class LayerManager implements TileProvider {
         private Thread mWorkerThread;
 
         //Cross threaded variables
-        private int mLayersCompleted;
-        private int mLayersOutOf;
-        private String mLayerName;
+        private final AtomicInteger mLayersCompleted = new AtomicInteger();
+        private volatile int mLayersOutOf;
 
         /**
          * Constructor - Index all previously unindexed feature-layers registered to LayerManager
@@ -265,47 +469,122 @@ class LayerManager implements TileProvider {
             this.mOverwrite = overwrite;
             this.mLayerNames = layerNames;
             this.mIndexProgressListener = indexProgressListener;
+            this.mParallelism = mIndexParallelism;
             this.mStopTask = new AtomicBoolean(false);
             mStatus = Status.WAITING;
         }
 
+        /**
+         * Sets the maximum number of databases indexed concurrently.  Must be called before start().
+         * @param parallelism - number of worker threads (at least 1)
+         */
+        void setParallelism(int parallelism) {
+            mParallelism = Math.max(1, parallelism);
+        }
+
         /**
          * Main method which indexes each layer found in mLayerNames
          */
         @Override
         public void run() {
 
-            mLayersCompleted = 0;
+            mLayersCompleted.set(0);
             mLayersOutOf = mLayerNames.size();
 
+            //group layers by database -- one writer per database file
+            Map<String, List<String>> layersByDatabase = new LinkedHashMap<>();
             for (String layerName : mLayerNames) {
-                mLayerName = layerName;
-
-                if (Thread.currentThread().isInterrupted() || mStopTask.get()) {
-                    break;
-                }
-
-                indexFeatureLayer(mLayerName, mOverwrite, new Layer.LayerIndexProgressListener() {
-                    @Override
-                    public void onProgress(int progress, int outOf) {
-                        mIndexProgressListener.onProgressUpdate(mLayerName, progress, outOf, mLayersCompleted, mLayersOutOf);
-                    }
+                Layer layer = mLayerRegistry.get(layerName);
+                String databaseName = layer != null ? layer.getDatabaseName() : "";
+                layersByDatabase.computeIfAbsent(databaseName, key -> new ArrayList<>()).add(layerName);
+            }
 
-                    @Override
-                    public void onTaskComplete(boolean isSuccessful) {
+            List<Callable<Boolean>> tasks = new ArrayList<>(layersByDatabase.size());
+            for (Map.Entry<String, List<String>> entry : layersByDatabase.entrySet()) {
+                tasks.add(() -> indexDatabase(entry.getKey(), entry.getValue()));
+            }
 
+            boolean isSuccessful = true;
+            ForkJoinPool pool = new ForkJoinPool(Math.max(1, Math.min(mParallelism, tasks.size())));
+            try {
+                for (Future<Boolean> result : pool.invokeAll(tasks)) {
+                    try {
+                        isSuccessful &= result.get();
+                    } catch (ExecutionException ex) {
+                        isSuccessful = false;
+                        LOGGER.log(Level.WARNING, getClass().getSimpleName() + ": Indexing failed", ex.getCause());
                     }
-                });
-                mLayersCompleted++;
+                }
+            } catch (InterruptedException ex) {
+                stop();
+                Thread.currentThread().interrupt();
+            } finally {
+                pool.shutdownNow();
             }
 
-            if (Thread.currentThread().isInterrupted()) {
+            if (Thread.currentThread().isInterrupted() || mStopTask.get()) {
                 mStatus = Status.INTERRUPTED;
+                isSuccessful = false;
             } else {
                 mStatus = Status.FINISHED;
             }
 
+            mIndexProgressListener.onTaskComplete(isSuccessful);
+        }
 
+        /**
+         * Indexes the given layers of one database, sequentially, through a single writable connection
+         * @return true if every layer was indexed successfully
+         */
+        private boolean indexDatabase(String databaseName, List<String> layerNames) {
+            boolean isSuccessful = true;
+
+            GeoPackage writableGeoPackage = null;
+            try {
+                writableGeoPackage = mGeoPackageManager.open(databaseName, true);
+            } catch (GeoPackageException ex) {
+                LOGGER.log(Level.WARNING, getClass().getSimpleName() + ": Could not open " + databaseName + " for writing", ex);
+            }
+
+            try {
+                for (String layerName : layerNames) {
+                    if (Thread.currentThread().isInterrupted() || mStopTask.get()) {
+                        return false;
+                    }
+
+                    AtomicBoolean layerSuccessful = new AtomicBoolean(true);
+                    boolean found = indexFeatureLayer(layerName, mOverwrite, writableGeoPackage, new Layer.LayerIndexProgressListener() {
+                        @Override
+                        public void onProgress(int progress, int outOf) {
+                            reportProgress(layerName, progress, outOf);
+                        }
+
+                        @Override
+                        public void onTaskComplete(boolean isSuccessful) {
+                            layerSuccessful.set(isSuccessful);
+                        }
+                    });
+
+                    isSuccessful &= found && layerSuccessful.get();
+                    mLayersCompleted.incrementAndGet();
+                }
+            } finally {
+                if (writableGeoPackage != null) {
+                    writableGeoPackage.close();
+                }
+            }
+
+            return isSuccessful;
+        }
+
+        /**
+         * Forwards progress to the listener.  Workers report concurrently; callbacks are serialized so listeners
+         * need not be thread safe.
+         */
+        private void reportProgress(String layerName, int progress, int outOf) {
+            synchronized (mIndexProgressListener) {
+                mIndexProgressListener.onProgressUpdate(layerName, progress, outOf, mLayersCompleted.get(), mLayersOutOf);
+            }
         }
 
         public void start() {
@@ -321,6 +600,14 @@ class LayerManager implements TileProvider {
 
         public void stop(){
             mStopTask.set(true);
+
+            //cancel layers currently being indexed
+            for (String layerName : mLayerNames) {
+                Layer layer = mLayerRegistry.get(layerName);
+                if (layer instanceof FeatureLayer) {
+                    ((FeatureLayer) layer).cancelIndex();
+                }
+            }
         }
 
         public Status getStatus() {
@@ -333,47 +620,48 @@ class LayerManager implements TileProvider {
      * @see IndexLayersTask
      * @param layerName layer to index
      * @param overwriteIndex - set true to overwrite past indexes, false to skip if index already exists
+     * @param writableGeoPackage - open writable connection to the layer's database, or null to let the layer open one
      * @param layerIndexProgressListener Callback for progress updates (updates per row processed)
+     * @return false if the layer is not registered
      */
-    private void indexFeatureLayer(String layerName, boolean overwriteIndex, Layer.LayerIndexProgressListener layerIndexProgressListener) {
-        Layer layer = mLayerMap.get(layerName);
-        if (layer != null) {
+    private boolean indexFeatureLayer(String layerName, boolean overwriteIndex, GeoPackage writableGeoPackage, Layer.LayerIndexProgressListener layerIndexProgressListener) {
+        Layer layer = mLayerRegistry.get(layerName);
+        if (layer instanceof FeatureLayer && writableGeoPackage != null) {
+            ((FeatureLayer) layer).index(writableGeoPackage, overwriteIndex, layerIndexProgressListener);
+        } else if (layer != null) {
             layer.index(overwriteIndex, layerIndexProgressListener);
         }
+
+        return layer != null;
+    }
+
+    /**
+     * Sets the number of databases indexed concurrently by IndexTasks created afterwards
+     * @param parallelism - number of worker threads (at least 1)
+     */
+    public void setIndexParallelism(int parallelism) {
+        mIndexParallelism = Math.max(1, parallelism);
     }
 
     /**
      * @return LayerNames currently registered to LayerManager
      */
     public Set<String> layerSet() {
-        return mLayerMap.keySet();
+        return mLayerRegistry.layerNames();
     }
 
+    /**
+     * @return Tile LayerNames currently registered to LayerManager
+     */
     public Set<String> tileLayerSet() {
-        Set<String> layers = new LinkedHashSet<>(mLayerMap.size());
-
-        for (String key : mLayerMap.keySet()) {
-            if (mLayerMap.get(key).getType() == LayerInfo.LayerType.TILE) {
-                layers.add(key);
-            }
-        }
-
-        return layers;
+        return mLayerRegistry.layerNames(LayerInfo.LayerType.TILE);
     }
 
     /**
      * @return Feature LayerNames currently registered to LayerManager
      */
     public Set<String> featureLayerSet() {
-        Set<String> layers = new LinkedHashSet<>(mLayerMap.size());
-
-        for (String key : mLayerMap.keySet()) {
-            if (mLayerMap.get(key).getType() == LayerInfo.LayerType.FEATURE) {
-                layers.add(key);
-            }
-        }
-
-        return layers;
+        return mLayerRegistry.layerNames(LayerInfo.LayerType.FEATURE);
     }
 
     /**
@@ -384,7 +672,7 @@ class LayerManager implements TileProvider {
         Set<String> results = new LinkedHashSet<>();
 
         for (String layerName : layerNames) {
-            Layer layer = mLayerMap.get(layerName);
+            Layer layer = mLayerRegistry.get(layerName);
             if (layer != null && layer.getType() == LayerInfo.LayerType.FEATURE && layer instanceof FeatureLayer) {
                 FeatureLayer featureLayer = (FeatureLayer) layer;
 
@@ -404,7 +692,7 @@ class LayerManager implements TileProvider {
      * @return
      */
     public Layer getLayer(String layerName) {
-        return mLayerMap.get(layerName);
+        return mLayerRegistry.get(layerName);
     }
 
 
@@ -416,27 +704,24 @@ class LayerManager implements TileProvider {
      * Closes all GeoPackages associated to This LayerManager (but not all open GeoPackages)
      */
     public void closeLayers() {
+        for (Layer layer : mLayerRegistry.layers()) {
+            layer.close();
+        }
         GeoPackageProvider geoPackageProvider = GeoPackageProvider.getInstance(mContext);
-        geoPackageProvider.closeGeoPackages(layerSet());
+        geoPackageProvider.closeGeoPackages(databaseNamesSet());
     }
 
     /**
      * @return a set of databaseNames registered to LayerManager
      */
     private Set<String> databaseNamesSet() {
-        Set<String> openDb = new LinkedHashSet<>();
-
-        for(String key : mLayerMap.keySet()) {
-            Layer layer = mLayerMap.get(key);
-            openDb.add(layer.getDatabaseName());
-        }
-        return openDb;
+        return mLayerRegistry.databaseNames();
     }
 
     @Override
     public String getLayersJSON() {
         GetLayersProvider getLayersProvider = GetLayersProvider.getInstance(mContext);
-        return getLayersProvider.getJsonString(mLayerMap.values().toArray(new Layer[0]));
+        return getLayersProvider.getJsonString(mLayerRegistry.layers().toArray(new Layer[0]));
     }
 
     @Override
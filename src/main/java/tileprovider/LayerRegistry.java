@@ -0,0 +1,163 @@
+package tileprovider;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Thread-safe registry of layers by layer name.
+ *
+ * The registry is copy-on-write: every change builds a new immutable snapshot (the layer map plus secondary indexes by
+ * layer type and by database) and publishes it atomically.  Readers (WMS request threads) never lock and every lookup,
+ * including the per-type and per-database sets, is a single map access.  Writers are serialized, so registrations
+ * should be batched with registerAll() where possible.
+ */
+
+class LayerRegistry {
+
+    private volatile Snapshot mSnapshot = Snapshot.EMPTY;
+
+    /**
+     * @param layerName - registered layer name
+     * @return the layer or null if not registered
+     */
+    Layer get(String layerName) {
+        return mSnapshot.mLayers.get(layerName);
+    }
+
+    /**
+     * Registers (or replaces) a layer under its layer name
+     * @return the replaced layers (to be closed)
+     */
+    List<Layer> register(Layer layer) {
+        return registerAll(Collections.singletonList(layer));
+    }
+
+    /**
+     * Registers (or replaces) several layers as one change
+     * @return the replaced layers (to be closed)
+     */
+    synchronized List<Layer> registerAll(Collection<? extends Layer> layers) {
+        List<Layer> replaced = new ArrayList<>();
+        if (layers.isEmpty()) {
+            return replaced;
+        }
+
+        Map<String, Layer> map = new LinkedHashMap<>(mSnapshot.mLayers);
+        for (Layer layer : layers) {
+            Layer previous = map.put(layer.getLayerName(), layer);
+            if (previous != null && previous != layer) {
+                replaced.add(previous);
+            }
+        }
+        mSnapshot = new Snapshot(map);
+        return replaced;
+    }
+
+    /**
+     * Removes a layer
+     * @return the removed layer or null if not registered
+     */
+    synchronized Layer unregister(String layerName) {
+        Layer layer = mSnapshot.mLayers.get(layerName);
+        if (layer != null) {
+            Map<String, Layer> map = new LinkedHashMap<>(mSnapshot.mLayers);
+            map.remove(layerName);
+            mSnapshot = new Snapshot(map);
+        }
+
+        return layer;
+    }
+
+    /**
+     * Removes all layers
+     * @return layers which were registered
+     */
+    synchronized Collection<Layer> unregisterAll() {
+        Collection<Layer> layers = mSnapshot.mLayers.values();
+        mSnapshot = Snapshot.EMPTY;
+        return layers;
+    }
+
+    /**
+     * @return all registered layer names (immutable snapshot)
+     */
+    Set<String> layerNames() {
+        return mSnapshot.mLayers.keySet();
+    }
+
+    /**
+     * @return all registered layers (immutable snapshot)
+     */
+    Collection<Layer> layers() {
+        return mSnapshot.mLayers.values();
+    }
+
+    /**
+     * @return names of registered layers of the given type (immutable snapshot)
+     */
+    Set<String> layerNames(LayerInfo.LayerType type) {
+        Set<String> layerNames = mSnapshot.mLayersByType.get(type);
+        return layerNames != null ? layerNames : Collections.emptySet();
+    }
+
+    /**
+     * @return names of registered layers read from the given database (immutable snapshot)
+     */
+    Set<String> layerNames(String databaseName) {
+        Set<String> layerNames = mSnapshot.mLayersByDatabase.get(databaseName);
+        return layerNames != null ? layerNames : Collections.emptySet();
+    }
+
+    /**
+     * @return names of all databases with at least one registered layer (immutable snapshot)
+     */
+    Set<String> databaseNames() {
+        return mSnapshot.mLayersByDatabase.keySet();
+    }
+
+    /**
+     * @return true if at least one layer of the database is registered
+     */
+    boolean containsDatabase(String databaseName) {
+        return mSnapshot.mLayersByDatabase.containsKey(databaseName);
+    }
+
+    int size() {
+        return mSnapshot.mLayers.size();
+    }
+
+    /**
+     * Immutable state of the registry
+     */
+    private static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(Collections.emptyMap());
+
+        final Map<String, Layer> mLayers;
+        final Map<LayerInfo.LayerType, Set<String>> mLayersByType;
+        final Map<String, Set<String>> mLayersByDatabase;
+
+        Snapshot(Map<String, Layer> layers) {
+            Map<LayerInfo.LayerType, Set<String>> byType = new LinkedHashMap<>();
+            Map<String, Set<String>> byDatabase = new LinkedHashMap<>();
+
+            for (Map.Entry<String, Layer> entry : layers.entrySet()) {
+                Layer layer = entry.getValue();
+                byType.computeIfAbsent(layer.getType(), type -> new LinkedHashSet<>()).add(entry.getKey());
+                byDatabase.computeIfAbsent(layer.getDatabaseName(), name -> new LinkedHashSet<>()).add(entry.getKey());
+            }
+
+            byType.replaceAll((type, names) -> Collections.unmodifiableSet(names));
+            byDatabase.replaceAll((name, names) -> Collections.unmodifiableSet(names));
+
+            mLayers = Collections.unmodifiableMap(layers);
+            mLayersByType = Collections.unmodifiableMap(byType);
+            mLayersByDatabase = Collections.unmodifiableMap(byDatabase);
+        }
+    }
+}
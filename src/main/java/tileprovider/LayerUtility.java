@@ -66,6 +66,27 @@ class LayerUtility {
         return bbox;
     }
 
+    /**
+     * Tests whether a bounding box is (within a small fraction of a pixel) exactly one tile of the EPSG:4326 tile grid,
+     * i.e. whether bboxToXyz() represents it without loss
+     * @param bbox bounding box to test (in EPSG:4326 projection)
+     * @return true when the bounding box is a single grid tile
+     */
+    static boolean isTileAligned(BoundingBox bbox) {
+        XYZ xyz = bboxToXyz(bbox);
+        if (xyz.z < 0) {
+            return false;
+        }
+
+        BoundingBox tile = XyzToBbox(xyz.x, xyz.y, xyz.z);
+        double tolerance = (tile.getMaxLatitude() - tile.getMinLatitude()) * 1e-6;
+
+        return Math.abs(tile.getMinLongitude() - bbox.getMinLongitude()) <= tolerance &&
+                Math.abs(tile.getMaxLongitude() - bbox.getMaxLongitude()) <= tolerance &&
+                Math.abs(tile.getMinLatitude() - bbox.getMinLatitude()) <= tolerance &&
+                Math.abs(tile.getMaxLatitude() - bbox.getMaxLatitude()) <= tolerance;
+    }
+
     /**
      * Generates a bounding box for a specific range of pixels on a tile
      * @param bbox - Bounding box of the Tile (EPSG:4326 projection)
@@ -0,0 +1,772 @@
+package tileprovider;
+
+import mil.nga.geopackage.BoundingBox;
+import mil.nga.geopackage.GeoPackageException;
+import mil.nga.geopackage.features.user.FeatureDao;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes the features of one tile as a Mapbox Vector Tile (version 2) holding a single layer.
+ *
+ * Geometries are streamed from their GeoPackage blobs: coordinates are transformed to the tile's 4096 unit extent,
+ * simplified, clipped to the extent plus a buffer (lines split at the clip edges, polygon rings clipped with
+ * Sutherland-Hodgman), quantized to integers and written as delta and zigzag encoded MoveTo/LineTo/ClosePath commands.
+ * Polygon rings are re-oriented to the winding required by the specification (exterior rings positive area).
+ *
+ * A feature has a single geometry type.  Parts of a geometry collection which differ from the type of its first part
+ * are left out.  Columns other than the primary key and the geometry become feature attributes.
+ *
+ * Not thread-safe: one encoder per tile.
+ */
+
+final class MvtEncoder {
+
+    static final String MIME_TYPE = "application/vnd.mapbox-vector-tile";
+
+    /**
+     * Coordinate units across a tile
+     */
+    static final int EXTENT = 4096;
+
+    /**
+     * Units outside the extent kept when clipping, so strokes and symbols crossing tile edges are drawn seamlessly
+     */
+    static final int CLIP_BUFFER = 64;
+
+    /**
+     * Simplify tolerance (in extent units)
+     */
+    private static final double SIMPLIFY_TOLERANCE = 1.0;
+
+    /**
+     * Maximum ids per IN (...) query (below SQLite's default host parameter limit)
+     */
+    private static final int QUERY_CHUNK_SIZE = 500;
+
+    private static final int GEOM_POINT = 1;
+    private static final int GEOM_LINESTRING = 2;
+    private static final int GEOM_POLYGON = 3;
+
+    private static final int CMD_MOVE_TO = 1;
+    private static final int CMD_LINE_TO = 2;
+    private static final int CMD_CLOSE_PATH = 7;
+
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_FIXED64 = 1;
+    private static final int WIRE_LENGTH_DELIMITED = 2;
+
+    private final String mLayerName;
+    private final TileTransform mTransform;
+    private final CoordinateBuffer mBuffer = new CoordinateBuffer();
+
+    //layer
+    private final Map<String, Integer> mKeys = new HashMap<>();
+    private final Map<Object, Integer> mValues = new HashMap<>();
+    private final ProtobufBuffer mKeysBuffer = new ProtobufBuffer();
+    private final ProtobufBuffer mValuesBuffer = new ProtobufBuffer();
+    private final ProtobufBuffer mFeaturesBuffer = new ProtobufBuffer();
+    private final ProtobufBuffer mFeatureBuffer = new ProtobufBuffer();
+    private final ProtobufBuffer mValueBuffer = new ProtobufBuffer();
+    private int mFeatureCount = 0;
+
+    //current feature
+    private int mGeometryType;
+    private int[] mCommands = new int[256];
+    private int mCommandCount;
+    private int mCursorX;
+    private int mCursorY;
+    private int[] mPoints = new int[64];     //x, y of a (multi) point feature
+    private int mPointCount;
+    private int[] mTags = new int[32];
+    private int mTagCount;
+
+    //clipping and quantizing
+    private double[] mClipA = new double[256];
+    private double[] mClipB = new double[256];
+    private int mClipCount;
+    private double mT0;     //parameter range of the segment being clipped
+    private double mT1;
+    private int[] mQuantized = new int[256];
+
+    //WKB input
+    private byte[] mData;
+    private int mPosition;
+    private boolean mLittleEndian;
+
+    /**
+     * Constructor
+     * @param layerName - name of the vector tile layer
+     * @param boundingBox - extent of the tile (EPSG:4326)
+     */
+    MvtEncoder(String layerName, BoundingBox boundingBox) {
+        mLayerName = layerName;
+        mTransform = new TileTransform(boundingBox, EXTENT, EXTENT);
+    }
+
+    /**
+     * @return the bounding box features must intersect to be part of a tile (the tile expanded by the clip buffer)
+     */
+    static BoundingBox expandBoundingBox(BoundingBox boundingBox) {
+        double bufferX = (boundingBox.getMaxLongitude() - boundingBox.getMinLongitude()) * CLIP_BUFFER / EXTENT;
+        double bufferY = (boundingBox.getMaxLatitude() - boundingBox.getMinLatitude()) * CLIP_BUFFER / EXTENT;
+        return new BoundingBox(boundingBox.getMinLongitude() - bufferX, boundingBox.getMinLatitude() - bufferY,
+                boundingBox.getMaxLongitude() + bufferX, boundingBox.getMaxLatitude() + bufferY);
+    }
+
+    /**
+     * Reads the given features (geometry and attributes) with chunked IN (...) queries and adds them to the tile
+     * @param featureDao - feature table
+     * @param ids - ids of the features intersecting the tile
+     */
+    void addFeatures(FeatureDao featureDao, long[] ids) {
+        String pkColumn = featureDao.getTable().getPkColumn().getName();
+        String geometryColumn = featureDao.getGeometryColumnName();
+        String select = "SELECT * FROM \"" + featureDao.getTableName() + "\" WHERE \"" + pkColumn + "\" IN (";
+
+        for (int start = 0; start < ids.length; start += QUERY_CHUNK_SIZE) {
+            int end = Math.min(start + QUERY_CHUNK_SIZE, ids.length);
+
+            StringBuilder sql = new StringBuilder(select);
+            for (int i = start; i < end; i++) {
+                sql.append(i == start ? "?" : ",?");
+            }
+            sql.append(')');
+
+            try (PreparedStatement statement = featureDao.getConnection().prepareStatement(sql.toString())) {
+                for (int i = start; i < end; i++) {
+                    statement.setLong(i - start + 1, ids[i]);
+                }
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    ResultSetMetaData metaData = resultSet.getMetaData();
+                    int columnCount = metaData.getColumnCount();
+                    String[] columnNames = new String[columnCount];
+                    int pkIndex = -1;
+                    int geometryIndex = -1;
+                    for (int column = 1; column <= columnCount; column++) {
+                        columnNames[column - 1] = metaData.getColumnName(column);
+                        if (columnNames[column - 1].equalsIgnoreCase(pkColumn)) {
+                            pkIndex = column;
+                        } else if (columnNames[column - 1].equalsIgnoreCase(geometryColumn)) {
+                            geometryIndex = column;
+                        }
+                    }
+
+                    while (resultSet.next()) {
+                        mTagCount = 0;
+                        for (int column = 1; column <= columnCount; column++) {
+                            if (column != pkIndex && column != geometryIndex) {
+                                addTag(columnNames[column - 1], resultSet.getObject(column));
+                            }
+                        }
+                        addFeature(resultSet.getLong(pkIndex), resultSet.getBytes(geometryIndex));
+                    }
+                }
+            } catch (SQLException ex) {
+                throw new GeoPackageException("Failed to query features of " + featureDao.getTableName(), ex);
+            }
+        }
+    }
+
+    /**
+     * @return number of features in the tile
+     */
+    int getFeatureCount() {
+        return mFeatureCount;
+    }
+
+    /**
+     * @return the encoded tile (one layer) or null if no feature intersects the tile
+     */
+    byte[] encode() {
+        if (mFeatureCount == 0) {
+            return null;
+        }
+
+        ProtobufBuffer layer = new ProtobufBuffer();
+        layer.writeTag(15, WIRE_VARINT);
+        layer.writeVarint(2);   //version
+        layer.writeString(1, mLayerName);
+        layer.append(mFeaturesBuffer);
+        layer.append(mKeysBuffer);
+        layer.append(mValuesBuffer);
+        layer.writeTag(5, WIRE_VARINT);
+        layer.writeVarint(EXTENT);
+
+        ProtobufBuffer tile = new ProtobufBuffer();
+        tile.writeMessage(3, layer);
+        return tile.toByteArray();
+    }
+
+    /**
+     * Adds an attribute to the current feature (null and binary values are left out)
+     */
+    private void addTag(String key, Object value) {
+        if (value == null || value instanceof byte[]) {
+            return;
+        }
+        if (!(value instanceof Number || value instanceof Boolean)) {
+            value = value.toString();
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            value = ((Number) value).longValue();
+        } else if (value instanceof Float) {
+            value = ((Float) value).doubleValue();
+        } else if (!(value instanceof Long || value instanceof Double || value instanceof Boolean)) {
+            value = value.toString();   //BigDecimal and other numbers
+        }
+
+        Integer keyIndex = mKeys.get(key);
+        if (keyIndex == null) {
+            keyIndex = mKeys.size();
+            mKeys.put(key, keyIndex);
+            mKeysBuffer.writeString(3, key);
+        }
+
+        Integer valueIndex = mValues.get(value);
+        if (valueIndex == null) {
+            valueIndex = mValues.size();
+            mValues.put(value, valueIndex);
+
+            mValueBuffer.reset();
+            if (value instanceof String) {
+                mValueBuffer.writeString(1, (String) value);
+            } else if (value instanceof Double) {
+                mValueBuffer.writeTag(3, WIRE_FIXED64);
+                mValueBuffer.writeFixed64(Double.doubleToLongBits((Double) value));
+            } else if (value instanceof Long) {
+                mValueBuffer.writeTag(4, WIRE_VARINT);
+                mValueBuffer.writeVarint((Long) value);
+            } else {
+                mValueBuffer.writeTag(7, WIRE_VARINT);
+                mValueBuffer.writeVarint((Boolean) value ? 1 : 0);
+            }
+            mValuesBuffer.writeMessage(4, mValueBuffer);
+        }
+
+        if (mTagCount + 2 > mTags.length) {
+            mTags = Arrays.copyOf(mTags, mTags.length * 2);
+        }
+        mTags[mTagCount++] = keyIndex;
+        mTags[mTagCount++] = valueIndex;
+    }
+
+    /**
+     * Adds a feature with the tags collected for it
+     * @param id - feature id
+     * @param blob - GeoPackage geometry blob
+     */
+    private void addFeature(long id, byte[] blob) {
+        if (blob == null || blob.length < 8 || blob[0] != 'G' || blob[1] != 'P') {
+            return;
+        }
+        int flags = blob[3];
+        if ((flags & 0x30) != 0) {
+            return;     //empty or extended geometry
+        }
+        int envelopeIndicator = (flags >> 1) & 0x07;
+        int[] envelopeLengths = {0, 4, 6, 6, 8};
+        if (envelopeIndicator >= envelopeLengths.length) {
+            return;
+        }
+
+        mData = blob;
+        mPosition = 8 + envelopeLengths[envelopeIndicator] * 8;
+        mGeometryType = 0;
+        mCommandCount = 0;
+        mPointCount = 0;
+        mCursorX = 0;
+        mCursorY = 0;
+
+        try {
+            readGeometry();
+        } catch (RuntimeException ex) {
+            return;     //malformed or unsupported geometry
+        }
+
+        if (mGeometryType == GEOM_POINT && mPointCount > 0) {
+            addCommand(CMD_MOVE_TO, mPointCount);
+            for (int i = 0; i < mPointCount; i++) {
+                addDelta(mPoints[i * 2], mPoints[i * 2 + 1]);
+            }
+        }
+        if (mCommandCount == 0) {
+            return;     //nothing inside the tile
+        }
+
+        mFeatureBuffer.reset();
+        mFeatureBuffer.writeTag(1, WIRE_VARINT);
+        mFeatureBuffer.writeVarint(id);
+        mFeatureBuffer.writePacked(2, mTags, mTagCount);
+        mFeatureBuffer.writeTag(3, WIRE_VARINT);
+        mFeatureBuffer.writeVarint(mGeometryType);
+        mFeatureBuffer.writePacked(4, mCommands, mCommandCount);
+        mFeaturesBuffer.writeMessage(2, mFeatureBuffer);
+        mFeatureCount++;
+    }
+
+    /**
+     * @return true if the current feature has (or takes on) the given geometry type
+     */
+    private boolean acceptType(int geometryType) {
+        if (mGeometryType == 0) {
+            mGeometryType = geometryType;
+        }
+        return mGeometryType == geometryType;
+    }
+
+    private void readGeometry() {
+        mLittleEndian = mData[mPosition++] == 1;
+        int type = readInt();
+
+        int dimensions = 2;
+        if ((type & 0x80000000) != 0) {
+            dimensions++;
+        }
+        if ((type & 0x40000000) != 0) {
+            dimensions++;
+        }
+        if ((type & 0x20000000) != 0) {
+            mPosition += 4;     //EWKB srid
+        }
+        type &= 0x0FFFFFFF;
+        switch (type / 1000) {
+            case 1:
+            case 2:
+                dimensions++;
+                break;
+            case 3:
+                dimensions += 2;
+                break;
+        }
+        int skip = (dimensions - 2) * 8;
+
+        switch (type % 1000) {
+            case 1: {   //point
+                double x = mTransform.x(readDouble());
+                double y = mTransform.y(readDouble());
+                mPosition += skip;
+                if (acceptType(GEOM_POINT) && x >= -CLIP_BUFFER && x <= EXTENT + CLIP_BUFFER &&
+                        y >= -CLIP_BUFFER && y <= EXTENT + CLIP_BUFFER) {
+                    if (mPointCount * 2 + 2 > mPoints.length) {
+                        mPoints = Arrays.copyOf(mPoints, mPoints.length * 2);
+                    }
+                    mPoints[mPointCount * 2] = (int) Math.round(x);
+                    mPoints[mPointCount * 2 + 1] = (int) Math.round(y);
+                    mPointCount++;
+                }
+                break;
+            }
+            case 2:     //line string
+            case 8: {   //circular string
+                readPoints(skip);
+                if (acceptType(GEOM_LINESTRING) && mBuffer.size() >= 2) {
+                    mBuffer.simplify(SIMPLIFY_TOLERANCE);
+                    clipLine();
+                }
+                break;
+            }
+            case 3:     //polygon
+            case 17: {  //triangle
+                int rings = readInt();
+                boolean accepted = acceptType(GEOM_POLYGON);
+                boolean exteriorEmitted = false;
+                for (int i = 0; i < rings; i++) {
+                    readPoints(skip);
+                    if (!accepted || (i > 0 && !exteriorEmitted) || mBuffer.size() < 4) {
+                        continue;
+                    }
+                    mBuffer.simplify(SIMPLIFY_TOLERANCE);
+                    boolean emitted = clipRing() && emitRing(i == 0);
+                    if (i == 0) {
+                        exteriorEmitted = emitted;
+                    }
+                }
+                break;
+            }
+            case 4:     //multi point
+            case 5:     //multi line string
+            case 6:     //multi polygon
+            case 7:     //geometry collection
+            case 9:     //compound curve
+            case 15:    //polyhedral surface
+            case 16: {  //tin
+                int geometries = readInt();
+                for (int i = 0; i < geometries; i++) {
+                    readGeometry();
+                }
+                break;
+            }
+            default:
+                throw new GeoPackageException("Unsupported WKB Geometry Type: " + type);
+        }
+    }
+
+    private void readPoints(int skip) {
+        int count = readInt();
+        mBuffer.clear();
+        for (int i = 0; i < count; i++) {
+            double x = readDouble();
+            double y = readDouble();
+            mPosition += skip;
+            mBuffer.add(mTransform, x, y);
+        }
+    }
+
+    /**
+     * Clips the line in the coordinate buffer to the buffered extent, emitting each part inside it
+     */
+    private void clipLine() {
+        double min = -CLIP_BUFFER;
+        double max = EXTENT + CLIP_BUFFER;
+        mClipCount = 0;
+
+        for (int i = 0; i + 1 < mBuffer.size(); i++) {
+            double x0 = mBuffer.getX(i);
+            double y0 = mBuffer.getY(i);
+            double dx = mBuffer.getX(i + 1) - x0;
+            double dy = mBuffer.getY(i + 1) - y0;
+
+            //Liang-Barsky
+            mT0 = 0;
+            mT1 = 1;
+            boolean inside = clipEdge(-dx, x0 - min) && clipEdge(dx, max - x0) &&
+                    clipEdge(-dy, y0 - min) && clipEdge(dy, max - y0);
+            double t0 = mT0;
+            double t1 = mT1;
+
+            if (!inside) {
+                emitLinePart();
+                continue;
+            }
+
+            if (mClipCount == 0 || t0 > 0) {
+                emitLinePart();
+                addClipPoint(x0 + t0 * dx, y0 + t0 * dy);
+            }
+            addClipPoint(x0 + t1 * dx, y0 + t1 * dy);
+            if (t1 < 1) {
+                emitLinePart();
+            }
+        }
+        emitLinePart();
+    }
+
+    /**
+     * Narrows the parameter range [mT0, mT1] of the segment being clipped by one edge
+     * @return false if the segment lies outside the edge
+     */
+    private boolean clipEdge(double p, double q) {
+        if (p == 0) {
+            return q >= 0;
+        }
+
+        double t = q / p;
+        if (p < 0) {
+            mT0 = Math.max(mT0, t);
+        } else {
+            mT1 = Math.min(mT1, t);
+        }
+        return mT0 <= mT1;
+    }
+
+    private void addClipPoint(double x, double y) {
+        if (mClipCount * 2 + 2 > mClipA.length) {
+            mClipA = Arrays.copyOf(mClipA, mClipA.length * 2);
+        }
+        mClipA[mClipCount * 2] = x;
+        mClipA[mClipCount * 2 + 1] = y;
+        mClipCount++;
+    }
+
+    /**
+     * Emits the clipped line part collected in mClipA (if it has a length once quantized)
+     */
+    private void emitLinePart() {
+        int count = quantize(mClipA, mClipCount);
+        mClipCount = 0;
+        if (count < 2) {
+            return;
+        }
+
+        addCommand(CMD_MOVE_TO, 1);
+        addDelta(mQuantized[0], mQuantized[1]);
+        addCommand(CMD_LINE_TO, count - 1);
+        for (int i = 1; i < count; i++) {
+            addDelta(mQuantized[i * 2], mQuantized[i * 2 + 1]);
+        }
+    }
+
+    /**
+     * Clips the ring in the coordinate buffer to the buffered extent (Sutherland-Hodgman) into mClipA
+     * @return true if anything of the ring remains
+     */
+    private boolean clipRing() {
+        int count = mBuffer.size();
+        if (mBuffer.getX(0) == mBuffer.getX(count - 1) && mBuffer.getY(0) == mBuffer.getY(count - 1)) {
+            count--;    //open the ring
+        }
+
+        if (count * 2 > mClipA.length) {
+            mClipA = new double[count * 4];
+        }
+        for (int i = 0; i < count; i++) {
+            mClipA[i * 2] = mBuffer.getX(i);
+            mClipA[i * 2 + 1] = mBuffer.getY(i);
+        }
+
+        double min = -CLIP_BUFFER;
+        double max = EXTENT + CLIP_BUFFER;
+        for (int edge = 0; edge < 4 && count > 0; edge++) {
+            int axis = edge / 2;                    //0: x, 1: y
+            boolean isMin = edge % 2 == 0;
+            double bound = isMin ? min : max;
+
+            if ((count + 1) * 4 > mClipB.length) {
+                mClipB = new double[(count + 1) * 4];
+            }
+            int out = 0;
+            for (int i = 0; i < count; i++) {
+                int previous = (i + count - 1) % count;
+                double previousValue = mClipA[previous * 2 + axis];
+                double value = mClipA[i * 2 + axis];
+                boolean previousInside = isMin ? previousValue >= bound : previousValue <= bound;
+                boolean inside = isMin ? value >= bound : value <= bound;
+
+                if (inside != previousInside) {
+                    double t = (bound - previousValue) / (value - previousValue);
+                    double px = mClipA[previous * 2];
+                    double py = mClipA[previous * 2 + 1];
+                    mClipB[out * 2] = px + t * (mClipA[i * 2] - px);
+                    mClipB[out * 2 + 1] = py + t * (mClipA[i * 2 + 1] - py);
+                    out++;
+                }
+                if (inside) {
+                    mClipB[out * 2] = mClipA[i * 2];
+                    mClipB[out * 2 + 1] = mClipA[i * 2 + 1];
+                    out++;
+                }
+            }
+
+            double[] swap = mClipA;
+            mClipA = mClipB;
+            mClipB = swap;
+            count = out;
+        }
+
+        mClipCount = count;
+        return count >= 3;
+    }
+
+    /**
+     * Emits the clipped ring in mClipA, oriented as an exterior (positive area) or interior ring
+     * @return true if the ring has an area once quantized
+     */
+    private boolean emitRing(boolean exterior) {
+        int count = quantize(mClipA, mClipCount);
+        mClipCount = 0;
+        if (count > 1 && mQuantized[0] == mQuantized[(count - 1) * 2] && mQuantized[1] == mQuantized[(count - 1) * 2 + 1]) {
+            count--;
+        }
+        if (count < 3) {
+            return false;
+        }
+
+        long area = 0;
+        for (int i = 0; i < count; i++) {
+            int next = (i + 1) % count;
+            area += (long) mQuantized[i * 2] * mQuantized[next * 2 + 1] - (long) mQuantized[next * 2] * mQuantized[i * 2 + 1];
+        }
+        if (area == 0) {
+            return false;
+        }
+        if ((area > 0) != exterior) {
+            for (int i = 0, j = count - 1; i < j; i++, j--) {
+                int x = mQuantized[i * 2];
+                int y = mQuantized[i * 2 + 1];
+                mQuantized[i * 2] = mQuantized[j * 2];
+                mQuantized[i * 2 + 1] = mQuantized[j * 2 + 1];
+                mQuantized[j * 2] = x;
+                mQuantized[j * 2 + 1] = y;
+            }
+        }
+
+        addCommand(CMD_MOVE_TO, 1);
+        addDelta(mQuantized[0], mQuantized[1]);
+        addCommand(CMD_LINE_TO, count - 1);
+        for (int i = 1; i < count; i++) {
+            addDelta(mQuantized[i * 2], mQuantized[i * 2 + 1]);
+        }
+        addCommand(CMD_CLOSE_PATH, 1);
+        return true;
+    }
+
+    /**
+     * Rounds the coordinates to integers into mQuantized, dropping repeated points
+     * @return number of points kept
+     */
+    private int quantize(double[] coordinates, int count) {
+        if (count * 2 > mQuantized.length) {
+            mQuantized = new int[count * 2];
+        }
+
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            int x = (int) Math.round(coordinates[i * 2]);
+            int y = (int) Math.round(coordinates[i * 2 + 1]);
+            if (kept > 0 && mQuantized[(kept - 1) * 2] == x && mQuantized[(kept - 1) * 2 + 1] == y) {
+                continue;
+            }
+            mQuantized[kept * 2] = x;
+            mQuantized[kept * 2 + 1] = y;
+            kept++;
+        }
+        return kept;
+    }
+
+    private void addCommand(int command, int count) {
+        addInt((command & 0x7) | (count << 3));
+    }
+
+    /**
+     * Adds a coordinate as zigzag encoded deltas from the cursor
+     */
+    private void addDelta(int x, int y) {
+        int dx = x - mCursorX;
+        int dy = y - mCursorY;
+        addInt((dx << 1) ^ (dx >> 31));
+        addInt((dy << 1) ^ (dy >> 31));
+        mCursorX = x;
+        mCursorY = y;
+    }
+
+    private void addInt(int value) {
+        if (mCommandCount == mCommands.length) {
+            mCommands = Arrays.copyOf(mCommands, mCommands.length * 2);
+        }
+        mCommands[mCommandCount++] = value;
+    }
+
+    private int readInt() {
+        byte[] d = mData;
+        int p = mPosition;
+        mPosition += 4;
+        if (mLittleEndian) {
+            return (d[p] & 0xff) | (d[p + 1] & 0xff) << 8 | (d[p + 2] & 0xff) << 16 | (d[p + 3] & 0xff) << 24;
+        }
+        return (d[p] & 0xff) << 24 | (d[p + 1] & 0xff) << 16 | (d[p + 2] & 0xff) << 8 | (d[p + 3] & 0xff);
+    }
+
+    private double readDouble() {
+        byte[] d = mData;
+        int p = mPosition;
+        mPosition += 8;
+        long bits = 0;
+        if (mLittleEndian) {
+            for (int i = 7; i >= 0; i--) {
+                bits = bits << 8 | (d[p + i] & 0xff);
+            }
+        } else {
+            for (int i = 0; i < 8; i++) {
+                bits = bits << 8 | (d[p + i] & 0xff);
+            }
+        }
+        return Double.longBitsToDouble(bits);
+    }
+
+    /**
+     * Growable protocol buffers output
+     */
+    private static final class ProtobufBuffer {
+        private byte[] mData = new byte[256];
+        private int mLength = 0;
+
+        void reset() {
+            mLength = 0;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(mData, mLength);
+        }
+
+        void writeTag(int field, int wireType) {
+            writeVarint((field << 3) | wireType);
+        }
+
+        void writeVarint(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                mData[mLength++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            mData[mLength++] = (byte) value;
+        }
+
+        void writeFixed64(long value) {
+            ensureCapacity(8);
+            for (int i = 0; i < 8; i++) {
+                mData[mLength++] = (byte) (value >>> (i * 8));
+            }
+        }
+
+        void writeString(int field, String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeTag(field, WIRE_LENGTH_DELIMITED);
+            writeVarint(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, mData, mLength, bytes.length);
+            mLength += bytes.length;
+        }
+
+        /**
+         * Writes packed uint32 values (nothing if there are none)
+         */
+        void writePacked(int field, int[] values, int count) {
+            if (count == 0) {
+                return;
+            }
+            int size = 0;
+            for (int i = 0; i < count; i++) {
+                size += varintSize(values[i] & 0xFFFFFFFFL);
+            }
+            writeTag(field, WIRE_LENGTH_DELIMITED);
+            writeVarint(size);
+            for (int i = 0; i < count; i++) {
+                writeVarint(values[i] & 0xFFFFFFFFL);
+            }
+        }
+
+        void writeMessage(int field, ProtobufBuffer message) {
+            writeTag(field, WIRE_LENGTH_DELIMITED);
+            writeVarint(message.mLength);
+            append(message);
+        }
+
+        void append(ProtobufBuffer buffer) {
+            ensureCapacity(buffer.mLength);
+            System.arraycopy(buffer.mData, 0, mData, mLength, buffer.mLength);
+            mLength += buffer.mLength;
+        }
+
+        private void ensureCapacity(int bytes) {
+            if (mLength + bytes > mData.length) {
+                mData = Arrays.copyOf(mData, Math.max(mData.length * 2, mLength + bytes));
+            }
+        }
+
+        private static int varintSize(long value) {
+            int size = 1;
+            while ((value & ~0x7FL) != 0) {
+                value >>>= 7;
+                size++;
+            }
+            return size;
+        }
+    }
+}
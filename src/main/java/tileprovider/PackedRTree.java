@@ -0,0 +1,242 @@
+package tileprovider;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * Static, packed R-tree of bounding boxes.  The tree is bulk loaded with Sort-Tile-Recursive (STR) and stored in flat
+ * primitive arrays -- one double[] holding the boxes of all items and nodes, one long[] holding the item ids -- so it
+ * is compact, cheap to persist and creates no objects while searching.
+ *
+ * Layout: the boxes of all items come first (in STR order), followed by each level of nodes up to the single root.
+ * The children of node n of a level are the NODE_SIZE consecutive entries starting at n * NODE_SIZE of the level
+ * below it.
+ */
+
+final class PackedRTree {
+
+    static final int NODE_SIZE = 16;
+
+    private static final int MAGIC = 0x50525431;    //"PRT1"
+
+    private final int mItemCount;
+    private final double[] mBoxes;          //minX, minY, maxX, maxY per entry
+    private final long[] mIds;              //per item
+    private final int[] mLevelOffsets;      //first entry of each level, items first; last element = total entries
+
+    private PackedRTree(int itemCount, double[] boxes, long[] ids, int[] levelOffsets) {
+        mItemCount = itemCount;
+        mBoxes = boxes;
+        mIds = ids;
+        mLevelOffsets = levelOffsets;
+    }
+
+    /**
+     * Bulk loads a tree
+     * @param envelopes - minX, minY, maxX, maxY of each item (4 * count values)
+     * @param ids - id of each item
+     * @param count - number of items
+     * @return the packed tree
+     */
+    static PackedRTree build(double[] envelopes, long[] ids, int count) {
+        //level sizes: items, then ceil(n / NODE_SIZE) until a single root
+        int[] levelSizes = new int[32];
+        int levels = 0;
+        int size = count;
+        int total = 0;
+        do {
+            levelSizes[levels++] = size;
+            total += size;
+            size = (size + NODE_SIZE - 1) / NODE_SIZE;
+        } while (levelSizes[levels - 1] > 1);
+
+        int[] levelOffsets = new int[levels + 1];
+        for (int i = 0; i < levels; i++) {
+            levelOffsets[i + 1] = levelOffsets[i] + levelSizes[i];
+        }
+
+        double[] boxes = new double[total * 4];
+        long[] sortedIds = new long[count];
+
+        //STR order of the items: slices by center x, then by center y within each slice
+        Integer[] order = strOrder(envelopes, count);
+        for (int i = 0; i < count; i++) {
+            int item = order[i];
+            System.arraycopy(envelopes, item * 4, boxes, i * 4, 4);
+            sortedIds[i] = ids[item];
+        }
+
+        //each node covers NODE_SIZE consecutive entries of the level below
+        for (int level = 1; level < levels; level++) {
+            int childStart = levelOffsets[level - 1];
+            int childEnd = levelOffsets[level];
+            for (int node = 0; node < levelSizes[level]; node++) {
+                int first = childStart + node * NODE_SIZE;
+                int last = Math.min(first + NODE_SIZE, childEnd);
+                double minX = Double.POSITIVE_INFINITY;
+                double minY = Double.POSITIVE_INFINITY;
+                double maxX = Double.NEGATIVE_INFINITY;
+                double maxY = Double.NEGATIVE_INFINITY;
+                for (int child = first; child < last; child++) {
+                    minX = Math.min(minX, boxes[child * 4]);
+                    minY = Math.min(minY, boxes[child * 4 + 1]);
+                    maxX = Math.max(maxX, boxes[child * 4 + 2]);
+                    maxY = Math.max(maxY, boxes[child * 4 + 3]);
+                }
+                int index = (levelOffsets[level] + node) * 4;
+                boxes[index] = minX;
+                boxes[index + 1] = minY;
+                boxes[index + 2] = maxX;
+                boxes[index + 3] = maxY;
+            }
+        }
+
+        return new PackedRTree(count, boxes, sortedIds, levelOffsets);
+    }
+
+    /**
+     * @return item order for Sort-Tile-Recursive packing
+     */
+    private static Integer[] strOrder(double[] envelopes, int count) {
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+
+        Arrays.sort(order, (a, b) -> Double.compare(envelopes[a * 4] + envelopes[a * 4 + 2], envelopes[b * 4] + envelopes[b * 4 + 2]));
+
+        int leafCount = (count + NODE_SIZE - 1) / NODE_SIZE;
+        int sliceCount = (int) Math.ceil(Math.sqrt(leafCount));
+        int sliceSize = sliceCount == 0 ? count : sliceCount * NODE_SIZE;
+        for (int start = 0; start < count; start += sliceSize) {
+            Arrays.sort(order, start, Math.min(start + sliceSize, count),
+                    (a, b) -> Double.compare(envelopes[a * 4 + 1] + envelopes[a * 4 + 3], envelopes[b * 4 + 1] + envelopes[b * 4 + 3]));
+        }
+
+        return order;
+    }
+
+    /**
+     * @return number of indexed items
+     */
+    int size() {
+        return mItemCount;
+    }
+
+    /**
+     * Receives the items of the tree
+     */
+    interface ItemVisitor {
+        void accept(long id, double minX, double minY, double maxX, double maxY);
+    }
+
+    /**
+     * Reports every item with its box (in STR order)
+     */
+    void forEachItem(ItemVisitor visitor) {
+        for (int i = 0; i < mItemCount; i++) {
+            visitor.accept(mIds[i], mBoxes[i * 4], mBoxes[i * 4 + 1], mBoxes[i * 4 + 2], mBoxes[i * 4 + 3]);
+        }
+    }
+
+    /**
+     * Reports the ids of all items whose box intersects the search box
+     * @param consumer - receives each matching id
+     */
+    void search(double minX, double minY, double maxX, double maxY, LongConsumer consumer) {
+        if (mItemCount == 0) {
+            return;
+        }
+
+        int levels = mLevelOffsets.length - 1;
+        int[] stackLevels = new int[levels * NODE_SIZE + 1];
+        int[] stackNodes = new int[levels * NODE_SIZE + 1];
+        int top = 0;
+
+        //root
+        stackLevels[top] = levels - 1;
+        stackNodes[top] = 0;
+        top++;
+
+        while (top > 0) {
+            top--;
+            int level = stackLevels[top];
+            int node = stackNodes[top];
+
+            int index = (mLevelOffsets[level] + node) * 4;
+            if (mBoxes[index] > maxX || mBoxes[index + 1] > maxY || mBoxes[index + 2] < minX || mBoxes[index + 3] < minY) {
+                continue;
+            }
+
+            if (level == 0) {
+                consumer.accept(mIds[node]);
+                continue;
+            }
+
+            int first = node * NODE_SIZE;
+            int last = Math.min(first + NODE_SIZE, mLevelOffsets[level] - mLevelOffsets[level - 1]);
+            for (int child = last - 1; child >= first; child--) {
+                stackLevels[top] = level - 1;
+                stackNodes[top] = child;
+                top++;
+            }
+        }
+    }
+
+    /**
+     * Writes the tree (see read())
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(NODE_SIZE);
+        out.writeInt(mItemCount);
+        out.writeInt(mLevelOffsets.length);
+        for (int levelOffset : mLevelOffsets) {
+            out.writeInt(levelOffset);
+        }
+        for (double value : mBoxes) {
+            out.writeDouble(value);
+        }
+        for (long id : mIds) {
+            out.writeLong(id);
+        }
+    }
+
+    /**
+     * Reads a tree written by write()
+     * @throws IOException if the data is not a packed tree of this version
+     */
+    static PackedRTree read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != NODE_SIZE) {
+            throw new IOException("Not a packed R-tree");
+        }
+
+        int itemCount = in.readInt();
+        int levelCount = in.readInt();
+        if (itemCount < 0 || levelCount < 2 || levelCount > 32) {
+            throw new IOException("Corrupt packed R-tree");
+        }
+
+        int[] levelOffsets = new int[levelCount];
+        for (int i = 0; i < levelCount; i++) {
+            levelOffsets[i] = in.readInt();
+        }
+        if (levelOffsets[1] != itemCount) {
+            throw new IOException("Corrupt packed R-tree");
+        }
+
+        double[] boxes = new double[levelOffsets[levelCount - 1] * 4];
+        for (int i = 0; i < boxes.length; i++) {
+            boxes[i] = in.readDouble();
+        }
+        long[] ids = new long[itemCount];
+        for (int i = 0; i < itemCount; i++) {
+            ids[i] = in.readLong();
+        }
+
+        return new PackedRTree(itemCount, boxes, ids, levelOffsets);
+    }
+}
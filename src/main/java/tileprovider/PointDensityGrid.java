@@ -0,0 +1,247 @@
+package tileprovider;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Point counts of a feature layer aggregated into grid cells of the EPSG:4326 tile grid, precomputed for every zoom
+ * level up to a maximum.  Each tile covers CELLS_PER_TILE x CELLS_PER_TILE cells, so an aggregated tile is drawn in
+ * O(cells) no matter how many features fall inside it.
+ *
+ * The finest level is filled from the feature envelopes (by their centers) in one pass; each coarser level is the
+ * 2x2 sum of the level below it.  Counts are held in one int[] per zoom level, row major.
+ *
+ * Immutable once built and safe to share between threads.
+ */
+
+final class PointDensityGrid {
+
+    /**
+     * Cells across (and down) one tile
+     */
+    static final int CELLS_PER_TILE = 32;
+
+    /**
+     * Most cells held by the finest level (limits the deepest precomputed zoom level)
+     */
+    private static final long MAX_LEVEL_CELLS = 1L << 21;
+
+    /**
+     * Heatmap colors from low (blue, mostly transparent) to high (red, opaque) density
+     */
+    private static final int[] HEATMAP_PALETTE = new int[256];
+
+    static {
+        for (int i = 0; i < HEATMAP_PALETTE.length; i++) {
+            float t = i / 255f;
+            int rgb = Color.HSBtoRGB(0.66f * (1 - t), 1f, 1f) & 0x00FFFFFF;
+            int alpha = 64 + Math.round(191 * t);
+            HEATMAP_PALETTE[i] = alpha << 24 | rgb;
+        }
+    }
+
+    private final int mMaxZoom;
+    private final int[][] mCounts;      //per zoom level: count per cell
+    private final int[] mMaxCounts;     //per zoom level: largest cell count
+
+    private PointDensityGrid(int maxZoom, int[][] counts, int[] maxCounts) {
+        mMaxZoom = maxZoom;
+        mCounts = counts;
+        mMaxCounts = maxCounts;
+    }
+
+    /**
+     * Aggregates the features of a spatial index
+     * @param spatialIndex - index holding the envelopes of the layer's features
+     * @param maxZoom - deepest zoom level to precompute (lowered if its grid would be too large)
+     * @return the grid
+     */
+    static PointDensityGrid build(FeatureSpatialIndex spatialIndex, int maxZoom) {
+        maxZoom = Math.max(0, maxZoom);
+        while (maxZoom > 0 && (2L * CELLS_PER_TILE * CELLS_PER_TILE << (2 * Math.min(maxZoom, 30))) > MAX_LEVEL_CELLS) {
+            maxZoom--;
+        }
+
+        int[][] counts = new int[maxZoom + 1][];
+        int[] maxCounts = new int[maxZoom + 1];
+
+        //finest level from the feature centers
+        int columns = columns(maxZoom);
+        int rows = rows(maxZoom);
+        int[] finest = new int[columns * rows];
+        spatialIndex.forEachEnvelope((id, minX, minY, maxX, maxY) -> {
+            double longitude = (minX + maxX) / 2;
+            double latitude = (minY + maxY) / 2;
+            int column = clamp((int) Math.floor((longitude + 180) / 360 * columns), columns);
+            int row = clamp((int) Math.floor((90 - latitude) / 180 * rows), rows);
+            finest[row * columns + column]++;
+        });
+        counts[maxZoom] = finest;
+
+        //each coarser level sums 2x2 cells of the level below
+        for (int zoom = maxZoom - 1; zoom >= 0; zoom--) {
+            int[] below = counts[zoom + 1];
+            int belowColumns = columns(zoom + 1);
+            int levelColumns = columns(zoom);
+            int levelRows = rows(zoom);
+            int[] level = new int[levelColumns * levelRows];
+            for (int row = 0; row < levelRows; row++) {
+                int belowRow = row * 2 * belowColumns;
+                for (int column = 0; column < levelColumns; column++) {
+                    int index = belowRow + column * 2;
+                    level[row * levelColumns + column] = below[index] + below[index + 1] +
+                            below[index + belowColumns] + below[index + belowColumns + 1];
+                }
+            }
+            counts[zoom] = level;
+        }
+
+        for (int zoom = 0; zoom <= maxZoom; zoom++) {
+            int max = 0;
+            for (int count : counts[zoom]) {
+                max = Math.max(max, count);
+            }
+            maxCounts[zoom] = max;
+        }
+
+        return new PointDensityGrid(maxZoom, counts, maxCounts);
+    }
+
+    /**
+     * @return deepest precomputed zoom level
+     */
+    int getMaxZoom() {
+        return mMaxZoom;
+    }
+
+    /**
+     * Draws one tile of aggregated points
+     * @param x - column
+     * @param y - row
+     * @param zoom - zoom level (at most getMaxZoom())
+     * @param width - tile width (pixels)
+     * @param height - tile height (pixels)
+     * @param heatmap - true to draw density as heatmap colors, false to draw sized clusters
+     * @param style - style of the layer (cluster color and minimum radius)
+     * @return tile image or null if no point falls inside the tile
+     */
+    BufferedImage drawTile(int x, int y, int zoom, int width, int height, boolean heatmap, FeatureStyle style) {
+        if (zoom < 0 || zoom > mMaxZoom || x < 0 || y < 0 || x >= columns(zoom) / CELLS_PER_TILE ||
+                y >= rows(zoom) / CELLS_PER_TILE) {
+            return null;
+        }
+
+        int[] counts = mCounts[zoom];
+        int columns = columns(zoom);
+        int firstCell = y * CELLS_PER_TILE * columns + x * CELLS_PER_TILE;
+
+        boolean empty = true;
+        for (int row = 0; row < CELLS_PER_TILE && empty; row++) {
+            int rowStart = firstCell + row * columns;
+            for (int column = 0; column < CELLS_PER_TILE; column++) {
+                if (counts[rowStart + column] != 0) {
+                    empty = false;
+                    break;
+                }
+            }
+        }
+        if (empty) {
+            return null;
+        }
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        if (heatmap) {
+            drawHeatmap(image, counts, firstCell, columns, mMaxCounts[zoom]);
+        } else {
+            drawClusters(image, counts, firstCell, columns, style);
+        }
+        return image;
+    }
+
+    /**
+     * Fills each non-empty cell with the palette color of its (log scaled) count, writing the pixels directly
+     */
+    private static void drawHeatmap(BufferedImage image, int[] counts, int firstCell, int columns, int maxCount) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        double scale = (HEATMAP_PALETTE.length - 1) / Math.log1p(Math.max(maxCount, 1));
+
+        for (int row = 0; row < CELLS_PER_TILE; row++) {
+            int top = row * height / CELLS_PER_TILE;
+            int bottom = (row + 1) * height / CELLS_PER_TILE;
+            int rowStart = firstCell + row * columns;
+            for (int column = 0; column < CELLS_PER_TILE; column++) {
+                int count = counts[rowStart + column];
+                if (count == 0) {
+                    continue;
+                }
+
+                int color = HEATMAP_PALETTE[(int) Math.min(HEATMAP_PALETTE.length - 1, Math.log1p(count) * scale)];
+                int left = column * width / CELLS_PER_TILE;
+                int right = (column + 1) * width / CELLS_PER_TILE;
+                for (int py = top; py < bottom; py++) {
+                    int offset = py * width;
+                    for (int px = left; px < right; px++) {
+                        pixels[offset + px] = color;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws a circle per non-empty cell, growing with the log of its count (batched into one path)
+     */
+    private static void drawClusters(BufferedImage image, int[] counts, int firstCell, int columns, FeatureStyle style) {
+        double cellWidth = (double) image.getWidth() / CELLS_PER_TILE;
+        double cellHeight = (double) image.getHeight() / CELLS_PER_TILE;
+        double maxRadius = Math.max(cellWidth, cellHeight) * 1.5;
+        float minRadius = style.getPointRadius();
+
+        Path2D.Float clusters = new Path2D.Float(Path2D.WIND_NON_ZERO, 1024);
+        Ellipse2D.Double circle = new Ellipse2D.Double();
+        for (int row = 0; row < CELLS_PER_TILE; row++) {
+            int rowStart = firstCell + row * columns;
+            for (int column = 0; column < CELLS_PER_TILE; column++) {
+                int count = counts[rowStart + column];
+                if (count == 0) {
+                    continue;
+                }
+
+                double radius = Math.min(maxRadius, minRadius * (1 + Math.log(count) / Math.log(2) / 2));
+                double centerX = (column + 0.5) * cellWidth;
+                double centerY = (row + 0.5) * cellHeight;
+                circle.setFrame(centerX - radius, centerY - radius, radius * 2, radius * 2);
+                clusters.append(circle, false);
+            }
+        }
+
+        Graphics2D graphics = image.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        graphics.setColor(style.getPointColor());
+        graphics.fill(clusters);
+        graphics.setColor(style.getLineColor());
+        graphics.setStroke(new BasicStroke(1f));
+        graphics.draw(clusters);
+        graphics.dispose();
+    }
+
+    private static int columns(int zoom) {
+        return 2 * (1 << zoom) * CELLS_PER_TILE;
+    }
+
+    private static int rows(int zoom) {
+        return (1 << zoom) * CELLS_PER_TILE;
+    }
+
+    private static int clamp(int value, int size) {
+        return value < 0 ? 0 : (value >= size ? size - 1 : value);
+    }
+}
@@ -0,0 +1,17 @@
+package tileprovider;
+
+/**
+ * Interface for a progress listener for TileProvider's registerLayers method.
+ */
+
+public interface RegisterProgressListener {
+
+    /**
+     * Called each time a GeoPackage has been inspected (whether or not it contained layers).  May be called from
+     * several worker threads concurrently.
+     * @param databaseName - database name of the GeoPackage just inspected
+     * @param filesCompleted - Number of GeoPackages inspected so far
+     * @param filesOutOf - Number of GeoPackages found that were not already registered.  Does not change during registration.
+     */
+    void onProgressUpdate(String databaseName, int filesCompleted, int filesOutOf);
+}
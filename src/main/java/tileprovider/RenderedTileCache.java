@@ -0,0 +1,451 @@
+package tileprovider;
+
+import mil.nga.geopackage.BoundingBox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory cache of encoded GetMap responses.  The cache is bounded by the number of bytes held (not the number
+ * of entries) and is split into lock-striped shards so that concurrent WMS requests rarely contend on the same lock.
+ *
+ * Admission follows the W-TinyLFU idea: every lookup is recorded in a small frequency sketch, and once a shard is
+ * full a new response is only admitted if it has been requested more often than the entry it would evict.  This keeps
+ * one-off requests (fast panning) from flushing frequently requested tiles.
+ *
+ * This class uses a Singleton Model since all TileProviders share the same rendered output.
+ */
+
+public class RenderedTileCache {
+
+    /**
+     * Default budget for all shards together
+     */
+    private static final long DEFAULT_MAX_BYTES = 64L * 1024L * 1024L;
+
+    /**
+     * Number of shards (must be a power of two)
+     */
+    private static final int SHARD_COUNT = 16;
+
+    //Singleton
+    private static final RenderedTileCache instance = new RenderedTileCache(DEFAULT_MAX_BYTES);
+
+    /**
+     * Singleton accessor
+     * @return instance
+     */
+    public static RenderedTileCache getInstance() {
+        return instance;
+    }
+
+    private final Shard[] mShards;
+
+    //Statistics
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+    private final AtomicLong mRejections = new AtomicLong();
+    private final AtomicLong mInvalidations = new AtomicLong();
+
+    private volatile boolean mEnabled = true;
+
+    /**
+     * Constructor
+     * @param maxBytes - total number of response bytes the cache may hold
+     */
+    RenderedTileCache(long maxBytes) {
+        mShards = new Shard[SHARD_COUNT];
+        long shardBytes = Math.max(1L, maxBytes / SHARD_COUNT);
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            mShards[i] = new Shard(shardBytes);
+        }
+    }
+
+    /**
+     * Builds the normalized key for a GetMap request.  A bounding box which is a single tile is snapped to the tile
+     * grid the same way the layers snap it when drawing, so requests that render identically share an entry.  Any
+     * other bounding box is mosaicked by the layers and is keyed by its exact extent.
+     * @param layerNames - requested layer names (namespace prefixes already removed), in request order
+     * @param bbox - requested extent (EPSG:4326)
+     * @param width - pixel width
+     * @param height - pixel height
+     * @param format - output format (mime type, plus any encoder options affecting the output)
+     * @return a key suitable for get/put
+     */
+    public static Key createKey(List<String> layerNames, BoundingBox bbox, int width, int height, String format) {
+        if (!LayerUtility.isTileAligned(bbox)) {
+            double[] extent = {bbox.getMinLongitude(), bbox.getMinLatitude(), bbox.getMaxLongitude(), bbox.getMaxLatitude()};
+            return new Key(layerNames, -1, -1, -1, extent, width, height, format);
+        }
+
+        LayerUtility.XYZ xyz = LayerUtility.bboxToXyz(bbox);
+        return new Key(layerNames, xyz.x, xyz.y, xyz.z, null, width, height, format);
+    }
+
+    /**
+     * Looks up an encoded response
+     * @param key - key created by createKey()
+     * @return cached entry or null if not cached
+     */
+    public Entry get(Key key) {
+        if (!mEnabled) {
+            return null;
+        }
+
+        Entry entry = shardFor(key).get(key);
+        if (entry != null) {
+            mHits.incrementAndGet();
+        } else {
+            mMisses.incrementAndGet();
+        }
+
+        return entry;
+    }
+
+    /**
+     * Offers an encoded response to the cache.  The response may be rejected by the admission policy.
+     * @param key - key created by createKey()
+     * @param data - encoded response (not copied; must not be modified afterwards)
+     * @param mimeType - mime type of the encoded response
+     */
+    public void put(Key key, byte[] data, String mimeType) {
+        if (!mEnabled || data == null) {
+            return;
+        }
+
+        shardFor(key).put(key, new Entry(data, mimeType));
+    }
+
+    /**
+     * Removes every cached response that includes the given layer
+     * @param layerName - registered layer name
+     */
+    public void invalidateLayer(String layerName) {
+        for (Shard shard : mShards) {
+            shard.invalidateLayer(layerName);
+        }
+    }
+
+    /**
+     * Removes every cached response
+     */
+    public void invalidateAll() {
+        for (Shard shard : mShards) {
+            shard.clear();
+        }
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        if (!enabled) {
+            invalidateAll();
+        }
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * @return a snapshot of the cache counters
+     */
+    public Stats getStats() {
+        long bytes = 0;
+        int entries = 0;
+        for (Shard shard : mShards) {
+            synchronized (shard) {
+                bytes += shard.mBytes;
+                entries += shard.mEntries.size();
+            }
+        }
+
+        return new Stats(mHits.get(), mMisses.get(), mEvictions.get(), mRejections.get(), mInvalidations.get(), entries, bytes);
+    }
+
+    private Shard shardFor(Key key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return mShards[h & (SHARD_COUNT - 1)];
+    }
+
+    /**
+     * One lock stripe of the cache.  Entries are held in access order so the eldest entry is the eviction victim.
+     */
+    private class Shard {
+        private final long mMaxBytes;
+        private final LinkedHashMap<Key, Entry> mEntries = new LinkedHashMap<>(64, 0.75f, true);
+        private final FrequencySketch mSketch = new FrequencySketch();
+        private long mBytes = 0;
+
+        Shard(long maxBytes) {
+            mMaxBytes = maxBytes;
+        }
+
+        synchronized Entry get(Key key) {
+            mSketch.increment(key.hashCode());
+            return mEntries.get(key);
+        }
+
+        synchronized void put(Key key, Entry entry) {
+            int size = entry.getWeight();
+            if (size > mMaxBytes) {
+                mRejections.incrementAndGet();
+                return;
+            }
+
+            Entry previous = mEntries.remove(key);
+            if (previous != null) {
+                mBytes -= previous.getWeight();
+            }
+
+            //make room, but only at the expense of entries which are requested less often than the candidate:
+            //the victims needed are decided first, so a rejected candidate evicts nothing
+            long excess = mBytes + size - mMaxBytes;
+            if (excess > 0) {
+                int candidateFrequency = mSketch.frequency(key.hashCode());
+                int victims = 0;
+                long freed = 0;
+                for (Map.Entry<Key, Entry> victim : mEntries.entrySet()) {
+                    if (freed >= excess) {
+                        break;
+                    }
+                    if (previous == null && mSketch.frequency(victim.getKey().hashCode()) > candidateFrequency) {
+                        mRejections.incrementAndGet();
+                        return;
+                    }
+                    freed += victim.getValue().getWeight();
+                    victims++;
+                }
+
+                Iterator<Map.Entry<Key, Entry>> iterator = mEntries.entrySet().iterator();
+                for (int i = 0; i < victims; i++) {
+                    Map.Entry<Key, Entry> victim = iterator.next();
+                    iterator.remove();
+                    mBytes -= victim.getValue().getWeight();
+                    mEvictions.incrementAndGet();
+                }
+            }
+
+            mEntries.put(key, entry);
+            mBytes += size;
+        }
+
+        synchronized void invalidateLayer(String layerName) {
+            Iterator<Map.Entry<Key, Entry>> iterator = mEntries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Key, Entry> entry = iterator.next();
+                if (entry.getKey().mLayerNames.contains(layerName)) {
+                    iterator.remove();
+                    mBytes -= entry.getValue().getWeight();
+                    mInvalidations.incrementAndGet();
+                }
+            }
+        }
+
+        synchronized void clear() {
+            mInvalidations.addAndGet(mEntries.size());
+            mEntries.clear();
+            mBytes = 0;
+        }
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters used to estimate how often a key has been requested.  Counters are halved
+     * periodically so the estimate favours recent traffic.
+     */
+    private static class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int WIDTH = 1024;     //counters per row (power of two)
+        private static final int MAX_COUNT = 15;
+        private static final int SAMPLE_SIZE = WIDTH * 10;
+        private static final int[] SEEDS = {0x97cb3127, 0xb492b66f, 0x9ae16a3b, 0xcbf29ce4};
+
+        private final byte[][] mCounters = new byte[DEPTH][WIDTH];
+        private int mAdditions = 0;
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < DEPTH; i++) {
+                int index = indexOf(hash, i);
+                if (mCounters[i][index] < MAX_COUNT) {
+                    mCounters[i][index]++;
+                    added = true;
+                }
+            }
+
+            if (added && ++mAdditions >= SAMPLE_SIZE) {
+                reset();
+            }
+        }
+
+        int frequency(int hash) {
+            int frequency = MAX_COUNT;
+            for (int i = 0; i < DEPTH; i++) {
+                frequency = Math.min(frequency, mCounters[i][indexOf(hash, i)]);
+            }
+            return frequency;
+        }
+
+        private void reset() {
+            for (byte[] row : mCounters) {
+                for (int j = 0; j < row.length; j++) {
+                    row[j] = (byte) (row[j] >>> 1);
+                }
+            }
+            mAdditions /= 2;
+        }
+
+        private static int indexOf(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+            h ^= (h >>> 15);
+            return h & (WIDTH - 1);
+        }
+    }
+
+    /**
+     * Normalized GetMap request
+     */
+    public static final class Key {
+        private final List<String> mLayerNames;
+        private final long mX;
+        private final long mY;
+        private final long mZ;
+        private final double[] mExtent;     //exact extent of requests which aren't a single tile, else null
+        private final int mWidth;
+        private final int mHeight;
+        private final String mFormat;
+        private final int mHash;
+
+        Key(List<String> layerNames, long x, long y, long z, double[] extent, int width, int height, String format) {
+            mLayerNames = Collections.unmodifiableList(new ArrayList<>(layerNames));
+            mX = x;
+            mY = y;
+            mZ = z;
+            mExtent = extent;
+            mWidth = width;
+            mHeight = height;
+            mFormat = format;
+            mHash = Arrays.hashCode(new Object[]{mLayerNames, mX, mY, mZ, Arrays.hashCode(mExtent), mWidth, mHeight, mFormat});
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mHash == other.mHash &&
+                    mX == other.mX &&
+                    mY == other.mY &&
+                    mZ == other.mZ &&
+                    Arrays.equals(mExtent, other.mExtent) &&
+                    mWidth == other.mWidth &&
+                    mHeight == other.mHeight &&
+                    mFormat.equals(other.mFormat) &&
+                    mLayerNames.equals(other.mLayerNames);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+    }
+
+    /**
+     * Cached encoded response
+     */
+    public static final class Entry {
+        private final byte[] mData;
+        private final String mMimeType;
+
+        Entry(byte[] data, String mimeType) {
+            mData = data;
+            mMimeType = mimeType;
+        }
+
+        public byte[] getData() {
+            return mData;
+        }
+
+        public String getMimeType() {
+            return mMimeType;
+        }
+
+        int getWeight() {
+            return mData.length;
+        }
+    }
+
+    /**
+     * Snapshot of cache counters
+     */
+    public static final class Stats {
+        private final long mHits;
+        private final long mMisses;
+        private final long mEvictions;
+        private final long mRejections;
+        private final long mInvalidations;
+        private final int mEntryCount;
+        private final long mBytes;
+
+        Stats(long hits, long misses, long evictions, long rejections, long invalidations, int entryCount, long bytes) {
+            mHits = hits;
+            mMisses = misses;
+            mEvictions = evictions;
+            mRejections = rejections;
+            mInvalidations = invalidations;
+            mEntryCount = entryCount;
+            mBytes = bytes;
+        }
+
+        public long getHits() {
+            return mHits;
+        }
+
+        public long getMisses() {
+            return mMisses;
+        }
+
+        public long getEvictions() {
+            return mEvictions;
+        }
+
+        public long getRejections() {
+            return mRejections;
+        }
+
+        public long getInvalidations() {
+            return mInvalidations;
+        }
+
+        public int getEntryCount() {
+            return mEntryCount;
+        }
+
+        public long getBytes() {
+            return mBytes;
+        }
+
+        public double getHitRate() {
+            long requests = mHits + mMisses;
+            return requests == 0 ? 0d : ((double) mHits) / requests;
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + mHits + ", misses=" + mMisses + ", evictions=" + mEvictions +
+                    ", rejections=" + mRejections + ", invalidations=" + mInvalidations +
+                    ", entries=" + mEntryCount + ", bytes=" + mBytes;
+        }
+    }
+}
@@ -7,6 +7,8 @@ import tileprovider.wms.WmsFactory;
 import tileprovider.wms.WmsRequest;
 import tileprovider.wms.WmsResponse;
 
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -14,8 +16,19 @@ import java.util.concurrent.atomic.AtomicLong;
 public class SimpleController {
 
     @RequestMapping(value = {"/tileprovider/{applicationName}", "/tileprovider/ows", "/tileprovider/wms"})
-    public WmsResponse simpleResponse(@RequestParam(value = "layers", defaultValue = "NOMS-BlueMarbleA") String content) {
+    public void simpleResponse(@RequestParam(value = "layers", defaultValue = "NOMS-BlueMarbleA") String content,
+                               HttpServletResponse servletResponse) throws IOException {
         WmsRequest wmsRequest = WmsFactory.generateWmsRequest(null, new HashMap<>()); //TODO - fill in with real params
-        return wmsRequest.getResponse();
+        WmsResponse wmsResponse = wmsRequest != null ? wmsRequest.getResponse() : null;
+
+        if (wmsResponse == null) {
+            servletResponse.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        //write the body straight to the client, without copying it
+        servletResponse.setContentType(wmsResponse.getMimeType());
+        servletResponse.setContentLengthLong(wmsResponse.getContentLength());
+        wmsResponse.writeTo(servletResponse.getOutputStream());
     }
 }
@@ -1,13 +1,15 @@
 package tileprovider;
 
 import android.content.Context;
-import java.awt.image.VolatileImage;
-import android.graphics.Canvas;
-import android.graphics.Matrix;
 import android.support.annotation.NonNull;
 import mil.nga.geopackage.tiles.user.TileDao;
 import mil.nga.geopackage.tiles.user.TileRow;
 
+import java.awt.Graphics2D;
+import java.awt.Shape;
+import java.awt.image.BufferedImage;
+import java.util.BitSet;
+
 /**
  * Created by joshua.johnson on 4/26/2019.
  * This specific tile layer refers to the base layer that should always be drawn, no matter what
@@ -18,62 +20,63 @@ class TileBaseLayer extends TileLayer {
         super(context, layerInfo);
     }
 
+    /**
+     * Returns the requested tile or, when missing, the nearest ancestor tile scaled up to the requested tile's extent.
+     * The ancestor is found by the layer's TileResolver in (at most) one query instead of one query per zoom level,
+     * and decoded ancestors are shared through the DecodedTileCache.
+     */
     @Override
-    protected VolatileImage getBestTile(TileDao tileDao, int x, int y, int z) {
-        //x_i, y_i, and z_i change when iterating through the zoom levels
-        int x_i = x;
-        int y_i = y;
-        int z_i = z;
-
-        //initialize row with the requested zoom level
-        TileRow row = tileDao.queryForTile(x_i, y_i, z_i);
-
-        //if a row wasn't found keep searched to lower zoom levels until zoom level 0
-        while (row == null && z_i > 0) {
-            x_i = x_i/2;
-            y_i = y_i/2;
-            z_i = z_i -1;
-
-            row = tileDao.queryForTile(x_i, y_i, z_i);
-
+    protected BufferedImage getBestTile(TileDao tileDao, int x, int y, int z, int width, int height) {
+        TileResolver.ResolvedTile tile = getTileResolver().resolve(tileDao, x, y, z, false);
+        if (tile == null) {
+            return null;
         }
 
+        if (tile.z == z) {
+            byte[] tileData = tile.data;
+            if (tileData == null) {
+                TileRow row = tileDao.queryForTile(x, y, z);
+                tileData = row != null ? row.getTileData() : null;
+            }
+            return toSize(decode(tileData), width, height);
+        }
 
-        /**
-         * Saved for potential future capability
-         */
-        //if below the best zoom, just get the best zoom
-//        if (row == null && z > tileDao.getMaxZoom()){
-//            z_i = (int)tileDao.getMaxZoom();
-//            x_i = (int)(x/Math.pow(2,Math.abs(z - z_i)));
-//            y_i = (int)(y/Math.pow(2,Math.abs(z - z_i)));
-//
-//            row = tileDao.queryForTile(x_i, y_i, z_i);
-//        }
-
-
-
-        Bitmap tileBitmap = null;
-        //if a tile was found
-        if (row != null) {
-            tileBitmap = row.getTileDataBitmap();
-
-            if (z_i != z) {
-                //a matrix transformation must be applied to the tile if zoom level doesn't match the requested
-                Matrix matrix = new Matrix();
-                float nTiles = (float) Math.pow(2, z - z_i);    //number of divisions in this tile
-                //TODO: This is assuming 256x256 height width -- we shouldn't assume these values
-                matrix.setTranslate(-256 / nTiles * (x % nTiles), -256 / nTiles * (y % nTiles));
-                matrix.postScale(nTiles, nTiles);   //zoom in on specified area
-
-                Bitmap bitmap = Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888);
-                Canvas canvas = new Canvas(bitmap);
-                canvas.drawBitmap(tileBitmap, matrix, null);    //apply transformation
-                tileBitmap = bitmap;
+        BufferedImage ancestor = getAncestorImage(tileDao, tile.x, tile.y, tile.z, tile.data);
+        return ancestor != null ? TileScaler.scale(ancestor, tile.x, tile.y, tile.z, x, y, z, width, height) : null;
+    }
 
+    /**
+     * Fills covering tiles missing at the mosaic zoom level from their nearest ancestor, clipped to the tile's cell
+     */
+    @Override
+    protected BitSet drawMissingTiles(TileDao tileDao, TileMosaic mosaic, BitSet drawn, Graphics2D graphics) {
+        BitSet filled = new BitSet();
+        Shape clip = graphics.getClip();
+        int z = mosaic.getZoom();
+
+        for (long row = mosaic.getMinRow(); row <= mosaic.getMaxRow(); row++) {
+            for (long column = mosaic.getMinColumn(); column <= mosaic.getMaxColumn(); column++) {
+                int index = mosaic.indexOf(column, row);
+                if (drawn.get(index)) {
+                    continue;
+                }
+
+                TileResolver.ResolvedTile tile = getTileResolver().resolve(tileDao, (int) column, (int) row, z, false);
+                if (tile == null || tile.z == z) {
+                    continue;   //nothing to fill with (an exact tile here would have been drawn already)
+                }
+
+                BufferedImage ancestor = getAncestorImage(tileDao, tile.x, tile.y, tile.z, tile.data);
+                if (ancestor != null) {
+                    graphics.setClip(clip);
+                    graphics.clip(mosaic.getCell(column, row));
+                    mosaic.drawTile(graphics, ancestor, tile.x, tile.y, tile.z);
+                    filled.set(index);
+                }
             }
         }
+        graphics.setClip(clip);
 
-        return tileBitmap;
+        return filled;
     }
 }
@@ -2,20 +2,24 @@ package tileprovider;
 
 import android.content.Context;
 
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
-import java.awt.image.VolatileImage;
-import android.graphics.Canvas;
-import android.graphics.Matrix;
-import android.support.annotation.NonNull;
 import android.util.Log;
 import mil.nga.geopackage.BoundingBox;
-import mil.nga.geopackage.GeoPackage;
+import mil.nga.geopackage.GeoPackageException;
+import mil.nga.geopackage.tiles.matrix.TileMatrix;
 import mil.nga.geopackage.tiles.user.TileDao;
 import mil.nga.geopackage.tiles.user.TileRow;
 import mil.nga.sf.geojson.Feature;
 
-import javax.validation.constraints.NotNull;
+import javax.imageio.ImageIO;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.BitSet;
 import java.util.Collection;
 
 /**
@@ -25,10 +29,9 @@ import java.util.Collection;
 
 class TileLayer extends Layer {
 
-    /**
-     * Doa
-     */
-    private TileDaoHolder tileDaoHolder;
+    private final TileResolver mTileResolver;
+    private volatile LayerFormat mStoredFormat = null;  //format of the stored tiles, detected on first use
+    private volatile boolean mStoredFormatDetected = false;
 
     /**
      * Constructor
@@ -36,15 +39,19 @@ class TileLayer extends Layer {
      */
     TileLayer(LayerInfo layerInfo) {
         super(layerInfo);
+        mTileResolver = new TileResolver(getTableName());
+    }
 
-
-
-        tileDaoHolder = new TileDaoHolder();
+    /**
+     * @return resolver finding the best available tile (or ancestor) of this layer
+     */
+    protected TileResolver getTileResolver() {
+        return mTileResolver;
     }
 
     /**
      * Draw the layer
-     * @param bbox - BoundingBox to Draw -- rounds to nearest Tile
+     * @param bbox - BoundingBox to Draw -- a single tile, or any extent which is then mosaicked from covering tiles
      * @param width - Width of Tile (pixels)
      * @param height - Height of Tile (pixels)
      * @return A rendered layer representing feature data for bounding box or null if not found
@@ -70,12 +77,90 @@ class TileLayer extends Layer {
 //            volatileImage = row.getTileDataBitmap();
 //        }
 
-        bufferedImage = getBestTile(getTileDao(), (int)xyz.x, (int)xyz.y, (int)xyz.z);
+        //lease a pooled read connection so concurrent requests do not share one SQLite connection
+        try (GeoPackagePool.GeoPackageLease lease = GeoPackageProvider.getInstance().acquire(getDatabaseName())) {
+            TileDao tileDao = lease.getTileDao(getTableName());
+            if (LayerUtility.isTileAligned(bbox)) {
+                bufferedImage = getBestTile(tileDao, (int)xyz.x, (int)xyz.y, (int)xyz.z, width, height);
+            } else {
+                bufferedImage = drawMosaic(tileDao, bbox, width, height);
+            }
+        } catch (GeoPackageException ex) {
+            ex.printStackTrace();
+        }
 
 
         return bufferedImage;
     }
 
+    /**
+     * Returns the stored tile bytes when the bounding box snaps to a tile that exists at the requested zoom and
+     * the stored tile size and format match the request.  The format of the table's tiles is detected once (from one
+     * stored tile), so requests in another format don't read any tile.
+     * @param bbox - BoundingBox to Draw -- rounds to nearest Tile
+     * @param width - Width of Tile (pixels)
+     * @param height - Height of Tile (pixels)
+     * @param mimeType - requested output mime type
+     * @param layersBelow - true if other layers are drawn below this one
+     * @return encoded tile or null if the tile must be drawn (missing, overzoomed, resized or in another format)
+     */
+    @Override
+    public byte[] getEncodedTile(BoundingBox bbox, int width, int height, String mimeType, boolean layersBelow) {
+        LayerUtility.XYZ xyz = LayerUtility.bboxToXyz(bbox);
+
+        byte[] tileData = null;
+        if (!LayerUtility.isTileAligned(bbox)) {
+            return null;
+        }
+        if (mStoredFormatDetected && !isPassthroughFormat(mStoredFormat, mimeType, layersBelow)) {
+            return null;
+        }
+
+        try (GeoPackagePool.GeoPackageLease lease = GeoPackageProvider.getInstance().acquire(getDatabaseName())) {
+            if (!mStoredFormatDetected) {
+                detectStoredFormat(lease);
+                if (mStoredFormatDetected && !isPassthroughFormat(mStoredFormat, mimeType, layersBelow)) {
+                    return null;
+                }
+            }
+
+            TileDao tileDao = lease.getTileDao(getTableName());
+
+            TileMatrix tileMatrix = tileDao.getTileMatrix(xyz.z);
+            if (tileMatrix != null && tileMatrix.getTileWidth() == width && tileMatrix.getTileHeight() == height) {
+                TileRow row = tileDao.queryForTile(xyz.x, xyz.y, xyz.z);
+                if (row != null) {
+                    tileData = row.getTileData();
+                }
+            }
+        } catch (GeoPackageException ex) {
+            ex.printStackTrace();
+        }
+
+        return tileData;
+    }
+
+    private static boolean isPassthroughFormat(LayerFormat storedFormat, String mimeType, boolean layersBelow) {
+        return storedFormat != null && storedFormat.getMimeType().equals(mimeType) &&
+                (!layersBelow || storedFormat.isOpaque());
+    }
+
+    /**
+     * Identifies the format of the stored tiles from any one of them (left undetected while the table is empty)
+     */
+    private void detectStoredFormat(GeoPackagePool.GeoPackageLease lease) {
+        try {
+            Object tileData = lease.getGeoPackage().getConnection().querySingleResult(
+                    "SELECT tile_data FROM \"" + getTableName() + "\" LIMIT 1", null);
+            if (tileData instanceof byte[]) {
+                mStoredFormat = LayerFormat.fromEncoded((byte[]) tileData);
+                mStoredFormatDetected = true;
+            }
+        } catch (RuntimeException ex) {
+            Log.d(getClass().getSimpleName(), "Could not detect the tile format of " + getTableName());
+        }
+    }
+
     /**
      * Returns GeoJSON data representing features held in this layer at point i, j
      * @param bbox bounding box (in Latitude -90 to 90 and Longitude -180 to 180 snapped to WGS-84 tile Projection
@@ -93,113 +178,194 @@ class TileLayer extends Layer {
 
     /**
      * This method attempts to grab the best tile available, even if the zoom level is less than
-     * the requested zoom level.  If the zoom level is less, a transformation is applied to the image
-     * to match the given tile space
+     * the requested zoom level.  If the zoom level is less, the covering part of the tile at the
+     * maximum zoom level is scaled up to match the given tile space
      * @param tileDao - the tile database to operate on
      * @param x - column
      * @param y - row
      * @param z - zoom
-     * @return a bitmap or null if no tile could be drawn
+     * @param width - pixel width of the result
+     * @param height - pixel height of the result
+     * @return an image or null if no tile could be drawn
      */
+    protected BufferedImage getBestTile(TileDao tileDao, int x, int y, int z, int width, int height) {
+        TileRow row = tileDao.queryForTile(x, y, z);
+        if (row != null) {
+            return toSize(decode(row.getTileData()), width, height);
+        }
 
-
-    protected BufferedImage getBestTile(TileDao tileDao, int x, int y, int z) {
-
-        //x_i, y_i, and z_i change when iterating through the zoom levels
-        int x_i = x;
-        int y_i = y;
-        int z_i = z;
-
-        //initialize row with the requested zoom level
-        TileRow row = tileDao.queryForTile(x_i, y_i, z_i);
-
-        //if a row wasn't found keep searched to lower zoom levels until zoom level 0
-//        while (row == null && z_i > 0) {
-//            x_i = x_i/2;
-//            y_i = y_i/2;
-//            z_i = z_i -1;
-//
-//            row = tileDao.queryForTile(x_i, y_i, z_i);
-//        }
         //if below the best zoom, just get the best zoom
+        int z_i = (int) tileDao.getMaxZoom();
+        if (z <= z_i) {
+            return null;
+        }
 
-        if (row == null && z > tileDao.getMaxZoom()){
-            z_i = (int)tileDao.getMaxZoom();
-            int z_d = Math.abs(z - z_i);
-
-            x_i = (int)(x/ Math.pow(2,z_d));
-            y_i = (int)(y/ Math.pow(2,z_d));
+        int x_i = x >> (z - z_i);
+        int y_i = y >> (z - z_i);
+        BufferedImage ancestor = getAncestorImage(tileDao, x_i, y_i, z_i, null);
+        return ancestor != null ? TileScaler.scale(ancestor, x_i, y_i, z_i, x, y, z, width, height) : null;
+    }
 
-            row = tileDao.queryForTile(x_i, y_i, z_i);
+    /**
+     * Draws an arbitrary extent by resampling every covering tile (at the zoom level best matching the requested
+     * resolution) into place on the canvas.  The covering tiles are streamed from a single range query.
+     * @param tileDao - the tile database to operate on
+     * @param bbox - requested extent (EPSG:4326)
+     * @param width - pixel width of the result
+     * @param height - pixel height of the result
+     * @return an image or null if no tile covers the extent
+     */
+    protected BufferedImage drawMosaic(TileDao tileDao, BoundingBox bbox, int width, int height) {
+        int maxZoom = (int) tileDao.getMaxZoom();
+        TileMatrix tileMatrix = tileDao.getTileMatrix(maxZoom);
+        int tileWidth = tileMatrix != null ? (int) tileMatrix.getTileWidth() : 256;
+
+        TileMosaic mosaic = TileMosaic.create(bbox, width, height, tileWidth, maxZoom);
+        if (mosaic == null) {
+            return null;
         }
 
+        BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = bufferedImage.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+
+        BitSet drawn = new BitSet(mosaic.getTileCount());
+        queryTiles(tileDao, mosaic.getZoom(), mosaic.getMinColumn(), mosaic.getMaxColumn(), mosaic.getMinRow(),
+                mosaic.getMaxRow(), (column, row, zoom, tileData) -> {
+                    BufferedImage tile = decode(tileData);
+                    if (tile != null) {
+                        mosaic.drawTile(graphics, tile, column, row, zoom);
+                        drawn.set(mosaic.indexOf(column, row));
+                    }
+                    return true;
+                });
+
+        if (drawn.cardinality() < mosaic.getTileCount()) {
+            drawn.or(drawMissingTiles(tileDao, mosaic, drawn, graphics));
+        }
+        graphics.dispose();
 
+        return drawn.isEmpty() ? null : bufferedImage;
+    }
 
-        BufferedImage tileBufferedImage = null;
-        //if a tile was found
-        if (row != null) {
-            try {
-                tileBufferedImage = row.getTileDataImage();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    /**
+     * Streams the stored tiles within a rectangle of the tile grid to a consumer, using a pooled read connection
+     * @return number of tiles delivered
+     */
+    @Override
+    public int queryTiles(int zoom, long minColumn, long maxColumn, long minRow, long maxRow, TileConsumer tileConsumer) {
+        try (GeoPackagePool.GeoPackageLease lease = GeoPackageProvider.getInstance().acquire(getDatabaseName())) {
+            return queryTiles(lease.getTileDao(getTableName()), zoom, minColumn, maxColumn, minRow, maxRow, tileConsumer);
+        } catch (GeoPackageException ex) {
+            ex.printStackTrace();
+            return 0;
+        }
+    }
 
-            if (z_i != z) {
-                //a matrix transformation must be applied to the tile if zoom level doesn't match the requested
-                Matrix matrix = new Matrix();
-                float nTiles = (float) Math.pow(2, z - z_i);    //number of divisions in this tile
-                matrix.setTranslate(-256 / nTiles * (x % nTiles), -256 / nTiles * (y % nTiles));
-                matrix.postScale(nTiles, nTiles);   //zoom in on specified area
-
-                Bitmap bitmap = Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888);
-                BufferedImage resized = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB)
-                Canvas canvas = new Canvas(bitmap);
-                canvas.drawBitmap(tileBufferedImage, matrix, null);    //apply transformation
-                tileBufferedImage = bitmap;
+    /**
+     * Streams the stored tiles within a rectangle of the tile grid to a consumer with a single range query over the
+     * tile table's (zoom_level, tile_column, tile_row) index
+     * @param tileDao - the tile database to operate on
+     * @return number of tiles delivered
+     */
+    protected int queryTiles(TileDao tileDao, int zoom, long minColumn, long maxColumn, long minRow, long maxRow,
+                             TileConsumer tileConsumer) {
+        int count = 0;
+        try (PreparedStatement statement = tileDao.getConnection().prepareStatement("SELECT tile_column, tile_row, " +
+                "tile_data FROM \"" + getTableName() + "\" WHERE zoom_level = ? AND tile_column BETWEEN ? AND ? " +
+                "AND tile_row BETWEEN ? AND ?")) {
+            statement.setInt(1, zoom);
+            statement.setLong(2, minColumn);
+            statement.setLong(3, maxColumn);
+            statement.setLong(4, minRow);
+            statement.setLong(5, maxRow);
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    count++;
+                    if (!tileConsumer.accept(resultSet.getLong(1), resultSet.getLong(2), zoom, resultSet.getBytes(3))) {
+                        break;
+                    }
+                }
             }
+        } catch (SQLException ex) {
+            ex.printStackTrace();
         }
 
-        return tileBufferedImage;
+        return count;
     }
 
-
     /**
-     * Indexes layer
-     * @param overwrite true to overwrite any preexisting index associated to this layer.
-     * @return - TileLayer cannot be indexed.
+     * Called by drawMosaic() for covering tiles which don't exist at the mosaic zoom level.  Tile layers leave them
+     * empty; subclasses may fill them (e.g. from ancestor tiles).
+     * @param tileDao - the tile database to operate on
+     * @param mosaic - layout of the covering tiles
+     * @param drawn - covering tiles already drawn (by mosaic index)
+     * @param graphics - canvas graphics
+     * @return covering tiles drawn by this call (by mosaic index)
      */
-    @Override
-    public void index(boolean overwrite, LayerIndexProgressListener layerIndexProgressListener) {
-        //do nothing -- cannot be indexed
+    protected BitSet drawMissingTiles(TileDao tileDao, TileMosaic mosaic, BitSet drawn, Graphics2D graphics) {
+        return new BitSet();
     }
 
     /**
-     * @return an open Dao
+     * Returns a decoded ancestor tile used for overzoom, from the DecodedTileCache when possible.  The returned image
+     * is shared and must not be modified.
+     * @param tileDao - the tile database to operate on
+     * @param tileData - the encoded tile when already read, or null to read it only on a cache miss
+     * @return decoded tile or null if the tile doesn't exist
      */
-    private TileDao getTileDao() {
-        return tileDaoHolder.getTileDao();
+    protected BufferedImage getAncestorImage(TileDao tileDao, int x, int y, int z, byte[] tileData) {
+        DecodedTileCache cache = DecodedTileCache.getInstance();
+        BufferedImage image = cache.get(getLayerName(), x, y, z);
+        if (image == null) {
+            if (tileData == null) {
+                TileRow row = tileDao.queryForTile(x, y, z);
+                tileData = row != null ? row.getTileData() : null;
+            }
+
+            image = decode(tileData);
+            cache.put(getLayerName(), x, y, z, image);
+        }
+
+        return image;
     }
 
     /**
-     * Class provides a Database Access Object (DAO) based upon an open GeoPackage.  The GeoPackage is checked
-     * for opened state before providing the DAO.
+     * @return decoded tile or null if not decodable
      */
-    private class TileDaoHolder {
-        private GeoPackageProvider geoPackageProvider;
-        private TileDao tileDao;
-
-        TileDaoHolder(Context context) {
-            geoPackageProvider = GeoPackageProvider.getInstance(context);
+    protected static BufferedImage decode(byte[] tileData) {
+        if (tileData == null) {
+            return null;
         }
 
-        public TileDao getTileDao() {
-            if (tileDao == null ||
-                    !tileDao.getDatabaseConnection().getDb().isOpen()) {
-                GeoPackage geoPackage = geoPackageProvider.getGeoPackage(getDatabaseName());
-                tileDao = geoPackage.getTileDao(getTableName());
-            }
+        try {
+            return ImageIO.read(new ByteArrayInputStream(tileData));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
 
-            return tileDao;
+    /**
+     * @return the image itself when it already has the requested size, otherwise a scaled copy
+     */
+    protected static BufferedImage toSize(BufferedImage image, int width, int height) {
+        if (image == null || (image.getWidth() == width && image.getHeight() == height)) {
+            return image;
         }
+
+        return TileScaler.scale(image, 0, 0, 0, 0, 0, 0, width, height);
+    }
+
+
+    /**
+     * Indexes layer
+     * @param overwrite true to overwrite any preexisting index associated to this layer.
+     * @return - TileLayer cannot be indexed.
+     */
+    @Override
+    public void index(boolean overwrite, LayerIndexProgressListener layerIndexProgressListener) {
+        //do nothing -- cannot be indexed
     }
 }
@@ -0,0 +1,166 @@
+package tileprovider;
+
+import mil.nga.geopackage.BoundingBox;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+
+/**
+ * Layout of the tiles covering an arbitrary bounding box at the zoom level best matching the requested resolution
+ * (EPSG:4326 tile grid).  Used to draw GetMap requests which don't line up with a single tile -- any WIDTH/HEIGHT and
+ * any BBOX -- by resampling each covering tile into its place on the requested canvas.
+ */
+
+final class TileMosaic {
+
+    /**
+     * Upper bound on covering tiles.  Coarser zoom levels are used for requests that would need more.
+     */
+    static final int MAX_TILES = 256;
+
+    private static final double EPSILON = 1e-9;
+
+    private final int mZoom;
+    private final long mMinColumn;
+    private final long mMaxColumn;
+    private final long mMinRow;
+    private final long mMaxRow;
+
+    private final double mMinLongitude;
+    private final double mMaxLatitude;
+    private final double mPixelsPerLongitude;
+    private final double mPixelsPerLatitude;
+
+    private TileMosaic(int zoom, long minColumn, long maxColumn, long minRow, long maxRow, BoundingBox bbox,
+                       int width, int height) {
+        mZoom = zoom;
+        mMinColumn = minColumn;
+        mMaxColumn = maxColumn;
+        mMinRow = minRow;
+        mMaxRow = maxRow;
+        mMinLongitude = bbox.getMinLongitude();
+        mMaxLatitude = bbox.getMaxLatitude();
+        mPixelsPerLongitude = width / (bbox.getMaxLongitude() - bbox.getMinLongitude());
+        mPixelsPerLatitude = height / (bbox.getMaxLatitude() - bbox.getMinLatitude());
+    }
+
+    /**
+     * Lays out the covering tiles of a request
+     * @param bbox - requested extent (EPSG:4326)
+     * @param width - requested pixel width
+     * @param height - requested pixel height
+     * @param tileWidth - pixel width of the layer's tiles
+     * @param maxZoom - deepest zoom level of the layer (deeper requests are resampled from it)
+     * @return the mosaic or null if the bounding box is empty or outside the world
+     */
+    static TileMosaic create(BoundingBox bbox, int width, int height, int tileWidth, int maxZoom) {
+        double longitudeSpan = bbox.getMaxLongitude() - bbox.getMinLongitude();
+        double latitudeSpan = bbox.getMaxLatitude() - bbox.getMinLatitude();
+        if (width <= 0 || height <= 0 || tileWidth <= 0 || !(longitudeSpan > 0) || !(latitudeSpan > 0)) {
+            return null;
+        }
+
+        //coarsest zoom whose tile pixels are at least as fine as the requested pixels
+        double tilesPerWorldHalf = 180d * width / (tileWidth * longitudeSpan);
+        int zoom = (int) Math.ceil(Math.log(tilesPerWorldHalf) / Math.log(2d) - EPSILON);
+        zoom = Math.max(0, Math.min(zoom, maxZoom));
+
+        while (true) {
+            double tileSpan = 180d / (1L << zoom);
+            long minColumn = Math.max(0L, (long) Math.floor((bbox.getMinLongitude() + 180d) / tileSpan + EPSILON));
+            long maxColumn = Math.min((2L << zoom) - 1, (long) Math.ceil((bbox.getMaxLongitude() + 180d) / tileSpan - EPSILON) - 1);
+            long minRow = Math.max(0L, (long) Math.floor((90d - bbox.getMaxLatitude()) / tileSpan + EPSILON));
+            long maxRow = Math.min((1L << zoom) - 1, (long) Math.ceil((90d - bbox.getMinLatitude()) / tileSpan - EPSILON) - 1);
+            if (minColumn > maxColumn || minRow > maxRow) {
+                return null;
+            }
+
+            long tileCount = (maxColumn - minColumn + 1) * (maxRow - minRow + 1);
+            if (tileCount <= MAX_TILES || zoom == 0) {
+                return new TileMosaic(zoom, minColumn, maxColumn, minRow, maxRow, bbox, width, height);
+            }
+            zoom--;
+        }
+    }
+
+    int getZoom() {
+        return mZoom;
+    }
+
+    long getMinColumn() {
+        return mMinColumn;
+    }
+
+    long getMaxColumn() {
+        return mMaxColumn;
+    }
+
+    long getMinRow() {
+        return mMinRow;
+    }
+
+    long getMaxRow() {
+        return mMaxRow;
+    }
+
+    int getTileCount() {
+        return (int) ((mMaxColumn - mMinColumn + 1) * (mMaxRow - mMinRow + 1));
+    }
+
+    /**
+     * @return index (0 .. getTileCount()-1) of a covering tile, row-major
+     */
+    int indexOf(long column, long row) {
+        return (int) ((row - mMinRow) * (mMaxColumn - mMinColumn + 1) + (column - mMinColumn));
+    }
+
+    /**
+     * @return true if the tile (at the mosaic zoom level) is a covering tile
+     */
+    boolean contains(long column, long row) {
+        return column >= mMinColumn && column <= mMaxColumn && row >= mMinRow && row <= mMaxRow;
+    }
+
+    /**
+     * @return canvas pixels covered by a covering tile (rounded outwards)
+     */
+    Rectangle getCell(long column, long row) {
+        double tileSpan = 180d / (1L << mZoom);
+        double left = toPixelX(column * tileSpan - 180d);
+        double top = toPixelY(90d - row * tileSpan);
+        double right = toPixelX((column + 1) * tileSpan - 180d);
+        double bottom = toPixelY(90d - (row + 1) * tileSpan);
+
+        int x = (int) Math.floor(left);
+        int y = (int) Math.floor(top);
+        return new Rectangle(x, y, (int) Math.ceil(right) - x, (int) Math.ceil(bottom) - y);
+    }
+
+    /**
+     * Resamples a tile into its place on the canvas
+     * @param graphics - canvas graphics (clip and rendering hints are honoured)
+     * @param image - decoded tile (not modified)
+     * @param column - column of the tile at zoom
+     * @param row - row of the tile at zoom
+     * @param zoom - zoom level of the tile (the mosaic zoom, or lower for ancestor tiles)
+     */
+    void drawTile(Graphics2D graphics, BufferedImage image, long column, long row, int zoom) {
+        double tileSpan = 180d / (1L << zoom);
+
+        AffineTransform transform = new AffineTransform();
+        transform.translate(toPixelX(column * tileSpan - 180d), toPixelY(90d - row * tileSpan));
+        transform.scale(tileSpan * mPixelsPerLongitude / image.getWidth(), tileSpan * mPixelsPerLatitude / image.getHeight());
+
+        graphics.drawImage(image, transform, null);
+    }
+
+    private double toPixelX(double longitude) {
+        return (longitude - mMinLongitude) * mPixelsPerLongitude;
+    }
+
+    private double toPixelY(double latitude) {
+        return (mMaxLatitude - latitude) * mPixelsPerLatitude;
+    }
+}
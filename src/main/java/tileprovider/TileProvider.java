@@ -19,6 +19,15 @@ public interface TileProvider {
      */
     int registerLayers(File fileOrDirectory);
 
+    /**
+     * Registers layers within a geopackage or directory of GeoPackages. Recursively searches
+     * any directory given for all contained GeoPackage files.  GeoPackages are inspected concurrently.
+     * @param fileOrDirectory - geopackage file or directory of GeoPackages
+     * @param registerProgressListener - Optional callback reporting each inspected GeoPackage
+     * @return number of layers imported - This may be different than number of GeoPackage files found
+     */
+    int registerLayers(File fileOrDirectory, RegisterProgressListener registerProgressListener);
+
     /**
      * Closes all associated GeoPackages.  GeoPackages are reopened when WMS calls are made to this interface
      * or draw methods are called on the underlying Layer objects.  This should be called whenever the application
@@ -94,14 +103,12 @@ public interface TileProvider {
     Set<String> nonIndexedFeatureLayerSet();
 
     /**
-     * Unregisters all layers currently registered to this Tile Provider Instance
-     * TODO: Layer should be closed as well when unregistered
+     * Unregisters (and closes) all layers currently registered to this Tile Provider Instance
      */
     void unregisterAll();
 
     /**
-     * Unregisters specific layer currently registered to this Tile Provider Instance
-     * TODO: LAyer should be closed when unregistered
+     * Unregisters (and closes) specific layer currently registered to this Tile Provider Instance
      * @param layerName
      */
     void unregister(String layerName);
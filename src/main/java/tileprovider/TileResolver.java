@@ -0,0 +1,244 @@
+package tileprovider;
+
+import mil.nga.geopackage.tiles.matrix.TileMatrix;
+import mil.nga.geopackage.tiles.user.TileDao;
+import org.geotools.util.logging.Logging;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds the best available tile for a tile address: the tile itself, or else its nearest ancestor at a lower zoom
+ * level.  Used for overzoom, where deep zoom requests are served by scaling up a lower resolution tile.
+ *
+ * The resolver keeps a coverage bitmap (one bit per tile of the tile matrix) for each zoom level of the layer, loaded
+ * lazily from the tile table's index on first use.  With coverage loaded, the best ancestor is found in memory and
+ * only that one tile is read; addresses without any tile are answered without touching SQLite.  Zoom levels whose
+ * tile matrix is too large for a bitmap are resolved with a single query over all candidate ancestors instead of one
+ * query per zoom level.
+ */
+
+class TileResolver {
+
+    static final Logger LOGGER = Logging.getLogger(TileResolver.class);
+
+    /**
+     * Largest tile matrix (in tiles) for which a coverage bitmap is kept -- 4M tiles = 512KB
+     */
+    private static final long MAX_COVERAGE_TILES = 1L << 22;
+
+    /**
+     * Marker for zoom levels whose coverage is not kept in memory
+     */
+    private static final BitSet UNTRACKED = new BitSet(0);
+
+    private final String mTableName;
+
+    /**
+     * Coverage per zoom level.  null = not loaded yet
+     */
+    private volatile AtomicReferenceArray<BitSet> mCoverage = null;
+
+    /**
+     * Tile matrix width per zoom level, 0 when the zoom level doesn't exist
+     */
+    private volatile long[] mMatrixWidths = null;
+
+    TileResolver(String tableName) {
+        mTableName = tableName;
+    }
+
+    /**
+     * Tile found by the resolver
+     */
+    static final class ResolvedTile {
+        final int x;
+        final int y;
+        final int z;
+        final byte[] data;
+
+        ResolvedTile(int x, int y, int z, byte[] data) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Finds the tile at (x, y, z) or its nearest available ancestor
+     * @param tileDao - DAO of this resolver's tile table
+     * @return the best tile or null if neither the tile nor any ancestor exists
+     */
+    ResolvedTile resolve(TileDao tileDao, int x, int y, int z) {
+        return resolve(tileDao, x, y, z, true);
+    }
+
+    /**
+     * Finds the tile at (x, y, z) or its nearest available ancestor
+     * @param tileDao - DAO of this resolver's tile table
+     * @param readData - false to skip reading the tile when coverage alone identifies it; the returned tile then
+     *                 holds no data (e.g. because the caller has it decoded already)
+     * @return the best tile or null if neither the tile nor any ancestor exists
+     */
+    ResolvedTile resolve(TileDao tileDao, int x, int y, int z, boolean readData) {
+        long[] matrixWidths = getMatrixWidths(tileDao);
+        if (z < 0 || matrixWidths.length == 0) {
+            return null;
+        }
+
+        //candidates from the requested zoom level down, stopping at the first level known to hold the ancestor
+        List<int[]> candidates = new ArrayList<>();
+        for (int z_i = Math.min(z, matrixWidths.length - 1); z_i >= 0; z_i--) {
+            if (matrixWidths[z_i] == 0) {
+                continue;   //no tile matrix at this zoom level
+            }
+
+            int x_i = x >> (z - z_i);
+            int y_i = y >> (z - z_i);
+
+            BitSet coverage = getCoverage(tileDao, z_i);
+            if (coverage == UNTRACKED) {
+                candidates.add(new int[]{x_i, y_i, z_i});
+            } else if (coverage.get(bitIndex(matrixWidths[z_i], x_i, y_i))) {
+                candidates.add(new int[]{x_i, y_i, z_i});
+                break;
+            }
+        }
+
+        if (candidates.isEmpty()) {
+            return null;
+        }
+
+        if (!readData && candidates.size() == 1 && getCoverage(tileDao, candidates.get(0)[2]) != UNTRACKED) {
+            int[] candidate = candidates.get(0);
+            return new ResolvedTile(candidate[0], candidate[1], candidate[2], null);
+        }
+
+        return queryBest(tileDao, candidates);
+    }
+
+    /**
+     * Reads the highest-zoom tile among the candidates with a single query
+     */
+    private ResolvedTile queryBest(TileDao tileDao, List<int[]> candidates) {
+        StringBuilder sql = new StringBuilder("SELECT tile_column, tile_row, zoom_level, tile_data FROM \"")
+                .append(mTableName).append("\" WHERE ");
+        for (int i = 0; i < candidates.size(); i++) {
+            if (i > 0) {
+                sql.append(" OR ");
+            }
+            sql.append("(zoom_level = ? AND tile_column = ? AND tile_row = ?)");
+        }
+        sql.append(" ORDER BY zoom_level DESC LIMIT 1");
+
+        Connection connection = tileDao.getConnection();
+        try (PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+            int parameter = 1;
+            for (int[] candidate : candidates) {
+                statement.setInt(parameter++, candidate[2]);
+                statement.setInt(parameter++, candidate[0]);
+                statement.setInt(parameter++, candidate[1]);
+            }
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    return new ResolvedTile(resultSet.getInt(1), resultSet.getInt(2), resultSet.getInt(3), resultSet.getBytes(4));
+                }
+            }
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, getClass().getSimpleName() + ": Failed to query tiles from " + mTableName, ex);
+        }
+
+        return null;
+    }
+
+    /**
+     * @return tile matrix widths by zoom level (loaded once from the tile matrix metadata)
+     */
+    private long[] getMatrixWidths(TileDao tileDao) {
+        long[] matrixWidths = mMatrixWidths;
+        if (matrixWidths == null) {
+            int maxZoom = (int) tileDao.getMaxZoom();
+            matrixWidths = new long[maxZoom + 1];
+            long[] matrixHeights = new long[maxZoom + 1];
+            for (TileMatrix tileMatrix : tileDao.getTileMatrices()) {
+                int zoom = (int) tileMatrix.getZoomLevel();
+                if (zoom >= 0 && zoom <= maxZoom) {
+                    matrixWidths[zoom] = tileMatrix.getMatrixWidth();
+                    matrixHeights[zoom] = tileMatrix.getMatrixHeight();
+                }
+            }
+
+            AtomicReferenceArray<BitSet> coverage = new AtomicReferenceArray<>(maxZoom + 1);
+            for (int zoom = 0; zoom <= maxZoom; zoom++) {
+                if (matrixWidths[zoom] * matrixHeights[zoom] > MAX_COVERAGE_TILES) {
+                    coverage.set(zoom, UNTRACKED);
+                }
+            }
+
+            mCoverage = coverage;
+            mMatrixWidths = matrixWidths;
+        }
+
+        return matrixWidths;
+    }
+
+    /**
+     * @return the coverage of the zoom level, loading it on first use, or UNTRACKED
+     */
+    private BitSet getCoverage(TileDao tileDao, int zoom) {
+        AtomicReferenceArray<BitSet> coverage = mCoverage;
+        BitSet bitSet = coverage.get(zoom);
+        if (bitSet == null) {
+            bitSet = loadCoverage(tileDao, zoom);
+            if (!coverage.compareAndSet(zoom, null, bitSet)) {
+                bitSet = coverage.get(zoom);
+            }
+        }
+
+        return bitSet;
+    }
+
+    private BitSet loadCoverage(TileDao tileDao, int zoom) {
+        long matrixWidth = mMatrixWidths[zoom];
+        BitSet bitSet = new BitSet();
+
+        //reads the (zoom_level, tile_column, tile_row) unique index only, not the tile blobs
+        Connection connection = tileDao.getConnection();
+        try (PreparedStatement statement = connection.prepareStatement("SELECT tile_column, tile_row FROM \"" +
+                mTableName + "\" WHERE zoom_level = ?")) {
+            statement.setInt(1, zoom);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    int column = resultSet.getInt(1);
+                    int row = resultSet.getInt(2);
+                    if (column >= 0 && row >= 0 && column < matrixWidth) {
+                        bitSet.set(bitIndex(matrixWidth, column, row));
+                    }
+                }
+            }
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, getClass().getSimpleName() + ": Failed to load coverage of " + mTableName, ex);
+            return UNTRACKED;
+        }
+
+        return bitSet;
+    }
+
+    private static int bitIndex(long matrixWidth, int column, int row) {
+        if (column < 0 || row < 0 || column >= matrixWidth) {
+            return Integer.MAX_VALUE;   //outside the matrix -- never set
+        }
+        long index = row * matrixWidth + column;
+        return index > Integer.MAX_VALUE - 1 ? Integer.MAX_VALUE : (int) index;
+    }
+}
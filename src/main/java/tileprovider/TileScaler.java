@@ -0,0 +1,72 @@
+package tileprovider;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+
+/**
+ * Cuts the part of an ancestor tile covering a descendant tile and scales it to the requested size in one draw.
+ * The source image is only read, so it may be a shared (cached) image.
+ */
+
+final class TileScaler {
+
+    /**
+     * Private Constructor.  This class is purely utility and not instantiated.
+     */
+    private TileScaler() {
+        //Intentionally Blank
+    }
+
+    /**
+     * Draws the part of the ancestor tile (sourceX, sourceY, sourceZ) covering tile (x, y, z) into a new image
+     * @param source - decoded ancestor tile (not modified)
+     * @param x - column of the requested tile
+     * @param y - row of the requested tile
+     * @param z - zoom of the requested tile (greater or equal to sourceZ)
+     * @param width - pixel width of the result
+     * @param height - pixel height of the result
+     * @return new ARGB image of width x height
+     */
+    static BufferedImage scale(BufferedImage source, int sourceX, int sourceY, int sourceZ,
+                               int x, int y, int z, int width, int height) {
+        BufferedImage target = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = target.createGraphics();
+        try {
+            draw(graphics, source, sourceX, sourceY, sourceZ, x, y, z, 0, 0, width, height);
+        } finally {
+            graphics.dispose();
+        }
+
+        return target;
+    }
+
+    /**
+     * Draws the part of the ancestor tile (sourceX, sourceY, sourceZ) covering tile (x, y, z) into the given
+     * rectangle of the target.  The transform keeps sub-pixel source offsets, so deep overzoom stays aligned.
+     */
+    static void draw(Graphics2D target, BufferedImage source, int sourceX, int sourceY, int sourceZ,
+                     int x, int y, int z, int targetX, int targetY, int targetWidth, int targetHeight) {
+        int zoomDifference = z - sourceZ;
+        double divisions = (double) (1L << zoomDifference);     //child tiles per ancestor tile edge
+        long offsetX = x - ((long) sourceX << zoomDifference);
+        long offsetY = y - ((long) sourceY << zoomDifference);
+
+        double scaleX = targetWidth * divisions / source.getWidth();
+        double scaleY = targetHeight * divisions / source.getHeight();
+
+        AffineTransform transform = new AffineTransform();
+        transform.translate(targetX - offsetX * targetWidth, targetY - offsetY * targetHeight);
+        transform.scale(scaleX, scaleY);
+
+        Shape clip = target.getClip();
+        target.clipRect(targetX, targetY, targetWidth, targetHeight);
+        target.setComposite(AlphaComposite.SrcOver);
+        target.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        target.drawImage(source, transform, null);
+        target.setClip(clip);
+    }
+}
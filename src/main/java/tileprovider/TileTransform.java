@@ -0,0 +1,37 @@
+package tileprovider;
+
+import mil.nga.geopackage.BoundingBox;
+
+/**
+ * Affine transform from EPSG:4326 coordinates to the pixels of one tile, precomputed once per tile:
+ * x = (lon - minLon) * scaleX, y = (maxLat - lat) * scaleY.
+ */
+
+final class TileTransform {
+
+    private final double mMinLongitude;
+    private final double mMaxLatitude;
+    private final double mScaleX;
+    private final double mScaleY;
+
+    /**
+     * Constructor
+     * @param boundingBox - extent of the tile (EPSG:4326)
+     * @param width - tile width (pixels)
+     * @param height - tile height (pixels)
+     */
+    TileTransform(BoundingBox boundingBox, int width, int height) {
+        mMinLongitude = boundingBox.getMinLongitude();
+        mMaxLatitude = boundingBox.getMaxLatitude();
+        mScaleX = width / (boundingBox.getMaxLongitude() - boundingBox.getMinLongitude());
+        mScaleY = height / (boundingBox.getMaxLatitude() - boundingBox.getMinLatitude());
+    }
+
+    double x(double longitude) {
+        return (longitude - mMinLongitude) * mScaleX;
+    }
+
+    double y(double latitude) {
+        return (mMaxLatitude - latitude) * mScaleY;
+    }
+}
@@ -0,0 +1,29 @@
+package tileprovider;
+
+import mil.nga.geopackage.GeoPackageException;
+
+/**
+ * Thrown when a request would have to encode more features than a layer allows for a single tile, e.g. a vector tile
+ * of a low zoom level over a large feature table.  The request should be retried at a deeper zoom level.
+ */
+
+public class TooManyFeaturesException extends GeoPackageException {
+
+    private final int mFeatureCount;
+    private final int mMaxFeatures;
+
+    public TooManyFeaturesException(String layerName, int featureCount, int maxFeatures) {
+        super("Layer " + layerName + " has " + featureCount + " features in the tile, at most " + maxFeatures +
+                " are encoded");
+        mFeatureCount = featureCount;
+        mMaxFeatures = maxFeatures;
+    }
+
+    public int getFeatureCount() {
+        return mFeatureCount;
+    }
+
+    public int getMaxFeatures() {
+        return mMaxFeatures;
+    }
+}
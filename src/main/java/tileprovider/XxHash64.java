@@ -0,0 +1,99 @@
+package tileprovider;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * XXH64 non-cryptographic hash (https://cyan4973.github.io/xxHash/).  Used to fingerprint file contents quickly.
+ */
+final class XxHash64 {
+
+    private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME64_3 = 0x165667B19E3779F9L;
+    private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+
+    /**
+     * Private Constructor.  This class is purely utility and not instantiated.
+     */
+    private XxHash64() {
+        //Intentionally Blank
+    }
+
+    /**
+     * Hashes the remaining bytes of the buffer.  The buffer's position is not changed.
+     * @param buffer - bytes to hash
+     * @param seed - seed (e.g. the hash of a previous chunk, to chain several chunks)
+     * @return 64 bit hash
+     */
+    static long hash(ByteBuffer buffer, long seed) {
+        ByteBuffer in = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        int length = in.remaining();
+        int offset = 0;
+        long hash;
+
+        if (length >= 32) {
+            long v1 = seed + PRIME64_1 + PRIME64_2;
+            long v2 = seed + PRIME64_2;
+            long v3 = seed;
+            long v4 = seed - PRIME64_1;
+
+            int limit = length - 32;
+            do {
+                v1 = round(v1, in.getLong(offset));
+                v2 = round(v2, in.getLong(offset + 8));
+                v3 = round(v3, in.getLong(offset + 16));
+                v4 = round(v4, in.getLong(offset + 24));
+                offset += 32;
+            } while (offset <= limit);
+
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = mergeRound(hash, v1);
+            hash = mergeRound(hash, v2);
+            hash = mergeRound(hash, v3);
+            hash = mergeRound(hash, v4);
+        } else {
+            hash = seed + PRIME64_5;
+        }
+
+        hash += length;
+
+        while (offset + 8 <= length) {
+            hash ^= round(0, in.getLong(offset));
+            hash = Long.rotateLeft(hash, 27) * PRIME64_1 + PRIME64_4;
+            offset += 8;
+        }
+
+        if (offset + 4 <= length) {
+            hash ^= (in.getInt(offset) & 0xFFFFFFFFL) * PRIME64_1;
+            hash = Long.rotateLeft(hash, 23) * PRIME64_2 + PRIME64_3;
+            offset += 4;
+        }
+
+        while (offset < length) {
+            hash ^= (in.get(offset) & 0xFFL) * PRIME64_5;
+            hash = Long.rotateLeft(hash, 11) * PRIME64_1;
+            offset++;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= PRIME64_2;
+        hash ^= hash >>> 29;
+        hash *= PRIME64_3;
+        hash ^= hash >>> 32;
+
+        return hash;
+    }
+
+    private static long round(long accumulator, long input) {
+        accumulator += input * PRIME64_2;
+        accumulator = Long.rotateLeft(accumulator, 31);
+        return accumulator * PRIME64_1;
+    }
+
+    private static long mergeRound(long accumulator, long value) {
+        accumulator ^= round(0, value);
+        return accumulator * PRIME64_1 + PRIME64_4;
+    }
+}
@@ -0,0 +1,214 @@
+package tileprovider.wms;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Composites layer images onto the map canvas by blending their int[] rasters directly (source over), instead of
+ * going through Graphics2D.drawImage and Java2D's generic loops and color model conversions.
+ *
+ * The canvas is TYPE_INT_RGB (opaque formats) or TYPE_INT_ARGB_PRE, whose premultiplied pixels blend without a
+ * division.  Each layer is scanned first: fully transparent layers (e.g. feature tiles whose features only touch the
+ * tile's margin) are skipped, fully opaque ones replace the canvas with a copy, and only mixed layers are blended,
+ * skipping their transparent pixels.  covers() lets callers skip (and stop drawing) the layers below an opaque one.
+ * Layer images of another type or size are drawn through Graphics2D.
+ *
+ * One compositor per canvas; not thread-safe.
+ */
+
+final class Compositor {
+
+    private static final int EMPTY = 0;
+    private static final int OPAQUE = 1;
+    private static final int MIXED = 2;
+
+    private final BufferedImage mCanvas;
+    private final int[] mPixels;
+    private final boolean mOpaqueCanvas;
+    private boolean mEmpty = true;      //nothing composited yet (canvas still cleared)
+
+    /**
+     * @param canvas - cleared TYPE_INT_RGB or TYPE_INT_ARGB_PRE image to composite into
+     */
+    Compositor(BufferedImage canvas) {
+        if (canvas.getType() != BufferedImage.TYPE_INT_RGB && canvas.getType() != BufferedImage.TYPE_INT_ARGB_PRE) {
+            throw new IllegalArgumentException("Unsupported canvas type: " + canvas.getType());
+        }
+        mCanvas = canvas;
+        mPixels = ((DataBufferInt) canvas.getRaster().getDataBuffer()).getData();
+        mOpaqueCanvas = canvas.getType() == BufferedImage.TYPE_INT_RGB;
+    }
+
+    /**
+     * Composites a layer over everything composited so far
+     * @param layer - layer image, may be null
+     */
+    void composite(BufferedImage layer) {
+        if (layer == null) {
+            return;
+        }
+
+        int[] source = getPixels(layer);
+        if (source == null) {
+            Graphics2D graphics = mCanvas.createGraphics();
+            graphics.drawImage(layer, null, 0, 0);
+            graphics.dispose();
+            mEmpty = false;
+            return;
+        }
+
+        int type = layer.getType();
+        if (type == BufferedImage.TYPE_INT_RGB) {
+            copyOpaque(source);
+            return;
+        }
+
+        switch (scan(source)) {
+            case EMPTY:
+                return;
+            case OPAQUE:
+                copyOpaque(source);
+                return;
+            default:
+                if (type == BufferedImage.TYPE_INT_ARGB_PRE) {
+                    blendPremultiplied(source);
+                } else {
+                    blend(source);
+                }
+                mEmpty = false;
+        }
+    }
+
+    /**
+     * @param layer - layer image, may be null
+     * @return true if the layer is fully opaque and the size of the canvas, hiding everything composited below it
+     */
+    boolean covers(BufferedImage layer) {
+        if (layer == null) {
+            return false;
+        }
+        int[] source = getPixels(layer);
+        return source != null && (layer.getType() == BufferedImage.TYPE_INT_RGB || scan(source) == OPAQUE);
+    }
+
+    /**
+     * @return the int[] raster of a layer image the size of the canvas, or null if it must be drawn through Java2D
+     */
+    private int[] getPixels(BufferedImage layer) {
+        int type = layer.getType();
+        if ((type != BufferedImage.TYPE_INT_ARGB && type != BufferedImage.TYPE_INT_ARGB_PRE &&
+                type != BufferedImage.TYPE_INT_RGB) || layer.getWidth() != mCanvas.getWidth() ||
+                layer.getHeight() != mCanvas.getHeight() || layer.getRaster().getParent() != null ||
+                !(layer.getRaster().getDataBuffer() instanceof DataBufferInt)) {
+            return null;
+        }
+
+        int[] pixels = ((DataBufferInt) layer.getRaster().getDataBuffer()).getData();
+        return pixels.length == mPixels.length ? pixels : null;
+    }
+
+    /**
+     * @return EMPTY if every pixel is transparent, OPAQUE if every pixel is opaque, else MIXED
+     */
+    private static int scan(int[] source) {
+        boolean transparent = false;
+        boolean opaque = false;
+        for (int pixel : source) {
+            int alpha = pixel >>> 24;
+            if (alpha == 0) {
+                transparent = true;
+            } else if (alpha == 0xFF) {
+                opaque = true;
+            } else {
+                return MIXED;
+            }
+            if (transparent && opaque) {
+                return MIXED;
+            }
+        }
+        return opaque ? OPAQUE : EMPTY;
+    }
+
+    /**
+     * An opaque layer hides everything below it: the canvas becomes a copy of the layer
+     */
+    private void copyOpaque(int[] source) {
+        if (mOpaqueCanvas) {
+            System.arraycopy(source, 0, mPixels, 0, mPixels.length);
+        } else {
+            for (int i = 0; i < mPixels.length; i++) {
+                mPixels[i] = source[i] | 0xFF000000;
+            }
+        }
+        mEmpty = false;
+    }
+
+    /**
+     * Source over with a non-premultiplied source
+     */
+    private void blend(int[] source) {
+        int[] pixels = mPixels;
+        boolean copy = mEmpty && !mOpaqueCanvas;    //over a cleared canvas the result is the (premultiplied) source
+        for (int i = 0; i < pixels.length; i++) {
+            int pixel = source[i];
+            int alpha = pixel >>> 24;
+            if (alpha == 0) {
+                continue;
+            }
+            if (alpha == 0xFF) {
+                pixels[i] = pixel;
+                continue;
+            }
+
+            int r = div255(((pixel >> 16) & 0xFF) * alpha);
+            int g = div255(((pixel >> 8) & 0xFF) * alpha);
+            int b = div255((pixel & 0xFF) * alpha);
+            if (copy) {
+                pixels[i] = alpha << 24 | r << 16 | g << 8 | b;
+            } else {
+                pixels[i] = over(alpha, r, g, b, pixels[i]);
+            }
+        }
+    }
+
+    /**
+     * Source over with a premultiplied source
+     */
+    private void blendPremultiplied(int[] source) {
+        int[] pixels = mPixels;
+        for (int i = 0; i < pixels.length; i++) {
+            int pixel = source[i];
+            int alpha = pixel >>> 24;
+            if (alpha == 0) {
+                continue;
+            }
+            if (alpha == 0xFF || (mEmpty && !mOpaqueCanvas)) {
+                pixels[i] = pixel;
+                continue;
+            }
+
+            pixels[i] = over(alpha, (pixel >> 16) & 0xFF, (pixel >> 8) & 0xFF, pixel & 0xFF, pixels[i]);
+        }
+    }
+
+    /**
+     * @return premultiplied source (alpha, r, g, b) over a canvas pixel
+     */
+    private int over(int alpha, int r, int g, int b, int destination) {
+        int inverse = 0xFF - alpha;
+        int outAlpha = mOpaqueCanvas ? 0xFF : alpha + div255((destination >>> 24) * inverse);
+        int outR = r + div255(((destination >> 16) & 0xFF) * inverse);
+        int outG = g + div255(((destination >> 8) & 0xFF) * inverse);
+        int outB = b + div255((destination & 0xFF) * inverse);
+        return outAlpha << 24 | outR << 16 | outG << 8 | outB;
+    }
+
+    /**
+     * @return value / 255, rounded, for 0 <= value <= 255 * 255
+     */
+    private static int div255(int value) {
+        value += 128;
+        return (value + (value >> 8)) >> 8;
+    }
+}
@@ -0,0 +1,89 @@
+package tileprovider.wms;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Reusable buffer for encoding images.  Encoders write into a buffer that has already grown to a typical response
+ * size, instead of growing (and copying) a fresh ByteArrayOutputStream for every request.  The encoded bytes are then
+ * copied exactly once into a right-sized array that is shared by the response and the tile cache.
+ *
+ * Buffers come from a small pool shared by all request threads: at most MAX_IDLE_BUFFERS idle buffers holding at
+ * most MAX_IDLE_BYTES together are kept, so a large request thread pool doesn't pin a buffer per thread.
+ */
+
+final class EncodeBuffer extends ByteArrayOutputStream {
+
+    private static final int INITIAL_SIZE = 64 * 1024;
+
+    /**
+     * Buffers which grew beyond this are not kept for reuse (rare, very large responses)
+     */
+    private static final int MAX_RETAINED_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Idle buffers kept, and the bytes they may hold together
+     */
+    private static final int MAX_IDLE_BUFFERS = Runtime.getRuntime().availableProcessors() * 2;
+    private static final long MAX_IDLE_BYTES = 16L * 1024 * 1024;
+
+    private static final ArrayDeque<EncodeBuffer> IDLE = new ArrayDeque<>();
+    private static long sIdleBytes;     //guarded by IDLE
+
+    private boolean mReleased = false;
+
+    private EncodeBuffer() {
+        super(INITIAL_SIZE);
+    }
+
+    /**
+     * @return an empty buffer, to be handed back with toExactArray() or release()
+     */
+    static EncodeBuffer get() {
+        EncodeBuffer buffer;
+        synchronized (IDLE) {
+            buffer = IDLE.pollFirst();
+            if (buffer != null) {
+                sIdleBytes -= buffer.buf.length;
+            }
+        }
+        if (buffer == null) {
+            return new EncodeBuffer();
+        }
+
+        buffer.reset();
+        buffer.mReleased = false;
+        return buffer;
+    }
+
+    /**
+     * @return the encoded bytes in an array of exactly the encoded size.  Releases the buffer.
+     */
+    byte[] toExactArray() {
+        byte[] result = Arrays.copyOf(buf, count);
+        release();
+        return result;
+    }
+
+    /**
+     * Returns the buffer to the pool (unless it is oversized or the pool is full).  The buffer must not be used
+     * afterwards.
+     */
+    void release() {
+        if (mReleased) {
+            return;
+        }
+        mReleased = true;
+
+        if (buf.length > MAX_RETAINED_SIZE) {
+            return;
+        }
+        synchronized (IDLE) {
+            if (IDLE.size() < MAX_IDLE_BUFFERS && sIdleBytes + buf.length <= MAX_IDLE_BYTES) {
+                IDLE.addFirst(this);
+                sIdleBytes += buf.length;
+            }
+        }
+    }
+}
@@ -3,14 +3,25 @@ package tileprovider.wms;
 import mil.nga.geopackage.BoundingBox;
 import org.geotools.util.logging.Logging;
 import tileprovider.Layer;
+import tileprovider.LayerFormat;
+import tileprovider.RenderedTileCache;
 import tileprovider.TileProvider;
 
-import javax.imageio.ImageIO;
-import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -21,6 +32,33 @@ import java.util.logging.Logger;
 class GetMapRequest implements WmsRequest {
 
     static final Logger LOGGER = Logging.getLogger(GetMapRequest.class);
+
+    /**
+     * Output format when the request has no FORMAT parameter
+     */
+    private static final LayerFormat DEFAULT_FORMAT = LayerFormat.JPEG;
+
+    /**
+     * Maximum time all layers of a single request may take to draw.  Layers not finished by then are left out.
+     */
+    private static final long RENDER_TIMEOUT_MILLIS = 10000L;
+
+    /**
+     * Bounded executor drawing layers for all GetMap requests
+     */
+    private static final ExecutorService RENDER_EXECUTOR;
+    static {
+        int threads = Runtime.getRuntime().availableProcessors();
+        AtomicInteger threadCount = new AtomicInteger();
+        RENDER_EXECUTOR = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(threads * 16),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "GetMapRequest-render-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
     private TileProvider mtileProvider;
     private Map<String, String> mParameters;
 
@@ -43,6 +81,16 @@ class GetMapRequest implements WmsRequest {
             LOGGER.log(Level.WARNING, getClass().getSimpleName() + ": No layers parameter found");
         }
 
+        //strip namespace prefixes (workspace:layer)
+        List<String> normalizedLayerNames = new ArrayList<>(layerNames.length);
+        for (String layerName : layerNames) {
+            int index = layerName.indexOf(':');
+            if (index != -1 && index != layerName.length()) {
+                layerName = layerName.substring(index + 1);
+            }
+            normalizedLayerNames.add(layerName);
+        }
+
         //extract width and height
         int width;
         int height;
@@ -83,52 +131,192 @@ class GetMapRequest implements WmsRequest {
             return new WmsResponse("Bounding box malformed".getBytes(), "text/plain");
         }
 
-//        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        Graphics2D graphics = bufferedImage.createGraphics();
-//        Canvas canvas = new Canvas(bitmap);
-
-        //default layer
-        {
-            Layer layer = mtileProvider.getDefaultLayer();
-//            Bitmap layerBitmap = layer.draw(bbox, width, height);
-            BufferedImage layerBufferedImage = layer.draw(bbox, width, height);
-//            if (layerBitmap != null) {
-//                canvas.drawBitmap(layerBitmap, 0, 0, null);
-//            }
-            if (layerBufferedImage != null) {
-                graphics.drawImage(layerBufferedImage, null, 0, 0);
+        //extract output format, (PNG) deflate level and (JPEG) quality
+        LayerFormat format = DEFAULT_FORMAT;
+        if (mParameters.containsKey("FORMAT")) {
+            format = LayerFormat.fromMimeType(mParameters.get("FORMAT"));
+            if (format == null || format == LayerFormat.MVT) {
+                LOGGER.log(Level.WARNING, getClass().getSimpleName() + ": Unsupported format " + mParameters.get("FORMAT"));
+                return new WmsResponse("Format not supported".getBytes(), "text/plain");
             }
         }
-
-        for (String layerName : layerNames) {
-
-            int index = layerName.indexOf(':');
-            if (index != -1 && index != layerName.length()) {
-                layerName = layerName.substring(index + 1);
+        int compressionLevel = PngEncoder.DEFAULT_COMPRESSION_LEVEL;
+        if (mParameters.containsKey("COMPRESSION")) {
+            try {
+                compressionLevel = Math.max(0, Math.min(9, Integer.parseInt(mParameters.get("COMPRESSION"))));
+            } catch (NumberFormatException ex) {
+                LOGGER.log(Level.WARNING, getClass().getSimpleName() + ": Could not parse compression level");
+            }
+        }
+        int quality = JpegEncoder.DEFAULT_QUALITY;
+        if (mParameters.containsKey("QUALITY")) {
+            try {
+                quality = Math.max(1, Math.min(100, Integer.parseInt(mParameters.get("QUALITY"))));
+            } catch (NumberFormatException ex) {
+                LOGGER.log(Level.WARNING, getClass().getSimpleName() + ": Could not parse quality");
             }
+        }
+        String mimeType = format.getMimeType();
+
+        //serve identical requests from the rendered tile cache
+        String cacheFormat = format.name() + ":" + (format == LayerFormat.JPEG ? quality : compressionLevel);
+        RenderedTileCache tileCache = RenderedTileCache.getInstance();
+        RenderedTileCache.Key cacheKey = RenderedTileCache.createKey(normalizedLayerNames, bbox, width, height, cacheFormat);
+        RenderedTileCache.Entry cached = tileCache.get(cacheKey);
+        if (cached != null) {
+            return new WmsResponse(cached.getData(), cached.getMimeType());
+        }
 
+        //collect the layers to draw -- the default layer is always drawn first
+        List<Layer> layers = new ArrayList<>(normalizedLayerNames.size());
+        for (String layerName : normalizedLayerNames) {
             Layer layer = mtileProvider.getLayer(layerName);
             if (layer != null) {
-//                Bitmap layerBitmap = layer.draw(bbox, width, height);
-                BufferedImage layerBufferedImage = layer.draw(bbox, width, height);
-//                if (layerBitmap != null) {
-//                    canvas.drawBitmap(layerBitmap, 0, 0, null);
-//                }
-                if (layerBufferedImage != null) {
-                    graphics.drawImage(layerBufferedImage, null, 0, 0);
+                layers.add(layer);
+            }
+        }
+        layers.sort(Comparator.comparingInt(Layer::getZIndex));     //stable -- ties keep request order
+        Layer defaultLayer = mtileProvider.getDefaultLayer();
+        if (defaultLayer != null) {
+            layers.add(0, defaultLayer);
+        }
+
+        //serve the stored tile as is when nothing has to be composited or resampled
+        WmsResponse passthroughResponse = getPassthroughResponse(layers, bbox, width, height, mimeType);
+        if (passthroughResponse != null) {
+            return passthroughResponse;
+        }
+
+        //draw every layer concurrently
+        List<Future<BufferedImage>> draws = new ArrayList<>(layers.size());
+        for (Layer layer : layers) {
+            draws.add(submitDraw(layer, bbox, width, height));
+        }
+
+//        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        //transparent formats keep the alpha of the layers, so overlays composite on the client
+        //the canvas never leaves this request: it is pooled and handed back once encoded
+        BufferedImage bufferedImage = RasterPool.lease(width, height,
+                format.isOpaque() ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB_PRE);
+        Compositor compositor = new Compositor(bufferedImage);
+//        Canvas canvas = new Canvas(bitmap);
+
+        //collect the layers top down: a fully opaque layer hides everything below it, so the draws below are
+        //cancelled and never composited
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RENDER_TIMEOUT_MILLIS);
+        boolean complete = true;    //partial maps are served but never cached
+        BufferedImage[] layerImages = new BufferedImage[draws.size()];
+        int bottom = 0;     //lowest layer composited
+        for (int i = draws.size() - 1; i >= 0; i--) {
+            Future<BufferedImage> draw = draws.get(i);
+            try {
+                layerImages[i] = draw.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException ex) {
+                complete = false;
+                draw.cancel(true);
+                LOGGER.log(Level.WARNING, getClass().getSimpleName() + ": Layer " + layers.get(i).getLayerName() +
+                        " exceeded render deadline");
+            } catch (ExecutionException ex) {
+                complete = false;
+                LOGGER.log(Level.WARNING, getClass().getSimpleName() + ": Layer " + layers.get(i).getLayerName() +
+                        " failed to draw", ex.getCause());
+            } catch (InterruptedException ex) {
+                complete = false;
+                Thread.currentThread().interrupt();
+                for (Future<BufferedImage> pending : draws) {
+                    pending.cancel(true);
                 }
+                bottom = i + 1;
+                break;
+            }
 
+            if (compositor.covers(layerImages[i])) {
+                for (int j = 0; j < i; j++) {
+                    draws.get(j).cancel(true);
+                }
+                bottom = i;
+                break;
             }
         }
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        //composite in z-order
+        for (int i = bottom; i < layerImages.length; i++) {
+            compositor.composite(layerImages[i]);
+        }
+
+        EncodeBuffer out = EncodeBuffer.get();
 //        bitmap.compress(Bitmap.CompressFormat.JPEG, 85, out);
         try {
-            ImageIO.write(bufferedImage, "jpeg", out);
+            encode(bufferedImage, format, compressionLevel, quality, out);
         } catch (IOException e) {
+            complete = false;
             e.printStackTrace();
+        } finally {
+            RasterPool.release(bufferedImage);
+        }
+
+        //one right-sized copy, shared by the response and the cache
+        byte[] encoded = out.toExactArray();
+        if (complete) {
+            tileCache.put(cacheKey, encoded, mimeType);
         }
-        return new WmsResponse(out, "image/jpeg");
+        return new WmsResponse(encoded, mimeType);
+    }
+
+    /**
+     * Encodes the composited map in the requested format
+     * @param compressionLevel - deflate level for PNG and PNG8
+     * @param quality - JPEG quality (percent)
+     */
+    private static void encode(BufferedImage image, LayerFormat format, int compressionLevel, int quality,
+                               OutputStream out) throws IOException {
+        switch (format) {
+            case PNG:
+                PngEncoder.encode(image, false, compressionLevel, out);
+                break;
+            case PNG8:
+                PngEncoder.encode(image, true, compressionLevel, out);
+                break;
+            default:
+                JpegEncoder.get().encode(image, quality, out);
+        }
+    }
+
+    /**
+     * Returns the top-most layer's stored tile without decoding it, if the stored tile is already in the output
+     * format and covers everything below it (only layer, or an opaque format).
+     * @param layers - layers to draw, bottom to top
+     * @param mimeType - requested output mime type
+     * @return response holding the stored bytes, or null if the layers must be drawn and composited
+     */
+    private static WmsResponse getPassthroughResponse(List<Layer> layers, BoundingBox bbox, int width, int height,
+                                                      String mimeType) {
+        if (layers.isEmpty()) {
+            return null;
+        }
+
+        Layer topLayer = layers.get(layers.size() - 1);
+        boolean layersBelow = layers.size() > 1;
+        byte[] encoded = topLayer.getEncodedTile(bbox, width, height, mimeType, layersBelow);
+        LayerFormat storedFormat = LayerFormat.fromEncoded(encoded);
+        if (storedFormat == null || !storedFormat.getMimeType().equals(mimeType)) {
+            return null;
+        }
+
+        //layers below a tile with transparency would show through (tile tables may mix formats, so the tile itself
+        //is checked again)
+        if (layersBelow && !storedFormat.isOpaque()) {
+            return null;
+        }
+
+        return new WmsResponse(encoded, mimeType);
+    }
+
+    /**
+     * Draws the layer on the render executor.  When the executor is saturated the layer is drawn on the calling
+     * thread instead, which throttles new requests rather than queueing unbounded work.
+     */
+    private static Future<BufferedImage> submitDraw(Layer layer, BoundingBox bbox, int width, int height) {
+        return RENDER_EXECUTOR.submit(() -> layer.draw(bbox, width, height));
     }
 }
@@ -0,0 +1,122 @@
+package tileprovider.wms;
+
+import mil.nga.geopackage.BoundingBox;
+import org.geotools.util.logging.Logging;
+import tileprovider.Layer;
+import tileprovider.LayerFormat;
+import tileprovider.RenderedTileCache;
+import tileprovider.TileProvider;
+import tileprovider.TooManyFeaturesException;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves the features of one tile of the EPSG:4326 tile grid as a Mapbox Vector Tile, so clients render the data
+ * themselves instead of receiving a server-rasterized image.
+ *
+ * Parameters: LAYERS (comma separated), TILEMATRIX (zoom level), TILECOL and TILEROW.  Each requested layer with
+ * features in the tile becomes one layer of the vector tile (encoded tiles are concatenated, which protocol buffers
+ * merge into one tile).
+ */
+
+class GetVectorTileRequest implements WmsRequest {
+
+    static final Logger LOGGER = Logging.getLogger(GetVectorTileRequest.class);
+    private static final String MIME_TYPE = LayerFormat.MVT.getMimeType();
+
+    /**
+     * Extent used in cache keys (vector tiles have no pixel size)
+     */
+    private static final int EXTENT = 4096;
+
+    private TileProvider mtileProvider;
+    private Map<String, String> mParameters;
+
+    GetVectorTileRequest(TileProvider tileProvider, Map<String, String> parameters) {
+        mtileProvider = tileProvider;
+        mParameters = parameters;
+    }
+
+    @Override
+    public WmsResponse getResponse() {
+        String layersString = mParameters.get("LAYERS");
+        if (layersString == null) {
+            LOGGER.log(Level.WARNING, getClass().getSimpleName() + ": No layers parameter found");
+            return new WmsResponse("Parameter layers not found".getBytes(), "text/plain");
+        }
+
+        //strip namespace prefixes (workspace:layer)
+        List<String> layerNames = new ArrayList<>();
+        for (String layerName : layersString.split(",")) {
+            int index = layerName.indexOf(':');
+            if (index != -1 && index != layerName.length()) {
+                layerName = layerName.substring(index + 1);
+            }
+            layerNames.add(layerName);
+        }
+
+        int z;
+        int x;
+        int y;
+        try {
+            z = Integer.parseInt(mParameters.get("TILEMATRIX"));
+            x = Integer.parseInt(mParameters.get("TILECOL"));
+            y = Integer.parseInt(mParameters.get("TILEROW"));
+        } catch (NumberFormatException ex) {
+            LOGGER.log(Level.WARNING, getClass().getSimpleName() + ": Tile address missing or malformed");
+            return new WmsResponse("Parameters tilematrix, tilecol and tilerow required".getBytes(), "text/plain");
+        }
+        if (z < 0 || z > 30 || x < 0 || y < 0 || x >= 2L << z || y >= 1L << z) {
+            return new WmsResponse("Tile out of range".getBytes(), "text/plain");
+        }
+
+        //serve identical requests from the rendered tile cache
+        double tileSize = 180d / (1L << z);
+        BoundingBox bbox = new BoundingBox(x * tileSize - 180d, 90d - (y + 1) * tileSize,
+                (x + 1) * tileSize - 180d, 90d - y * tileSize);
+        RenderedTileCache tileCache = RenderedTileCache.getInstance();
+        RenderedTileCache.Key cacheKey = RenderedTileCache.createKey(layerNames, bbox, EXTENT, EXTENT, MIME_TYPE);
+        RenderedTileCache.Entry cached = tileCache.get(cacheKey);
+        if (cached != null) {
+            return new WmsResponse(cached.getData(), cached.getMimeType());
+        }
+
+        List<Layer> layers = new ArrayList<>(layerNames.size());
+        for (String layerName : layerNames) {
+            Layer layer = mtileProvider.getLayer(layerName);
+            if (layer != null) {
+                layers.add(layer);
+            }
+        }
+        layers.sort(Comparator.comparingInt(Layer::getZIndex));
+
+        EncodeBuffer out = EncodeBuffer.get();
+        for (Layer layer : layers) {
+            try {
+                byte[] encoded = layer.getVectorTile(x, y, z);
+                if (encoded != null) {
+                    out.write(encoded, 0, encoded.length);
+                }
+            } catch (TooManyFeaturesException ex) {
+                LOGGER.log(Level.FINE, getClass().getSimpleName() + ": " + ex.getMessage());
+                out.release();
+                return new WmsResponse(("Too many features in tile, request a deeper zoom level (" +
+                        ex.getMessage() + ")").getBytes(), "text/plain");
+            } catch (RuntimeException ex) {
+                //partial tiles are served but never cached
+                LOGGER.log(Level.WARNING, getClass().getSimpleName() + ": Layer " + layer.getLayerName() +
+                        " failed to encode", ex);
+                return new WmsResponse(out.toExactArray(), MIME_TYPE);
+            }
+        }
+
+        byte[] encoded = out.toExactArray();
+        tileCache.put(cacheKey, encoded, MIME_TYPE);
+        return new WmsResponse(encoded, MIME_TYPE);
+    }
+}
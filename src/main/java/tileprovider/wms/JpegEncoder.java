@@ -0,0 +1,70 @@
+package tileprovider.wms;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+/**
+ * Encodes rendered maps as JPEG through an ImageWriter kept per thread.  ImageIO.write looks the writer up in the
+ * service registry and sets up a new writer (and its native encoder state) for every image; here the lookup happens
+ * once per thread and the writer and its write parameters are reused, only the quality being updated per image.
+ *
+ * One encoder per thread (see get()).  A writer which failed is disposed and replaced on the next use.
+ */
+
+final class JpegEncoder {
+
+    /**
+     * Default quality (percent), the quality ImageIO.write encodes with
+     */
+    static final int DEFAULT_QUALITY = 75;
+
+    private static final ThreadLocal<JpegEncoder> ENCODERS = ThreadLocal.withInitial(JpegEncoder::new);
+
+    private final ImageWriter mWriter;
+    private final ImageWriteParam mWriteParam;
+
+    private JpegEncoder() {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!writers.hasNext()) {
+            throw new IllegalStateException("No JPEG ImageWriter available");
+        }
+        mWriter = writers.next();
+        mWriteParam = mWriter.getDefaultWriteParam();
+        mWriteParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+    }
+
+    /**
+     * @return this thread's encoder
+     */
+    static JpegEncoder get() {
+        return ENCODERS.get();
+    }
+
+    /**
+     * Writes an image as JPEG
+     * @param image - image to encode (without alpha)
+     * @param quality - quality in percent, 1 (smallest) to 100 (best)
+     * @param out - receives the encoded image
+     */
+    void encode(BufferedImage image, int quality, OutputStream out) throws IOException {
+        mWriteParam.setCompressionQuality(Math.max(1, Math.min(100, quality)) / 100f);
+
+        try (ImageOutputStream imageOut = new MemoryCacheImageOutputStream(out)) {
+            mWriter.setOutput(imageOut);
+            mWriter.write(null, new IIOImage(image, null, null), mWriteParam);
+            mWriter.setOutput(null);
+        } catch (IOException | RuntimeException ex) {
+            mWriter.dispose();
+            ENCODERS.remove();
+            throw ex;
+        }
+    }
+}
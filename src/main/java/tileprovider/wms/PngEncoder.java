@@ -0,0 +1,496 @@
+package tileprovider.wms;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes rendered maps as PNG without ImageIO.  Pixels are read straight from the int[] raster, filtered with the
+ * Sub filter (cheap, and most of the gain on map imagery) and compressed with a Deflater of the requested level, so
+ * callers trade size against speed.
+ *
+ * Truecolor images are written as RGB, or RGBA if the image has alpha.  Palette images (PNG8) with at most 256
+ * distinct colors keep them exactly; images with more are reduced to the 256 most used ARGB4444 buckets (averaged),
+ * every other bucket mapping to its nearest palette entry.
+ * Premultiplied (TYPE_INT_ARGB_PRE) canvases are un-premultiplied into a reused buffer.
+ *
+ * Encoders are pooled (see encode()): the Deflater, row and quantizer buffers are reused between images.  At most
+ * MAX_IDLE_ENCODERS idle encoders are kept across all request threads, encoders beyond that are released (their
+ * Deflater ended) after use.  The quantizer tables are only allocated once an encoder encodes a PNG8, and the pixel
+ * and row buffers of very large images are not kept.
+ */
+
+final class PngEncoder {
+
+    /**
+     * Default deflate level: most of the size reduction of level 6 at a fraction of the time
+     */
+    static final int DEFAULT_COMPRESSION_LEVEL = 4;
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_PALETTE_SIZE = 256;
+    private static final int COLOR_TABLE_BITS = 9;  //twice the palette size, open addressing
+    private static final int COLOR_TABLE_MASK = (1 << COLOR_TABLE_BITS) - 1;
+    private static final int BUCKETS = 1 << 16;     //ARGB4444
+
+    /**
+     * Pixel and row buffers of images larger than this are not kept for reuse (rare, very large requests)
+     */
+    private static final int MAX_RETAINED_PIXELS = 1024 * 1024;
+
+    private static final int COLOR_TYPE_RGB = 2;
+    private static final int COLOR_TYPE_PALETTE = 3;
+    private static final int COLOR_TYPE_RGBA = 6;
+    private static final int FILTER_SUB = 1;
+
+    /**
+     * Idle encoders kept (encoding runs on the request threads, typically a few at a time)
+     */
+    private static final int MAX_IDLE_ENCODERS = Runtime.getRuntime().availableProcessors();
+
+    private static final ArrayDeque<PngEncoder> IDLE = new ArrayDeque<>();
+
+    private final Deflater mDeflater = new Deflater(DEFAULT_COMPRESSION_LEVEL);
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mChunk = new byte[CHUNK_SIZE];
+    private final byte[] mHeader = new byte[8];
+    private byte[] mRow = new byte[0];
+    private int[] mPixels = new int[0];
+
+    //quantizer, allocated on the first PNG8
+    private int[] mBucketCounts;
+    private long[][] mBucketSums;
+    private short[] mBucketIndex;
+    private final int[] mPalette = new int[MAX_PALETTE_SIZE];
+    private final int[] mColorKeys = new int[1 << COLOR_TABLE_BITS];
+    private final short[] mColorIndex = new short[1 << COLOR_TABLE_BITS];     //palette index + 1, 0 = empty slot
+    private int mPaletteSize;
+    private boolean mExactPalette;      //palette holds every color of the image (else bucket averages)
+    private int mOpaqueMask;            //forces alpha on images without alpha channel
+
+    private PngEncoder() {
+    }
+
+    /**
+     * Writes an image as PNG through a pooled encoder
+     * @param image - image to encode
+     * @param palette - true to quantize to a palette of at most 256 colors (PNG8)
+     * @param compressionLevel - deflate level, 0 (fastest, largest) to 9 (slowest, smallest)
+     * @param out - receives the encoded image
+     */
+    static void encode(BufferedImage image, boolean palette, int compressionLevel, OutputStream out)
+            throws IOException {
+        PngEncoder encoder;
+        synchronized (IDLE) {
+            encoder = IDLE.pollFirst();
+        }
+        if (encoder == null) {
+            encoder = new PngEncoder();
+        }
+
+        boolean reusable = false;
+        try {
+            encoder.encodeImage(image, palette, compressionLevel, out);
+            reusable = true;
+        } finally {
+            encoder.release(reusable, (long) image.getWidth() * image.getHeight() > MAX_RETAINED_PIXELS);
+        }
+    }
+
+    /**
+     * Returns the encoder to the pool, or ends its Deflater if it failed or the pool is full
+     * @param reusable - false if the encoding failed (the Deflater's state is unknown)
+     * @param dropBuffers - true to let go of the pixel and row buffers (grown for a very large image)
+     */
+    private void release(boolean reusable, boolean dropBuffers) {
+        if (dropBuffers) {
+            mPixels = new int[0];
+            mRow = new byte[0];
+        }
+        if (reusable) {
+            synchronized (IDLE) {
+                if (IDLE.size() < MAX_IDLE_ENCODERS) {
+                    IDLE.addFirst(this);
+                    return;
+                }
+            }
+        }
+        mDeflater.end();
+    }
+
+    private void encodeImage(BufferedImage image, boolean palette, int compressionLevel, OutputStream out)
+            throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        boolean alpha = image.getColorModel().hasAlpha();
+
+        int[] pixels = getPixels(image);
+        int colorType;
+        int bytesPerPixel;
+        if (palette) {
+            quantize(pixels, width * height, alpha);
+            colorType = COLOR_TYPE_PALETTE;
+            bytesPerPixel = 1;
+        } else {
+            colorType = alpha ? COLOR_TYPE_RGBA : COLOR_TYPE_RGB;
+            bytesPerPixel = alpha ? 4 : 3;
+        }
+
+        out.write(SIGNATURE);
+
+        //IHDR: width, height, bit depth 8, color type, deflate, adaptive filtering, no interlace
+        writeInt(mChunk, 0, width);
+        writeInt(mChunk, 4, height);
+        mChunk[8] = 8;
+        mChunk[9] = (byte) colorType;
+        mChunk[10] = 0;
+        mChunk[11] = 0;
+        mChunk[12] = 0;
+        writeChunk(out, "IHDR", mChunk, 13);
+
+        if (palette) {
+            writePalette(out);
+        }
+
+        mDeflater.reset();
+        mDeflater.setLevel(Math.max(Deflater.NO_COMPRESSION, Math.min(Deflater.BEST_COMPRESSION, compressionLevel)));
+        int rowLength = 1 + width * bytesPerPixel;
+        if (mRow.length < rowLength) {
+            mRow = new byte[rowLength];
+        }
+
+        int chunkLength = 0;
+        for (int y = 0; y < height; y++) {
+            int offset = y * width;
+            if (palette) {
+                fillPaletteRow(pixels, offset, width);
+            } else {
+                fillTruecolorRow(pixels, offset, width, bytesPerPixel);
+            }
+
+            mDeflater.setInput(mRow, 0, rowLength);
+            while (!mDeflater.needsInput()) {
+                chunkLength += mDeflater.deflate(mChunk, chunkLength, CHUNK_SIZE - chunkLength);
+                if (chunkLength == CHUNK_SIZE) {
+                    writeChunk(out, "IDAT", mChunk, chunkLength);
+                    chunkLength = 0;
+                }
+            }
+        }
+        mDeflater.finish();
+        while (!mDeflater.finished()) {
+            chunkLength += mDeflater.deflate(mChunk, chunkLength, CHUNK_SIZE - chunkLength);
+            if (chunkLength == CHUNK_SIZE) {
+                writeChunk(out, "IDAT", mChunk, chunkLength);
+                chunkLength = 0;
+            }
+        }
+        if (chunkLength > 0) {
+            writeChunk(out, "IDAT", mChunk, chunkLength);
+        }
+
+        writeChunk(out, "IEND", mChunk, 0);
+    }
+
+    /**
+     * @return the image's ARGB pixels, row major -- the raster itself for unshared int rasters, else a copy
+     * (premultiplied rasters are un-premultiplied into the copy)
+     */
+    private int[] getPixels(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int type = image.getType();
+        if (mPixels.length < width * height) {
+            mPixels = new int[width * height];
+        }
+
+        if ((type == BufferedImage.TYPE_INT_ARGB || type == BufferedImage.TYPE_INT_RGB ||
+                type == BufferedImage.TYPE_INT_ARGB_PRE) &&
+                image.getRaster().getDataBuffer() instanceof DataBufferInt &&
+                image.getRaster().getParent() == null) {
+            int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            if (data.length == width * height) {
+                if (type != BufferedImage.TYPE_INT_ARGB_PRE) {
+                    return data;
+                }
+                unpremultiply(data, mPixels, data.length);
+                return mPixels;
+            }
+        }
+
+        return image.getRGB(0, 0, width, height, mPixels, 0, width);
+    }
+
+    private static void unpremultiply(int[] source, int[] target, int count) {
+        for (int i = 0; i < count; i++) {
+            int pixel = source[i];
+            int alpha = pixel >>> 24;
+            if (alpha == 0xFF || alpha == 0) {
+                target[i] = alpha == 0 ? 0 : pixel;
+                continue;
+            }
+
+            int half = alpha / 2;
+            int r = Math.min(0xFF, (((pixel >> 16) & 0xFF) * 0xFF + half) / alpha);
+            int g = Math.min(0xFF, (((pixel >> 8) & 0xFF) * 0xFF + half) / alpha);
+            int b = Math.min(0xFF, ((pixel & 0xFF) * 0xFF + half) / alpha);
+            target[i] = alpha << 24 | r << 16 | g << 8 | b;
+        }
+    }
+
+    private void fillTruecolorRow(int[] pixels, int offset, int width, int bytesPerPixel) {
+        byte[] row = mRow;
+        row[0] = FILTER_SUB;
+
+        //Sub filter: each byte minus the same channel of the pixel to the left
+        int previous = 0;
+        int position = 1;
+        if (bytesPerPixel == 4) {
+            for (int x = 0; x < width; x++) {
+                int pixel = pixels[offset + x];
+                row[position++] = (byte) ((pixel >>> 16) - (previous >>> 16));
+                row[position++] = (byte) ((pixel >>> 8) - (previous >>> 8));
+                row[position++] = (byte) (pixel - previous);
+                row[position++] = (byte) ((pixel >>> 24) - (previous >>> 24));
+                previous = pixel;
+            }
+        } else {
+            for (int x = 0; x < width; x++) {
+                int pixel = pixels[offset + x];
+                row[position++] = (byte) ((pixel >>> 16) - (previous >>> 16));
+                row[position++] = (byte) ((pixel >>> 8) - (previous >>> 8));
+                row[position++] = (byte) (pixel - previous);
+                previous = pixel;
+            }
+        }
+    }
+
+    private void fillPaletteRow(int[] pixels, int offset, int width) {
+        byte[] row = mRow;
+        row[0] = FILTER_SUB;
+        int previous = 0;
+        int lastPixel = 0;
+        int lastIndex = -1;
+        for (int x = 0; x < width; x++) {
+            int pixel = normalize(pixels[offset + x]);
+            int index;
+            if (pixel == lastPixel && lastIndex >= 0) {
+                index = lastIndex;      //runs of the same color are common in map imagery
+            } else if (mExactPalette) {
+                index = mColorIndex[findSlot(pixel)] - 1;
+            } else {
+                index = mBucketIndex[bucket(pixel)];
+            }
+            lastPixel = pixel;
+            lastIndex = index;
+
+            row[x + 1] = (byte) (index - previous);
+            previous = index;
+        }
+    }
+
+    /**
+     * Builds the palette for the image: its exact colors if there are at most 256, else the bucket quantization
+     */
+    private void quantize(int[] pixels, int count, boolean alpha) {
+        mOpaqueMask = alpha ? 0 : 0xFF000000;
+        mExactPalette = collectColors(pixels, count);
+        if (!mExactPalette) {
+            quantizeBuckets(pixels, count);
+        }
+    }
+
+    /**
+     * Collects the distinct colors of the image into the palette and the color to index table
+     * @return false if the image has more than MAX_PALETTE_SIZE colors
+     */
+    private boolean collectColors(int[] pixels, int count) {
+        Arrays.fill(mColorIndex, (short) 0);
+        mPaletteSize = 0;
+
+        int lastPixel = 0;
+        boolean first = true;
+        for (int i = 0; i < count; i++) {
+            int pixel = normalize(pixels[i]);
+            if (pixel == lastPixel && !first) {
+                continue;
+            }
+            lastPixel = pixel;
+            first = false;
+
+            int slot = findSlot(pixel);
+            if (mColorIndex[slot] == 0) {
+                if (mPaletteSize == MAX_PALETTE_SIZE) {
+                    return false;
+                }
+                mPalette[mPaletteSize] = pixel;
+                mColorKeys[slot] = pixel;
+                mColorIndex[slot] = (short) ++mPaletteSize;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the slot of the color in the color table, or the empty slot it belongs in
+     */
+    private int findSlot(int color) {
+        int slot = (color * 0x9E3779B9) >>> (32 - COLOR_TABLE_BITS);
+        while (mColorIndex[slot] != 0 && mColorKeys[slot] != color) {
+            slot = (slot + 1) & COLOR_TABLE_MASK;
+        }
+        return slot;
+    }
+
+    /**
+     * Builds the palette and the bucket to palette index table for images with more than MAX_PALETTE_SIZE colors
+     */
+    private void quantizeBuckets(int[] pixels, int count) {
+        if (mBucketCounts == null) {
+            mBucketCounts = new int[BUCKETS];
+            mBucketSums = new long[4][BUCKETS];
+            mBucketIndex = new short[BUCKETS];
+        }
+
+        int[] counts = mBucketCounts;
+        long[][] sums = mBucketSums;
+        Arrays.fill(counts, 0);
+        for (long[] sum : sums) {
+            Arrays.fill(sum, 0L);
+        }
+
+        //histogram of ARGB4444 buckets, accumulating the exact channels of each bucket
+        int used = 0;
+        for (int i = 0; i < count; i++) {
+            int pixel = normalize(pixels[i]);
+            int bucket = bucket(pixel);
+            if (counts[bucket]++ == 0) {
+                used++;
+            }
+            sums[0][bucket] += pixel >>> 24;
+            sums[1][bucket] += (pixel >> 16) & 0xFF;
+            sums[2][bucket] += (pixel >> 8) & 0xFF;
+            sums[3][bucket] += pixel & 0xFF;
+        }
+
+        //the most used buckets become the palette
+        int[] usedBuckets = new int[used];
+        int n = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            if (counts[bucket] != 0) {
+                usedBuckets[n++] = bucket;
+            }
+        }
+        if (used > MAX_PALETTE_SIZE) {
+            long[] ranked = new long[used];
+            for (int i = 0; i < used; i++) {
+                ranked[i] = (long) counts[usedBuckets[i]] << 16 | usedBuckets[i];
+            }
+            Arrays.sort(ranked);
+            for (int i = 0; i < used; i++) {
+                usedBuckets[i] = (int) (ranked[used - 1 - i] & 0xFFFF);
+            }
+        }
+
+        mPaletteSize = Math.min(used, MAX_PALETTE_SIZE);
+        for (int i = 0; i < mPaletteSize; i++) {
+            int bucket = usedBuckets[i];
+            long bucketCount = counts[bucket];
+            int a = (int) (sums[0][bucket] / bucketCount);
+            int r = (int) (sums[1][bucket] / bucketCount);
+            int g = (int) (sums[2][bucket] / bucketCount);
+            int b = (int) (sums[3][bucket] / bucketCount);
+            mPalette[i] = a << 24 | r << 16 | g << 8 | b;
+            mBucketIndex[bucket] = (short) i;
+        }
+
+        //remaining buckets map to the nearest palette color
+        for (int i = mPaletteSize; i < used; i++) {
+            int bucket = usedBuckets[i];
+            long bucketCount = counts[bucket];
+            int a = (int) (sums[0][bucket] / bucketCount);
+            int r = (int) (sums[1][bucket] / bucketCount);
+            int g = (int) (sums[2][bucket] / bucketCount);
+            int b = (int) (sums[3][bucket] / bucketCount);
+            int nearest = 0;
+            int nearestDistance = Integer.MAX_VALUE;
+            for (int j = 0; j < mPaletteSize; j++) {
+                int color = mPalette[j];
+                int da = (color >>> 24) - a;
+                int dr = ((color >> 16) & 0xFF) - r;
+                int dg = ((color >> 8) & 0xFF) - g;
+                int db = (color & 0xFF) - b;
+                int distance = da * da + dr * dr + dg * dg + db * db;
+                if (distance < nearestDistance) {
+                    nearestDistance = distance;
+                    nearest = j;
+                }
+            }
+            mBucketIndex[bucket] = (short) nearest;
+        }
+    }
+
+    /**
+     * @return the pixel with alpha forced on images without alpha, and fully transparent pixels folded into one color
+     */
+    private int normalize(int pixel) {
+        pixel |= mOpaqueMask;
+        return (pixel >>> 24) == 0 ? 0 : pixel;
+    }
+
+    /**
+     * Writes PLTE and, if any entry is not opaque, tRNS
+     */
+    private void writePalette(OutputStream out) throws IOException {
+        int lastTranslucent = -1;
+        for (int i = 0; i < mPaletteSize; i++) {
+            int color = mPalette[i];
+            mChunk[i * 3] = (byte) (color >> 16);
+            mChunk[i * 3 + 1] = (byte) (color >> 8);
+            mChunk[i * 3 + 2] = (byte) color;
+            if ((color >>> 24) != 0xFF) {
+                lastTranslucent = i;
+            }
+        }
+        writeChunk(out, "PLTE", mChunk, Math.max(1, mPaletteSize) * 3);
+
+        if (lastTranslucent >= 0) {
+            for (int i = 0; i <= lastTranslucent; i++) {
+                mChunk[i] = (byte) (mPalette[i] >>> 24);
+            }
+            writeChunk(out, "tRNS", mChunk, lastTranslucent + 1);
+        }
+    }
+
+    private void writeChunk(OutputStream out, String type, byte[] data, int length) throws IOException {
+        writeInt(mHeader, 0, length);
+        for (int i = 0; i < 4; i++) {
+            mHeader[4 + i] = (byte) type.charAt(i);
+        }
+        out.write(mHeader, 0, 8);
+        out.write(data, 0, length);
+
+        mCrc.reset();
+        mCrc.update(mHeader, 4, 4);
+        mCrc.update(data, 0, length);
+        writeInt(mHeader, 0, (int) mCrc.getValue());
+        out.write(mHeader, 0, 4);
+    }
+
+    private static int bucket(int pixel) {
+        return (pixel >>> 16 & 0xF000) | (pixel >>> 12 & 0x0F00) | (pixel >>> 8 & 0x00F0) | (pixel >>> 4 & 0x000F);
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+}
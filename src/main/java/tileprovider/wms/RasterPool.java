@@ -0,0 +1,120 @@
+package tileprovider.wms;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Pool of int[] backed images keyed by width, height and type, for the per-request map canvas.  A canvas is leased,
+ * composited into, encoded and released, so at a steady request rate the same few rasters are reused instead of
+ * allocating (and collecting) a new int[width * height] per request.
+ *
+ * Only images which never escape the request may be released: layer images are not pooled since the layers may
+ * keep them in their tile caches.  Each (width, height, type) keeps a bounded number of idle images, very large
+ * images are not kept at all, and all idle images together stay within MAX_IDLE_BYTES: the sizes least recently
+ * released give way first, so clients requesting many different map sizes don't pin memory for each of them.  Sizes
+ * without idle images are dropped from the pool.
+ */
+
+final class RasterPool {
+
+    /**
+     * Idle images kept per (width, height, type)
+     */
+    private static final int MAX_IDLE_PER_KEY = Runtime.getRuntime().availableProcessors() * 2;
+
+    /**
+     * Images with more pixels than this are not kept (rare, very large requests)
+     */
+    private static final int MAX_POOLED_PIXELS = 2048 * 2048;
+
+    /**
+     * Bytes held by idle images over all sizes
+     */
+    private static final long MAX_IDLE_BYTES = 64L * 1024 * 1024;
+
+    //access ordered: least recently used sizes first
+    private static final Map<Long, ArrayDeque<BufferedImage>> IDLE = new LinkedHashMap<>(16, 0.75f, true);
+    private static long sIdleBytes;     //guarded by IDLE
+
+    //Private constructor to prevent instantiation
+    private RasterPool() {
+        //intentionally blank
+    }
+
+    /**
+     * Leases a cleared image (all pixels 0: transparent for TYPE_INT_ARGB(_PRE), black for TYPE_INT_RGB)
+     * @param width - pixel width
+     * @param height - pixel height
+     * @param type - TYPE_INT_RGB, TYPE_INT_ARGB or TYPE_INT_ARGB_PRE
+     * @return the image, to be handed back with release() once it is no longer used
+     */
+    static BufferedImage lease(int width, int height, int type) {
+        BufferedImage image = null;
+        synchronized (IDLE) {
+            long key = key(width, height, type);
+            ArrayDeque<BufferedImage> idle = IDLE.get(key);
+            if (idle != null) {
+                image = idle.poll();
+                if (idle.isEmpty()) {
+                    IDLE.remove(key);
+                }
+                if (image != null) {
+                    sIdleBytes -= bytes(image);
+                }
+            }
+        }
+        if (image == null) {
+            return new BufferedImage(width, height, type);
+        }
+
+        Arrays.fill(((DataBufferInt) image.getRaster().getDataBuffer()).getData(), 0);
+        return image;
+    }
+
+    /**
+     * Returns a leased image to the pool.  The caller must not use the image (or anything drawing into it) afterwards.
+     * @param image - image obtained from lease(), may be null
+     */
+    static void release(BufferedImage image) {
+        if (image == null || (long) image.getWidth() * image.getHeight() > MAX_POOLED_PIXELS ||
+                !(image.getRaster().getDataBuffer() instanceof DataBufferInt)) {
+            return;
+        }
+
+        long bytes = bytes(image);
+        synchronized (IDLE) {
+            ArrayDeque<BufferedImage> idle = IDLE.computeIfAbsent(
+                    key(image.getWidth(), image.getHeight(), image.getType()), key -> new ArrayDeque<>());
+            if (idle.size() >= MAX_IDLE_PER_KEY) {
+                return;
+            }
+            idle.push(image);
+            sIdleBytes += bytes;
+
+            //make room by dropping idle images of the least recently released sizes (this size is the most recent)
+            Iterator<ArrayDeque<BufferedImage>> sizes = IDLE.values().iterator();
+            while (sIdleBytes > MAX_IDLE_BYTES && sizes.hasNext()) {
+                ArrayDeque<BufferedImage> eldest = sizes.next();
+                while (sIdleBytes > MAX_IDLE_BYTES && !eldest.isEmpty()) {
+                    sIdleBytes -= bytes(eldest.pollLast());
+                }
+                if (eldest.isEmpty()) {
+                    sizes.remove();
+                }
+            }
+        }
+    }
+
+    private static long bytes(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData().length * 4L;
+    }
+
+    private static long key(int width, int height, int type) {
+        return (long) width << 40 | (long) height << 16 | type;
+    }
+}
@@ -16,6 +16,7 @@ public class WmsFactory {
     static final String PARAM_REQUEST_KEY = "REQUEST";
     static final String PARAM_REQUEST_VAL_GETMAP = "getmap";
     static final String PARAM_REQUEST_VAL_GET_FEATURE_INFO = "getfeatureinfo";
+    static final String PARAM_REQUEST_VAL_GET_VECTOR_TILE = "getvectortile";
     static final Logger LOGGER = Logging.getLogger(GetMapRequest.class);
 
     //Private constructor to prevent instantiation
@@ -41,6 +42,9 @@ public class WmsFactory {
             case PARAM_REQUEST_VAL_GET_FEATURE_INFO:
                 wmsRequest = new GetFeatureRequest(tile_provider, decodedParameters);
                 break;
+            case PARAM_REQUEST_VAL_GET_VECTOR_TILE:
+                wmsRequest = new GetVectorTileRequest(tile_provider, decodedParameters);
+                break;
             default:
                 //unknown request type
                 LOGGER.log(Level.WARNING, WmsFactory.class.getSimpleName() + ": Unknown request type: " + requestValue);
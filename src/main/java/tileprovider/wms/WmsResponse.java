@@ -2,31 +2,69 @@ package tileprovider.wms;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
 /**
  * Created by joshua.johnson on 4/23/2019.
+ *
+ * Response body of a WMS request: an encoded byte array, never copied, whose length is known and sent as
+ * Content-Length.
  */
 
 public class WmsResponse {
-    private ByteArrayOutputStream byteArrayOutputStream;
-    private String mimeType;
 
+    private final byte[] data;
+    private final int offset;
+    private final int length;
+    private final String mimeType;
+
+    /**
+     * @param data - encoded response (not copied; must not be modified afterwards)
+     */
     WmsResponse(byte[] data, String mimeType) {
-        this.byteArrayOutputStream = new ByteArrayOutputStream();
-        try {
-            byteArrayOutputStream.write(data);
-        } catch (IOException ex) {
-            ex.printStackTrace();
+        this(data, 0, data.length, mimeType);
+    }
+
+    /**
+     * @param data - buffer holding the encoded response (not copied; must not be modified afterwards)
+     * @param offset - start of the response within data
+     * @param length - number of bytes of the response
+     */
+    WmsResponse(byte[] data, int offset, int length, String mimeType) {
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IndexOutOfBoundsException("offset=" + offset + ", length=" + length + ", size=" + data.length);
         }
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
         this.mimeType = mimeType;
     }
 
-    WmsResponse(ByteArrayOutputStream byteArrayOutputStream, String mimeType) {
-        this.byteArrayOutputStream = byteArrayOutputStream;
-        this.mimeType = mimeType;
+    /**
+     * @return number of bytes in the body
+     */
+    public long getContentLength() {
+        return length;
     }
 
+    /**
+     * Writes the body to the output without intermediate copies
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(data, offset, length);
+    }
+
+    /**
+     * @deprecated copies the body -- use writeTo()
+     */
+    @Deprecated
     public ByteArrayOutputStream getByteArrayOutputStream() {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(Math.max(32, length));
+        try {
+            writeTo(byteArrayOutputStream);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
         return byteArrayOutputStream;
     }
 